@@ -0,0 +1,118 @@
+package io.github.mathiasberwig.cloudvision.controller.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.net.Uri;
+import android.os.Bundle;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Images measured by the benchmarks. A photo-like JPEG is generated with a fixed seed, so the runs
+ * are repeatable on a device. The JPEGs in the directory passed with the instrumentation argument
+ * {@link #ARGUMENT_DIRECTORY} are measured too, so real photos can be compared:
+ *
+ * <pre>adb shell am instrument -w -e benchmarkImages /sdcard/DCIM/Camera ...</pre>
+ */
+final class BenchmarkImages {
+
+    static final String ARGUMENT_DIRECTORY = "benchmarkImages";
+
+    // Size of the photo generated, the one of a 12 MP camera
+    private static final int WIDTH = 4032;
+    private static final int HEIGHT = 3024;
+
+    private static final long SEED = 42;
+    private static final int SHAPES = 400;
+
+    /**
+     * Max difference added to each channel, like the noise of a sensor. Without it the image is
+     * much easier to compress than a photo.
+     */
+    private static final int NOISE = 8;
+
+    private static final String FILE_NAME = "benchmark_photo.jpg";
+
+    private BenchmarkImages() {
+    }
+
+    /**
+     * Gets the images to be measured.
+     *
+     * @param context The context of the app under test.
+     * @param arguments The instrumentation arguments.
+     * @return The Uris of the generated photo and of the JPEGs of {@link #ARGUMENT_DIRECTORY}.
+     * @throws IOException If the photo can't be written.
+     */
+    static List<Uri> get(Context context, Bundle arguments) throws IOException {
+        final List<Uri> uris = new ArrayList<>();
+        uris.add(Uri.fromFile(getGeneratedPhoto(context)));
+
+        final String directory = arguments.getString(ARGUMENT_DIRECTORY);
+        final File[] files = directory != null ? new File(directory).listFiles() : null;
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().toLowerCase().endsWith(".jpg")) uris.add(Uri.fromFile(file));
+            }
+        }
+        return uris;
+    }
+
+    /**
+     * Gets the generated photo, writing it to the cache directory on the first run.
+     */
+    private static File getGeneratedPhoto(Context context) throws IOException {
+        final File file = new File(context.getCacheDir(), FILE_NAME);
+        if (file.exists()) return file;
+
+        final Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        final Random random = new Random(SEED);
+        final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+        // A sky-like background with shapes of random colors over it
+        paint.setShader(new LinearGradient(0, 0, WIDTH, HEIGHT, 0xff87ceeb, 0xff2e8b57, Shader.TileMode.CLAMP));
+        canvas.drawRect(0, 0, WIDTH, HEIGHT, paint);
+        paint.setShader(null);
+        for (int i = 0; i < SHAPES; i++) {
+            paint.setColor(0xff000000 | random.nextInt(0xffffff));
+            canvas.drawCircle(random.nextFloat() * WIDTH, random.nextFloat() * HEIGHT, 20 + random.nextFloat() * 300, paint);
+        }
+
+        // Add the noise row by row, so just a row of pixels is copied at a time
+        final int[] row = new int[WIDTH];
+        for (int y = 0; y < HEIGHT; y++) {
+            bitmap.getPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+            for (int x = 0; x < WIDTH; x++) {
+                row[x] = 0xff000000
+                        | addNoise(row[x] >> 16, random) << 16
+                        | addNoise(row[x] >> 8, random) << 8
+                        | addNoise(row[x], random);
+            }
+            bitmap.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+        }
+
+        final OutputStream output = new FileOutputStream(file);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 92, output);
+        } finally {
+            output.close();
+            bitmap.recycle();
+        }
+        return file;
+    }
+
+    private static int addNoise(int channel, Random random) {
+        return Math.max(0, Math.min(255, (channel & 0xff) + random.nextInt(2 * NOISE + 1) - NOISE));
+    }
+}
@@ -0,0 +1,134 @@
+package io.github.mathiasberwig.cloudvision.controller.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.api.services.vision.v1.Vision;
+import com.google.api.services.vision.v1.model.AnnotateImageRequest;
+import com.google.api.services.vision.v1.model.AnnotateImageResponse;
+import com.google.api.services.vision.v1.model.BatchAnnotateImagesRequest;
+import com.google.api.services.vision.v1.model.EntityAnnotation;
+import com.google.api.services.vision.v1.model.Image;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import io.github.mathiasberwig.cloudvision.CloudVision;
+import io.github.mathiasberwig.cloudvision.R;
+import io.github.mathiasberwig.cloudvision.controller.vision.FeatureProfile;
+import io.github.mathiasberwig.cloudvision.controller.vision.ImageBuffer;
+
+/**
+ * <p>Benchmark of the {@link ImageEncoder}s: the time to compress each image (see
+ * {@link BenchmarkImages}) decoded like the uploads, the bytes sent on the wire, and how many of
+ * the labels found by Cloud Vision are the same found on the lossless image.</p>
+ *
+ * <p>The labels are queried just when the {@code google_apis_key} is set, since each image costs
+ * a call per encoder. The results are logged with the tag of this class:</p>
+ *
+ * <pre>adb logcat -s io.github.mathiasberwig.cloudvision.controller.image.ImageEncoderBenchmark</pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageEncoderBenchmark {
+    private static final String TAG = ImageEncoderBenchmark.class.getName();
+
+    /**
+     * Number of times each image is compressed. The median time is reported.
+     */
+    private static final int RUNS = 5;
+
+    private static final int MAX_LABELS = 10;
+
+    // Same settings of the uploads
+    private static final Bitmap.Config CONFIG = Bitmap.Config.RGB_565;
+    private static final int IMAGE_SIZE = 1600;
+    private static final int IMAGE_QUALITY = 75;
+
+    @Test
+    public void compareEncoders() throws IOException {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final BitmapPool pool = new BitmapPool(32 * 1024 * 1024);
+        final boolean queryLabels = !TextUtils.isEmpty(context.getString(R.string.google_apis_key));
+
+        for (Uri uri : BenchmarkImages.get(context, InstrumentationRegistry.getArguments())) {
+            final Bitmap bitmap = ImageResizer.createDefault(pool, CONFIG).decode(context.getContentResolver(), uri, IMAGE_SIZE);
+
+            // The labels of the lossless image are the reference of the others
+            final Set<String> referenceLabels = queryLabels ? queryLabels(context, encode(ImageEncoder.PNG, bitmap)) : null;
+
+            for (ImageEncoder encoder : ImageEncoder.values()) {
+                final long[] times = new long[RUNS];
+                ImageBuffer buffer = null;
+                for (int i = 0; i < RUNS; i++) {
+                    final long start = System.nanoTime();
+                    buffer = encode(encoder, bitmap);
+                    times[i] = (System.nanoTime() - start) / 1000000;
+                }
+                Arrays.sort(times);
+
+                final String agreement = queryLabels
+                        ? String.format(Locale.US, "%.0f%%", 100 * getAgreement(referenceLabels, queryLabels(context, buffer)))
+                        : "not queried";
+                Log.i(TAG, String.format(Locale.US, "%s, %s: median %d ms, %d bytes, label agreement %s",
+                        uri.getLastPathSegment(), encoder, times[RUNS / 2], buffer.size(), agreement));
+            }
+            pool.put(bitmap);
+        }
+    }
+
+    private static ImageBuffer encode(ImageEncoder encoder, Bitmap bitmap) {
+        final ImageBuffer buffer = new ImageBuffer();
+        encoder.encode(bitmap, IMAGE_QUALITY, buffer);
+        return buffer;
+    }
+
+    /**
+     * Queries the labels of a compressed image to Cloud Vision.
+     *
+     * @return The descriptions of the labels.
+     */
+    private static Set<String> queryLabels(Context context, ImageBuffer buffer) throws IOException {
+        final Vision vision = ((CloudVision) context.getApplicationContext()).getVision();
+        final AnnotateImageRequest request = new AnnotateImageRequest()
+                .setImage(new Image().encodeContent(buffer.toByteArray()))
+                .setFeatures(Collections.singletonList(FeatureProfile.LABEL_DETECTION.createFeature(MAX_LABELS)));
+        final AnnotateImageResponse response = vision.images()
+                .annotate(new BatchAnnotateImagesRequest().setRequests(Collections.singletonList(request)))
+                .execute()
+                .getResponses()
+                .get(0);
+
+        final Set<String> labels = new HashSet<>();
+        if (response.getLabelAnnotations() == null) return labels;
+        for (EntityAnnotation label : response.getLabelAnnotations()) {
+            labels.add(label.getDescription());
+        }
+        return labels;
+    }
+
+    /**
+     * @return The share of the labels found on both images (Jaccard index), or {@code 1} if there
+     * are none.
+     */
+    private static double getAgreement(Set<String> reference, Set<String> labels) {
+        final Set<String> union = new HashSet<>(reference);
+        union.addAll(labels);
+        if (union.isEmpty()) return 1;
+
+        final Set<String> intersection = new HashSet<>(reference);
+        intersection.retainAll(labels);
+        return (double) intersection.size() / union.size();
+    }
+}
@@ -0,0 +1,87 @@
+package io.github.mathiasberwig.cloudvision.controller.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import io.github.mathiasberwig.cloudvision.controller.vision.ImageBuffer;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmark of the {@link ResizeBackend}s: the time to decode each image (see
+ * {@link BenchmarkImages}) to the sizes sent to Cloud Vision, and the bytes sent on the wire once
+ * it's compressed like the uploads. The results are logged with the tag of this class:
+ *
+ * <pre>adb logcat -s io.github.mathiasberwig.cloudvision.controller.image.ResizeBackendBenchmark</pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public class ResizeBackendBenchmark {
+    private static final String TAG = ResizeBackendBenchmark.class.getName();
+
+    /**
+     * The sizes of the images of the uploads: the one of the labels and the default one.
+     */
+    private static final int[] LONG_EDGES = {640, 1600};
+
+    /**
+     * Number of times each image is decoded. The median time is reported.
+     */
+    private static final int RUNS = 5;
+
+    // Same settings of the uploads
+    private static final Bitmap.Config CONFIG = Bitmap.Config.RGB_565;
+    private static final int IMAGE_QUALITY = 75;
+
+    @Test
+    public void compareBackends() throws IOException {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final BitmapPool pool = new BitmapPool(32 * 1024 * 1024);
+        final ResizeBackend[] backends = {new TiledBitmapDecoder(pool, CONFIG), new SampledBitmapDecoder(pool, CONFIG)};
+
+        for (Uri uri : BenchmarkImages.get(context, InstrumentationRegistry.getArguments())) {
+            for (int longEdge : LONG_EDGES) {
+                for (ResizeBackend backend : backends) {
+                    measure(context, pool, backend, uri, longEdge);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the image {@link #RUNS} times with {@code backend} and logs the median time and the
+     * size of the compressed image.
+     */
+    private void measure(Context context, BitmapPool pool, ResizeBackend backend, Uri uri, int longEdge) throws IOException {
+        final long[] times = new long[RUNS];
+        Bitmap bitmap = null;
+        for (int i = 0; i < RUNS; i++) {
+            if (bitmap != null) pool.put(bitmap);
+
+            final long start = System.nanoTime();
+            bitmap = backend.decode(context.getContentResolver(), uri, longEdge);
+            times[i] = (System.nanoTime() - start) / 1000000;
+        }
+        Arrays.sort(times);
+
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final ImageBuffer buffer = new ImageBuffer();
+        ImageEncoder.JPEG.encode(bitmap, IMAGE_QUALITY, buffer);
+        pool.put(bitmap);
+
+        Log.i(TAG, String.format(Locale.US, "%s, %s at %d px: %dx%d, median %d ms, %d bytes",
+                uri.getLastPathSegment(), backend.getName(), longEdge, width, height, times[RUNS / 2], buffer.size()));
+        assertTrue("The image is larger than " + longEdge + " px", Math.max(width, height) <= longEdge);
+    }
+}
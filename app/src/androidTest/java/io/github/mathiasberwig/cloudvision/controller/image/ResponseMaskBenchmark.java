@@ -0,0 +1,123 @@
+package io.github.mathiasberwig.cloudvision.controller.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.IOUtils;
+import com.google.api.services.vision.v1.Vision;
+import com.google.api.services.vision.v1.model.AnnotateImageRequest;
+import com.google.api.services.vision.v1.model.BatchAnnotateImagesRequest;
+import com.google.api.services.vision.v1.model.BatchAnnotateImagesResponse;
+import com.google.api.services.vision.v1.model.Feature;
+import com.google.api.services.vision.v1.model.Image;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import io.github.mathiasberwig.cloudvision.CloudVision;
+import io.github.mathiasberwig.cloudvision.R;
+import io.github.mathiasberwig.cloudvision.controller.vision.FeatureProfile;
+import io.github.mathiasberwig.cloudvision.controller.vision.ImageBuffer;
+
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Benchmark of the partial response mask (see {@link FeatureProfile#getResponseFields(Iterable)}):
+ * the bytes of the JSON received and the time to parse it, for each image (see
+ * {@link BenchmarkImages}) annotated with and without the mask. It needs the
+ * {@code google_apis_key}, since it queries Cloud Vision. The results are logged with the tag of
+ * this class:
+ *
+ * <pre>adb logcat -s io.github.mathiasberwig.cloudvision.controller.image.ResponseMaskBenchmark</pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public class ResponseMaskBenchmark {
+    private static final String TAG = ResponseMaskBenchmark.class.getName();
+
+    /**
+     * Number of times each response is parsed. The median time is reported.
+     */
+    private static final int RUNS = 5;
+
+    // Same features and settings of the uploads
+    private static final List<Feature> FEATURES = Arrays.asList(
+            FeatureProfile.LABEL_DETECTION.createFeature(50),
+            FeatureProfile.LOGO_DETECTION.createFeature(5),
+            FeatureProfile.LANDMARK_DETECTION.createFeature(1));
+    private static final Bitmap.Config CONFIG = Bitmap.Config.RGB_565;
+    private static final int IMAGE_SIZE = 1600;
+    private static final int IMAGE_QUALITY = 75;
+
+    @Test
+    public void compareMasks() throws IOException {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        assumeFalse("The google_apis_key isn't set", TextUtils.isEmpty(context.getString(R.string.google_apis_key)));
+
+        final Vision vision = ((CloudVision) context.getApplicationContext()).getVision();
+        final BitmapPool pool = new BitmapPool(32 * 1024 * 1024);
+        final String mask = FeatureProfile.getResponseFields(FEATURES);
+
+        for (Uri uri : BenchmarkImages.get(context, InstrumentationRegistry.getArguments())) {
+            final Bitmap bitmap = ImageResizer.createDefault(pool, CONFIG).decode(context.getContentResolver(), uri, IMAGE_SIZE);
+            final ImageBuffer buffer = new ImageBuffer();
+            ImageEncoder.JPEG.encode(bitmap, IMAGE_QUALITY, buffer);
+            pool.put(bitmap);
+
+            final BatchAnnotateImagesRequest request = new BatchAnnotateImagesRequest().setRequests(Collections.singletonList(
+                    new AnnotateImageRequest()
+                            .setImage(new Image().encodeContent(buffer.toByteArray()))
+                            .setFeatures(FEATURES)));
+
+            measure(vision, uri, request, null);
+            measure(vision, uri, request, mask);
+        }
+    }
+
+    /**
+     * Annotates the image once with the {@code fields} mask, then parses the response
+     * {@link #RUNS} times and logs its size and the median time.
+     *
+     * @param fields The mask, or {@code null} to receive the whole response.
+     */
+    private void measure(Vision vision, Uri uri, BatchAnnotateImagesRequest request, String fields) throws IOException {
+        final Vision.Images.Annotate annotate = vision.images().annotate(request);
+        if (fields != null) annotate.setFields(fields);
+
+        // The content is read as it's parsed by the uploads, already unzipped
+        final ByteArrayOutputStream json = new ByteArrayOutputStream();
+        final HttpResponse response = annotate.executeUnparsed();
+        try {
+            IOUtils.copy(response.getContent(), json);
+        } finally {
+            response.disconnect();
+        }
+        final byte[] bytes = json.toByteArray();
+
+        final JsonFactory jsonFactory = vision.getJsonFactory();
+        final long[] times = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            final long start = System.nanoTime();
+            jsonFactory.fromInputStream(new ByteArrayInputStream(bytes), BatchAnnotateImagesResponse.class);
+            times[i] = (System.nanoTime() - start) / 1000;
+        }
+        Arrays.sort(times);
+
+        Log.i(TAG, String.format(Locale.US, "%s, %s: %d bytes, median parse %d us",
+                uri.getLastPathSegment(), fields != null ? "masked" : "whole response", bytes.length, times[RUNS / 2]));
+    }
+}
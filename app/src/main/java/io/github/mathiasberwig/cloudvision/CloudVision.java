@@ -2,6 +2,24 @@ package io.github.mathiasberwig.cloudvision;
 
 import android.app.Application;
 
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.vision.v1.Vision;
+import com.google.api.services.vision.v1.VisionRequestInitializer;
+import com.google.api.services.vision.v1.model.AnnotateImageResponse;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import io.github.mathiasberwig.cloudvision.controller.image.BitmapPool;
+import io.github.mathiasberwig.cloudvision.controller.vision.OkHttpTransport;
+import io.github.mathiasberwig.cloudvision.data.cache.BrandStore;
+import io.github.mathiasberwig.cloudvision.data.cache.DiskCache;
+import io.github.mathiasberwig.cloudvision.data.cache.NearDuplicateIndex;
+import io.github.mathiasberwig.cloudvision.data.cache.TitleCache;
+
+import okhttp3.OkHttpClient;
 import uk.co.chrisjenx.calligraphy.CalligraphyConfig;
 
 /**
@@ -11,10 +29,96 @@ import uk.co.chrisjenx.calligraphy.CalligraphyConfig;
  */
 public class CloudVision extends Application {
 
+    /**
+     * HTTP client shared by all services. Its connections are kept alive between requests, so just
+     * the first request to each host pays for DNS, TCP and TLS.
+     */
+    private OkHttpClient httpClient;
+
+    /**
+     * Cloud Vision client, using {@link #httpClient}.
+     */
+    private Vision vision;
+
+    /**
+     * Bitmaps reused by the uploads, limited to 1/8 of the heap.
+     */
+    private BitmapPool bitmapPool;
+
+    /**
+     * Responses of Cloud Vision, by the digest of the image and settings sent.
+     */
+    private DiskCache responseCache;
+
+    /**
+     * Max size of {@link #responseCache}. Responses have just a few KB, so it keeps hundreds.
+     */
+    private static final long RESPONSE_CACHE_SIZE = 1024 * 1024;
+
+    /**
+     * Titles of Wikipedia's articles in the user's language, by their English title.
+     */
+    private TitleCache titleCache;
+
+    /**
+     * Max number of titles of {@link #titleCache} kept in memory, and max size of the ones on disk.
+     */
+    private static final int TITLE_CACHE_MEMORY_ENTRIES = 128;
+    private static final long TITLE_CACHE_SIZE = 256 * 1024;
+
+    /**
+     * Labels of Wikidata's entities (like countries and people) in the user's language, by their
+     * id. A brand references many entities, so it keeps more labels than {@link #titleCache}.
+     */
+    private TitleCache labelCache;
+    private static final int LABEL_CACHE_MEMORY_ENTRIES = 512;
+    private static final long LABEL_CACHE_SIZE = 512 * 1024;
+
+    /**
+     * Entities of the brands found on Wikidata, with a snapshot of their info per language.
+     */
+    private BrandStore brandStore;
+    private static final int BRAND_STORE_MEMORY_ENTRIES = 64;
+    private static final long BRAND_STORE_SIZE = 512 * 1024;
+
+    /**
+     * Responses of the recent images, by their perceptual hash. They are kept for 30 minutes.
+     */
+    private final NearDuplicateIndex<AnnotateImageResponse> duplicateIndex =
+            new NearDuplicateIndex<>(32, 30 * 60 * 1000);
+
     @Override
     public void onCreate() {
         super.onCreate();
 
+        // The queries that uses computer vision and big data queries can easily exceed the default
+        // timeouts, so we set bigger ones
+        httpClient = new OkHttpClient.Builder()
+                .connectTimeout(10, TimeUnit.SECONDS)
+                .readTimeout(10, TimeUnit.SECONDS)
+                .build();
+
+        // The requests of the API clients use the timeouts of the shared client, instead of the 20
+        // seconds of google-http-client, so they don't need a derived client (see OkHttpTransport)
+        final HttpRequestInitializer timeouts = new HttpRequestInitializer() {
+            @Override
+            public void initialize(HttpRequest request) {
+                request.setConnectTimeout(httpClient.connectTimeoutMillis());
+                request.setReadTimeout(httpClient.readTimeoutMillis());
+            }
+        };
+
+        vision = new Vision.Builder(new OkHttpTransport(httpClient), GsonFactory.getDefaultInstance(), timeouts)
+                .setVisionRequestInitializer(new VisionRequestInitializer(getString(R.string.google_apis_key)))
+                .setApplicationName(getString(R.string.app_name))
+                .build();
+
+        bitmapPool = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);
+        responseCache = new DiskCache(new File(getCacheDir(), "vision_responses"), RESPONSE_CACHE_SIZE);
+        titleCache = new TitleCache(new File(getCacheDir(), "wikipedia_titles"), TITLE_CACHE_MEMORY_ENTRIES, TITLE_CACHE_SIZE);
+        labelCache = new TitleCache(new File(getCacheDir(), "wikidata_labels"), LABEL_CACHE_MEMORY_ENTRIES, LABEL_CACHE_SIZE);
+        brandStore = new BrandStore(new File(getCacheDir(), "wikidata_brands"), BRAND_STORE_MEMORY_ENTRIES, BRAND_STORE_SIZE);
+
         // Config Calligrahy to use Lato font
         CalligraphyConfig.initDefault(new CalligraphyConfig.Builder()
                 .setDefaultFontPath("fonts/Ubuntu-Regular.ttf")
@@ -22,4 +126,54 @@ public class CloudVision extends Application {
                 .build()
         );
     }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            bitmapPool.clear();
+            titleCache.trimMemory();
+            labelCache.trimMemory();
+            brandStore.trimMemory();
+        }
+        if (level >= TRIM_MEMORY_COMPLETE) httpClient.connectionPool().evictAll();
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        bitmapPool.clear();
+    }
+
+    public OkHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public Vision getVision() {
+        return vision;
+    }
+
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    public DiskCache getResponseCache() {
+        return responseCache;
+    }
+
+    public TitleCache getTitleCache() {
+        return titleCache;
+    }
+
+    public TitleCache getLabelCache() {
+        return labelCache;
+    }
+
+    public BrandStore getBrandStore() {
+        return brandStore;
+    }
+
+    public NearDuplicateIndex<AnnotateImageResponse> getDuplicateIndex() {
+        return duplicateIndex;
+    }
 }
@@ -0,0 +1,211 @@
+package io.github.mathiasberwig.cloudvision.controller;
+
+import android.support.annotation.NonNull;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+
+/**
+ * <p>Token that cancels an analysis: the upload of the images, the queries to third-party APIs and
+ * the broadcasts of their results. It's created by the UI with {@link #create()}, and its id is
+ * sent to the services, that get it back with {@link #get(long)}.</p>
+ *
+ * <p>When cancelled, the HTTP calls registered with {@link #register(Call)} are aborted, and the
+ * stages of the analysis check {@link #isCancelled()} to skip the remaining work. A part of the
+ * analysis that may be aborted alone (like a copy of a call) gets a token of its own with
+ * {@link #createChild()}.</p>
+ */
+public class CancellationToken {
+
+    /**
+     * Id used when an analysis can't be cancelled.
+     */
+    public static final long NO_ID = -1;
+
+    /**
+     * Token of the analyses that can't be cancelled.
+     */
+    private static final CancellationToken NEVER_CANCELLED = new CancellationToken(NO_ID);
+
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    /**
+     * Tokens of the analyses running. A token is removed when its analysis finishes or is
+     * cancelled, so an unknown id belongs to an analysis that is over.
+     */
+    private static final Map<Long, CancellationToken> TOKENS = new HashMap<>();
+
+    private final long id;
+    private final CancellationToken parent;
+    private final CountDownLatch cancelled = new CountDownLatch(1);
+    private final List<Call> calls = new ArrayList<>();
+    private final List<CancellationToken> children = new ArrayList<>();
+
+    private CancellationToken(long id) {
+        this(id, null);
+    }
+
+    private CancellationToken(long id, CancellationToken parent) {
+        this.id = id;
+        this.parent = parent;
+    }
+
+    /**
+     * Creates the token of a new analysis.
+     *
+     * @return The new token.
+     */
+    public static CancellationToken create() {
+        final CancellationToken token = new CancellationToken(NEXT_ID.getAndIncrement());
+        synchronized (TOKENS) {
+            TOKENS.put(token.id, token);
+        }
+        return token;
+    }
+
+    /**
+     * Gets the token of an analysis.
+     *
+     * @param id The id of the token, or {@link #NO_ID}.
+     * @return The token of the analysis. If the analysis is over, the token is already cancelled,
+     * and with {@link #NO_ID} it's never cancelled.
+     */
+    @NonNull
+    public static CancellationToken get(long id) {
+        if (id == NO_ID) return NEVER_CANCELLED;
+
+        synchronized (TOKENS) {
+            final CancellationToken token = TOKENS.get(id);
+            if (token != null) return token;
+        }
+
+        final CancellationToken token = new CancellationToken(id);
+        token.cancelled.countDown();
+        return token;
+    }
+
+    /**
+     * Creates the token of a part of this analysis, that can be cancelled alone. It's cancelled
+     * with the analysis, and its owner must cancel it when the part is over, so the analysis
+     * forgets it. It has the same id of this token, but it isn't returned by {@link #get(long)}.
+     *
+     * @return The new token, already cancelled if this analysis is.
+     */
+    public CancellationToken createChild() {
+        final CancellationToken child = new CancellationToken(id, this);
+        synchronized (calls) {
+            if (!isCancelled()) {
+                children.add(child);
+                return child;
+            }
+        }
+        child.cancel();
+        return child;
+    }
+
+    /**
+     * @return The id of this token, sent to the services of the analysis.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return {@code true} if the analysis was cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled.getCount() == 0;
+    }
+
+    /**
+     * Throws an exception if the analysis was cancelled, so a stage can stop in the middle.
+     *
+     * @throws InterruptedIOException If the analysis was cancelled.
+     */
+    public void throwIfCancelled() throws InterruptedIOException {
+        if (isCancelled()) throw new InterruptedIOException("Analysis " + id + " was cancelled");
+    }
+
+    /**
+     * Waits until the analysis is cancelled, up to {@code millis}.
+     *
+     * @param millis The max time to wait.
+     * @return {@code true} if the analysis was cancelled.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public boolean await(long millis) throws InterruptedException {
+        return cancelled.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers an HTTP call of the analysis, so it's aborted when the analysis is cancelled. If it
+     * was already cancelled, the call is aborted right away.
+     *
+     * @param call The call.
+     * @return The same call, so it can be executed.
+     */
+    public Call register(@NonNull Call call) {
+        if (this == NEVER_CANCELLED) return call;
+
+        synchronized (calls) {
+            if (!isCancelled()) {
+                calls.add(call);
+                return call;
+            }
+        }
+        call.cancel();
+        return call;
+    }
+
+    /**
+     * Cancels the analysis: aborts its HTTP calls (and the ones of its children) and makes the
+     * next checks of {@link #isCancelled()} return {@code true}. It does nothing if the analysis
+     * can't be cancelled.
+     */
+    public void cancel() {
+        if (this == NEVER_CANCELLED) return;
+
+        release();
+
+        final List<Call> running;
+        final List<CancellationToken> runningChildren;
+        synchronized (calls) {
+            cancelled.countDown();
+            running = new ArrayList<>(calls);
+            runningChildren = new ArrayList<>(children);
+            calls.clear();
+            children.clear();
+        }
+        for (Call call : running) {
+            call.cancel();
+        }
+        for (CancellationToken child : runningChildren) {
+            child.cancel();
+        }
+    }
+
+    /**
+     * Forgets the token when its analysis finishes, without cancelling the calls. The services
+     * that still get it treat the analysis as over. A child is just forgotten by its parent.
+     */
+    public void release() {
+        if (parent != null) {
+            synchronized (parent.calls) {
+                parent.children.remove(this);
+            }
+            return;
+        }
+
+        synchronized (TOKENS) {
+            TOKENS.remove(id);
+        }
+    }
+}
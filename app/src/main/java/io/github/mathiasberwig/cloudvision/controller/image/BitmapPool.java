@@ -0,0 +1,154 @@
+package io.github.mathiasberwig.cloudvision.controller.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * <p>Pool of mutable bitmaps that are reused instead of allocated again. The bitmaps are kept in
+ * buckets by the power of 2 of their allocation size, so a bitmap can be reused by any image that
+ * fits in its pixel memory (with {@link Bitmap#reconfigure} or {@code inBitmap}).</p>
+ *
+ * <p>Back-to-back images of the same camera have the same size, so after the first upload the
+ * decoder doesn't allocate large bitmaps anymore.</p>
+ */
+public class BitmapPool {
+    private static final String TAG = BitmapPool.class.getName();
+
+    /**
+     * Key of the bucket with allocations in the range [2^key, 2^(key+1)).
+     */
+    private final SparseArray<LinkedList<Bitmap>> buckets = new SparseArray<>();
+
+    private final long maxSize;
+    private long size;
+
+    /**
+     * Default (and main) constructor.
+     *
+     * @param maxSize Max number of bytes kept by the pool. Bitmaps that don't fit are recycled.
+     */
+    public BitmapPool(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns a mutable bitmap with the requested size and config, reusing the pixel memory of a
+     * pooled bitmap when possible. The pixels are cleared.
+     *
+     * @param width The width of the bitmap.
+     * @param height The height of the bitmap.
+     * @param config The config of the bitmap.
+     * @return A bitmap with the requested size and config, never {@code null}.
+     */
+    public Bitmap get(int width, int height, @NonNull Bitmap.Config config) {
+        final Bitmap bitmap = take(width * height * getBytesPerPixel(config));
+        if (bitmap == null) return Bitmap.createBitmap(width, height, config);
+
+        bitmap.reconfigure(width, height, config);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Adds {@code bitmap} to the pool, or recycles it if it can't be reused or the pool is full.
+     * The bitmap must not be used after this call.
+     *
+     * @param bitmap The bitmap to be reused.
+     */
+    public synchronized void put(@NonNull Bitmap bitmap) {
+        if (bitmap.isRecycled()) return;
+
+        final int allocation = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || allocation > maxSize) {
+            bitmap.recycle();
+            return;
+        }
+
+        // Make room by discarding the largest bitmaps, the cheapest ones to lose
+        while (size + allocation > maxSize) {
+            removeLargest();
+        }
+
+        final int key = getBucket(allocation);
+        LinkedList<Bitmap> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new LinkedList<>();
+            buckets.put(key, bucket);
+        }
+        bucket.addLast(bitmap);
+        size += allocation;
+    }
+
+    /**
+     * Recycles all pooled bitmaps.
+     */
+    public synchronized void clear() {
+        Log.d(TAG, "clearing " + size + " bytes");
+        for (int i = 0; i < buckets.size(); i++) {
+            for (Bitmap bitmap : buckets.valueAt(i)) {
+                bitmap.recycle();
+            }
+        }
+        buckets.clear();
+        size = 0;
+    }
+
+    /**
+     * Removes the smallest bitmap with at least {@code byteCount} bytes of pixel memory, looking
+     * only at the bucket of {@code byteCount} and the next one (so at most 4 times the memory
+     * needed is reused).
+     *
+     * @param byteCount The number of bytes needed.
+     * @return The bitmap, or {@code null} if there is none.
+     */
+    private synchronized Bitmap take(int byteCount) {
+        final int key = getBucket(byteCount);
+        for (int i = key; i <= key + 1; i++) {
+            final LinkedList<Bitmap> bucket = buckets.get(i);
+            if (bucket == null) continue;
+
+            final Iterator<Bitmap> iterator = bucket.iterator();
+            while (iterator.hasNext()) {
+                final Bitmap bitmap = iterator.next();
+                if (bitmap.getAllocationByteCount() >= byteCount) {
+                    iterator.remove();
+                    size -= bitmap.getAllocationByteCount();
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void removeLargest() {
+        final int index = buckets.size() - 1;
+        final LinkedList<Bitmap> bucket = buckets.valueAt(index);
+        final Bitmap bitmap = bucket.removeFirst();
+        if (bucket.isEmpty()) buckets.removeAt(index);
+
+        size -= bitmap.getAllocationByteCount();
+        bitmap.recycle();
+    }
+
+    private static int getBucket(int byteCount) {
+        return 31 - Integer.numberOfLeadingZeros(Math.max(1, byteCount));
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
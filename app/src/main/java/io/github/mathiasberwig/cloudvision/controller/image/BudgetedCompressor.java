@@ -0,0 +1,115 @@
+package io.github.mathiasberwig.cloudvision.controller.image;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import io.github.mathiasberwig.cloudvision.controller.vision.ImageBuffer;
+
+/**
+ * <p>Compresses a bitmap to the highest quality that fits a byte budget. The quality is found with a
+ * bounded binary search; if even the lowest quality doesn't fit (or the {@link ImageEncoder} is
+ * lossless), the bitmap is scaled down and the search starts again.</p>
+ *
+ * <p>With a fixed quality, the size of the image depends a lot on the content of the photo. With a
+ * budget, the upload time stays predictable.</p>
+ */
+public class BudgetedCompressor {
+    private static final String TAG = BudgetedCompressor.class.getName();
+
+    /**
+     * The lowest quality tried before scaling the bitmap down.
+     */
+    private static final int MIN_QUALITY = 30;
+
+    /**
+     * The search stops when the range of qualities is narrower than this.
+     */
+    private static final int QUALITY_STEP = 5;
+
+    /**
+     * Max number of times the bitmap is scaled down when the lowest quality doesn't fit.
+     */
+    private static final int MAX_DOWNSCALES = 3;
+
+    /**
+     * The scale applied on each downscale.
+     */
+    private static final float DOWNSCALE_FACTOR = 0.8f;
+
+    /**
+     * Compresses {@code bitmap} to the highest quality (up to {@code maxQuality}) that fits in
+     * {@code budget} bytes. If no quality fits even after scaling the bitmap down, the smallest image
+     * found is returned.
+     *
+     * @param encoder The encoder used to compress the bitmap.
+     * @param bitmap The bitmap to be compressed. It's not given back to the pool.
+     * @param pool The pool used to allocate the downscaled bitmaps.
+     * @param maxQuality The highest quality allowed (0-100).
+     * @param budget The max size of the image, in bytes.
+     * @return The buffer with the compressed image.
+     */
+    public static ImageBuffer compress(@NonNull ImageEncoder encoder, @NonNull Bitmap bitmap, @NonNull BitmapPool pool,
+                                       int maxQuality, long budget) {
+        ImageBuffer best = new ImageBuffer();
+        ImageBuffer scratch = new ImageBuffer();
+        Bitmap current = bitmap;
+
+        try {
+            for (int downscales = 0; ; downscales++) {
+                // Most photos will fit with the highest quality
+                encoder.encode(current, maxQuality, best);
+                if (best.size() <= budget) {
+                    log(encoder, current, maxQuality, best, budget);
+                    return best;
+                }
+
+                // Check if the lowest quality fits, otherwise try a smaller bitmap. Lossless
+                // encoders ignore the quality, so just the size can be changed.
+                final int minQuality = Math.min(MIN_QUALITY, maxQuality);
+                if (encoder.isLossy()) encoder.encode(current, minQuality, best);
+                if (best.size() > budget) {
+                    if (downscales == MAX_DOWNSCALES) {
+                        log(encoder, current, minQuality, best, budget);
+                        return best;
+                    }
+
+                    final Bitmap smaller = ImageResizer.scale(current,
+                            Math.round(Math.max(current.getWidth(), current.getHeight()) * DOWNSCALE_FACTOR), pool);
+                    if (current != bitmap) pool.put(current);
+                    current = smaller;
+                    continue;
+                }
+
+                // Search the highest quality that fits: low always fits, high never fits
+                int low = minQuality;
+                int high = maxQuality;
+                while (high - low > QUALITY_STEP) {
+                    final int quality = (low + high) / 2;
+                    encoder.encode(current, quality, scratch);
+
+                    if (scratch.size() <= budget) {
+                        low = quality;
+
+                        // Keep the image that fits, reusing the other buffer on the next try
+                        final ImageBuffer swap = best;
+                        best = scratch;
+                        scratch = swap;
+                    } else {
+                        high = quality;
+                    }
+                }
+
+                log(encoder, current, low, best, budget);
+                return best;
+            }
+        } finally {
+            if (current != bitmap) pool.put(current);
+        }
+    }
+
+    private static void log(ImageEncoder encoder, Bitmap bitmap, int quality, ImageBuffer buffer, long budget) {
+        Log.d(TAG, String.format("compressed %dx%d to %s with quality %d: %d bytes (budget of %d bytes)",
+                bitmap.getWidth(), bitmap.getHeight(), encoder, quality, buffer.size(), budget));
+    }
+}
@@ -0,0 +1,71 @@
+package io.github.mathiasberwig.cloudvision.controller.image;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+
+import io.github.mathiasberwig.cloudvision.controller.vision.ImageBuffer;
+
+/**
+ * Enum with the codecs that can be used to compress the images sent to Cloud Vision (all of them are
+ * accepted by the API). The codec is chosen by the user, see {@link #forPolicy(String)}.
+ */
+public enum ImageEncoder {
+
+    JPEG(Bitmap.CompressFormat.JPEG, "image/jpeg", true),
+    WEBP(Bitmap.CompressFormat.WEBP, "image/webp", true),
+    PNG(Bitmap.CompressFormat.PNG, "image/png", false);
+
+    private final Bitmap.CompressFormat format;
+    private final String mimeType;
+    private final boolean lossy;
+
+    /**
+     * Default (and main) constructor.
+     *
+     * @param format The format used with {@link Bitmap#compress}.
+     * @param mimeType The mime type of the compressed image.
+     * @param lossy {@code true} if the quality parameter changes the output.
+     */
+    ImageEncoder(Bitmap.CompressFormat format, String mimeType, boolean lossy) {
+        this.format = format;
+        this.mimeType = mimeType;
+        this.lossy = lossy;
+    }
+
+    /**
+     * Returns the encoder selected by {@code policy}.
+     *
+     * @param policy The name of an encoder (case insensitive).
+     * @return The encoder of the policy, or {@link #JPEG} if the policy is unknown (like the
+     * "auto" policy of the previous versions).
+     */
+    public static ImageEncoder forPolicy(String policy) {
+        for (ImageEncoder encoder : values()) {
+            if (encoder.name().equalsIgnoreCase(policy)) return encoder;
+        }
+        return JPEG;
+    }
+
+    /**
+     * Compresses {@code bitmap} into {@code buffer}, replacing anything it had.
+     *
+     * @param bitmap The bitmap to be compressed.
+     * @param quality The quality (0-100), ignored by lossless encoders.
+     * @param buffer The buffer where the image will be written.
+     */
+    public void encode(@NonNull Bitmap bitmap, int quality, @NonNull ImageBuffer buffer) {
+        buffer.reset();
+        bitmap.compress(format, quality, buffer);
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return {@code true} if the quality changes the size of the output.
+     */
+    public boolean isLossy() {
+        return lossy;
+    }
+}
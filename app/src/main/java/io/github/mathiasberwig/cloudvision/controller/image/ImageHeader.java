@@ -0,0 +1,97 @@
+package io.github.mathiasberwig.cloudvision.controller.image;
+
+import android.content.ContentResolver;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Info about an image read just from its header: the container type, dimensions and file size.
+ * It's cheap to read, because no pixels are decoded.
+ */
+public class ImageHeader {
+
+    private static final String MIME_TYPE_JPEG = "image/jpeg";
+
+    private final String mimeType;
+    private final int width;
+    private final int height;
+    private final long length;
+
+    private ImageHeader(String mimeType, int width, int height, long length) {
+        this.mimeType = mimeType;
+        this.width = width;
+        this.height = height;
+        this.length = length;
+    }
+
+    /**
+     * Reads the header of the image at {@code uri}.
+     *
+     * @param resolver ContentResolver used to open the image.
+     * @param uri The Uri of the image.
+     * @return The header of the image. If the format is unknown, the width and height are {@code -1}.
+     * @throws FileNotFoundException If the image can't be opened.
+     * @throws IOException If the image can't be read.
+     */
+    public static ImageHeader read(@NonNull ContentResolver resolver, @NonNull Uri uri) throws IOException {
+        final ParcelFileDescriptor fileDescriptor = resolver.openFileDescriptor(uri, "r");
+        if (fileDescriptor == null) throw new FileNotFoundException("Unable to open " + uri);
+
+        try {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fileDescriptor.getFileDescriptor(), null, options);
+
+            return new ImageHeader(options.outMimeType, options.outWidth, options.outHeight, fileDescriptor.getStatSize());
+        } finally {
+            fileDescriptor.close();
+        }
+    }
+
+    /**
+     * Checks if the image can be sent as it is: a JPEG not larger than the requested size.
+     *
+     * @param maxLongEdge The max size of the longest edge of the image.
+     * @param maxLength The max size of the file, in bytes.
+     * @return {@code true} if the original bytes of the image can be sent.
+     */
+    public boolean canPassThrough(int maxLongEdge, long maxLength) {
+        return MIME_TYPE_JPEG.equals(mimeType)
+                && width > 0 && height > 0 && Math.max(width, height) <= maxLongEdge
+                && length > 0 && length <= maxLength;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The size of the file, in bytes, or {@code -1} if it's unknown.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageHeader{" +
+                "mimeType='" + mimeType + '\'' +
+                ", width=" + width +
+                ", height=" + height +
+                ", length=" + length +
+                '}';
+    }
+}
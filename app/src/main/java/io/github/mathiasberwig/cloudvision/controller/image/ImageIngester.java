@@ -0,0 +1,190 @@
+package io.github.mathiasberwig.cloudvision.controller.image;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.github.mathiasberwig.cloudvision.controller.vision.RequestDigest;
+
+/**
+ * <p>Copies the images picked by the user to a file of the app, off the main thread. The file
+ * descriptor of the picked image is mapped in memory ({@link FileChannel#map}) by windows of
+ * {@link #MAP_WINDOW_SIZE}, so the bytes never pass through the Java heap, and they are read just
+ * once for both the copy and the digest of the image (see {@link RequestDigest}), used as the key
+ * of its cached response. If a window can't be mapped, the rest is copied through a buffer.</p>
+ *
+ * <p>If the image can't be copied, the original Uri is delivered, so it's read directly.</p>
+ */
+public class ImageIngester {
+    private static final String TAG = ImageIngester.class.getName();
+
+    /**
+     * Size of the buffer used with sources that aren't regular files (like pipes).
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Max size of the part of the image mapped at a time, so a large photo doesn't take a large
+     * share of the address space.
+     */
+    private static final long MAP_WINDOW_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Callback of {@link #ingest(Uri, Callback)}, called on the main thread.
+     */
+    public interface Callback {
+
+        /**
+         * Called when the image is ready to be uploaded.
+         *
+         * @param imageUri The Uri of the copy, or the Uri of the picked image if it couldn't be copied.
+         * @param imageDigest The digest of the image bytes, as hex, or {@code null} if it couldn't
+         *                    be copied.
+         */
+        @MainThread
+        void onImageReady(@NonNull Uri imageUri, @Nullable String imageDigest);
+    }
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final ContentResolver resolver;
+    private final File outputFile;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Default (and main) constructor.
+     *
+     * @param resolver ContentResolver used to open the picked images.
+     * @param outputFile The file where the images are copied.
+     */
+    public ImageIngester(@NonNull ContentResolver resolver, @NonNull File outputFile) {
+        this.resolver = resolver;
+        this.outputFile = outputFile;
+    }
+
+    /**
+     * Copies the image at {@code uri} to the output file in background.
+     *
+     * @param uri The Uri of the picked image.
+     * @param callback Called on the main thread when the image is ready.
+     */
+    public void ingest(@NonNull final Uri uri, @NonNull final Callback callback) {
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Uri imageUri;
+                String imageDigest;
+                try {
+                    final long start = SystemClock.elapsedRealtime();
+                    final RequestDigest digest = new RequestDigest();
+                    final long length = copy(uri, digest);
+                    Log.d(TAG, "copied " + length + " bytes in " + (SystemClock.elapsedRealtime() - start) + " ms");
+                    imageUri = Uri.fromFile(outputFile);
+                    imageDigest = digest.toHexString();
+                } catch (IOException | SecurityException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                    imageUri = uri;
+                    imageDigest = null;
+                }
+
+                final Uri readyUri = imageUri;
+                final String readyDigest = imageDigest;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onImageReady(readyUri, readyDigest);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Copies the image at {@code uri} to {@link #outputFile}.
+     *
+     * @param uri The Uri of the picked image.
+     * @param digest The digest where the bytes of the image are added.
+     * @return The number of bytes copied.
+     * @throws IOException If the image can't be read or the copy can't be written.
+     */
+    private long copy(Uri uri, RequestDigest digest) throws IOException {
+        final ParcelFileDescriptor fileDescriptor = resolver.openFileDescriptor(uri, "r");
+        if (fileDescriptor == null) throw new FileNotFoundException("Unable to open " + uri);
+
+        FileInputStream inputStream = null;
+        FileOutputStream outputStream = null;
+        try {
+            inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
+            outputStream = new FileOutputStream(outputFile);
+
+            final FileChannel input = inputStream.getChannel();
+            final FileChannel output = outputStream.getChannel();
+
+            // The stat size is unknown (-1) when the provider gives us a pipe. The file may also be
+            // shorter than its stat size, and just the existing pages can be mapped.
+            final long statSize = fileDescriptor.getStatSize();
+            if (statSize < 0) return copyBuffered(input, output, digest);
+            final long length = Math.min(statSize, input.size());
+
+            // The pages of each window are read once, by the digest, then copied from memory
+            long position = 0;
+            while (position < length) {
+                final MappedByteBuffer mapped;
+                try {
+                    mapped = input.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW_SIZE, length - position));
+                } catch (IOException e) {
+                    Log.w(TAG, "unable to map the image, copying it through a buffer: " + e.getMessage());
+                    input.position(position);
+                    return position + copyBuffered(input, output, digest);
+                }
+
+                digest.update(mapped.duplicate());
+                while (mapped.hasRemaining()) {
+                    position += output.write(mapped);
+                }
+            }
+            return position;
+        } finally {
+            if (inputStream != null) inputStream.close();
+            if (outputStream != null) outputStream.close();
+            fileDescriptor.close();
+        }
+    }
+
+    /**
+     * Copies the rest of {@code input} to {@code output} through a direct buffer.
+     *
+     * @return The number of bytes copied.
+     */
+    private static long copyBuffered(FileChannel input, FileChannel output, RequestDigest digest) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long copied = 0;
+        while (input.read(buffer) != -1) {
+            buffer.flip();
+            digest.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                copied += output.write(buffer);
+            }
+            buffer.clear();
+        }
+        return copied;
+    }
+}
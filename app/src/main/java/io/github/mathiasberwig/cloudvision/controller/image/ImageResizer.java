@@ -0,0 +1,144 @@
+package io.github.mathiasberwig.cloudvision.controller.image;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Decodes images to an exact size. Both backends combine the subsampling done by the decoder
+ * (that for JPEG happens in the DCT domain and costs almost nothing) with a final filtered scale to
+ * hit the requested size.</p>
+ *
+ * <p>The backends are tried in order: the first one available that supports the image wins.</p>
+ *
+ * <p>The bitmaps are taken from a {@link BitmapPool}, and should be given back to it when they
+ * aren't needed anymore.</p>
+ */
+public class ImageResizer {
+    private static final String TAG = ImageResizer.class.getName();
+
+    private final List<ResizeBackend> backends;
+
+    /**
+     * Creates an ImageResizer with custom backends.
+     *
+     * @param backends The backends, in order of preference.
+     */
+    public ImageResizer(ResizeBackend... backends) {
+        this.backends = new ArrayList<>(Arrays.asList(backends));
+    }
+
+    /**
+     * Creates an ImageResizer that reads images by tiles ({@link TiledBitmapDecoder}), falling back
+     * to {@link SampledBitmapDecoder} for formats not supported by {@code BitmapRegionDecoder}.
+     *
+     * @param pool The pool used to allocate the bitmaps.
+     * @param config The config of the decoded bitmaps.
+     * @return A new ImageResizer with the default backends.
+     */
+    public static ImageResizer createDefault(@NonNull BitmapPool pool, @NonNull Bitmap.Config config) {
+        return new ImageResizer(new TiledBitmapDecoder(pool, config), new SampledBitmapDecoder(pool, config));
+    }
+
+    /**
+     * Decodes the image at {@code uri} so that its longest edge is exactly {@code longEdge} pixels
+     * (images that are already smaller are not upscaled).
+     *
+     * @param resolver ContentResolver used to open the image.
+     * @param uri The Uri of the image.
+     * @param longEdge The size of the longest edge of the decoded bitmap.
+     * @return The decoded bitmap, never {@code null}.
+     * @throws FileNotFoundException If the image can't be opened or no backend can decode it.
+     */
+    public Bitmap decode(@NonNull ContentResolver resolver, @NonNull Uri uri, int longEdge) throws FileNotFoundException {
+        for (ResizeBackend backend : backends) {
+            if (!backend.isAvailable()) continue;
+
+            final long start = SystemClock.elapsedRealtime();
+            try {
+                final Bitmap bitmap = backend.decode(resolver, uri, longEdge);
+                Log.d(TAG, String.format("%s decoded %dx%d in %d ms", backend.getName(),
+                        bitmap.getWidth(), bitmap.getHeight(), SystemClock.elapsedRealtime() - start));
+                return bitmap;
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                Log.w(TAG, backend.getName() + " can't decode the image: " + e.getMessage());
+            }
+        }
+
+        throw new FileNotFoundException("Unable to decode " + uri);
+    }
+
+    /**
+     * Scales {@code bitmap} down so that its longest edge is exactly {@code longEdge} pixels.
+     *
+     * @param bitmap The source bitmap, that is not recycled.
+     * @param longEdge The size of the longest edge of the scaled bitmap.
+     * @param pool The pool used to allocate the scaled bitmap.
+     * @return A new scaled bitmap, or {@code bitmap} itself if it's already small enough.
+     */
+    public static Bitmap scale(@NonNull Bitmap bitmap, int longEdge, @NonNull BitmapPool pool) {
+        final float scale = getScale(bitmap.getWidth(), bitmap.getHeight(), longEdge);
+        if (scale >= 1f) return bitmap;
+
+        final int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        final int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        return scale(bitmap, width, height, pool);
+    }
+
+    /**
+     * Scales {@code bitmap} to {@code width} x {@code height} with bilinear filtering, drawing it
+     * into a bitmap of {@code pool} with the same config.
+     *
+     * @param bitmap The source bitmap, that is not recycled.
+     * @param width The width of the scaled bitmap.
+     * @param height The height of the scaled bitmap.
+     * @param pool The pool used to allocate the scaled bitmap.
+     * @return The scaled bitmap.
+     */
+    static Bitmap scale(Bitmap bitmap, int width, int height, BitmapPool pool) {
+        final Bitmap scaled = pool.get(width, height, bitmap.getConfig());
+        new Canvas(scaled).drawBitmap(bitmap, null, new Rect(0, 0, width, height),
+                new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG));
+        return scaled;
+    }
+
+    /**
+     * Calculates the scale that makes the longest edge of an image exactly {@code longEdge}.
+     *
+     * @param width The width of the source image.
+     * @param height The height of the source image.
+     * @param longEdge The requested size of the longest edge.
+     * @return The scale (never larger than 1).
+     */
+    static float getScale(int width, int height, int longEdge) {
+        return Math.min(1f, (float) longEdge / Math.max(width, height));
+    }
+
+    /**
+     * Calculates the largest power of 2 subsample that keeps the image larger than {@code scale}.
+     *
+     * @param scale The final scale of the image.
+     * @return The inSampleSize to be used by the decoder.
+     */
+    static int getSampleSize(float scale) {
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
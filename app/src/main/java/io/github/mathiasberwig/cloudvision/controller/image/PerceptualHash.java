@@ -0,0 +1,65 @@
+package io.github.mathiasberwig.cloudvision.controller.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.support.annotation.NonNull;
+
+/**
+ * <p>64 bits difference hash (dHash) of images. The image is reduced to a grid of 9x8 cells with
+ * the average luminance of all their pixels, and each bit tells if a cell is brighter than the
+ * next one on its row.</p>
+ *
+ * <p>Small changes (a different compression, a slight movement between two shots of a burst) flip
+ * just a few bits, so the Hamming distance between two hashes tells how similar the images are.</p>
+ */
+public class PerceptualHash {
+
+    private static final int COLUMNS = 9;
+    private static final int ROWS = 8;
+
+    private PerceptualHash() {
+    }
+
+    /**
+     * Calculates the dHash of {@code bitmap}. The pixels are read row by row, so just a row is
+     * copied at a time.
+     *
+     * @param bitmap The image.
+     * @return The hash of the image.
+     */
+    public static long dHash(@NonNull Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+
+        final long[] sums = new long[COLUMNS * ROWS];
+        final int[] counts = new int[COLUMNS * ROWS];
+        final int[] row = new int[width];
+
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            final int cellRow = y * ROWS / height * COLUMNS;
+
+            for (int x = 0; x < width; x++) {
+                final int pixel = row[x];
+                final int cell = cellRow + x * COLUMNS / width;
+                sums[cell] += (Color.red(pixel) * 299 + Color.green(pixel) * 587 + Color.blue(pixel) * 114) / 1000;
+                counts[cell]++;
+            }
+        }
+
+        long hash = 0;
+        for (int y = 0; y < ROWS; y++) {
+            for (int x = 0; x < COLUMNS - 1; x++) {
+                final int cell = y * COLUMNS + x;
+                hash <<= 1;
+                if (average(sums, counts, cell) > average(sums, counts, cell + 1)) hash |= 1;
+            }
+        }
+        return hash;
+    }
+
+    private static long average(long[] sums, int[] counts, int cell) {
+        // Images narrower than 9 pixels leave some cells empty
+        return counts[cell] == 0 ? 0 : sums[cell] / counts[cell];
+    }
+}
@@ -0,0 +1,38 @@
+package io.github.mathiasberwig.cloudvision.controller.image;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+
+/**
+ * A way of decoding an image straight to an exact size. The implementations are used by
+ * {@link ImageResizer}, which picks the first one available that supports the image.
+ */
+public interface ResizeBackend {
+
+    /**
+     * @return A short name of the backend, used on logs.
+     */
+    String getName();
+
+    /**
+     * @return {@code true} if the backend can be used on this device.
+     */
+    boolean isAvailable();
+
+    /**
+     * Decodes the image at {@code uri} so that its longest edge is exactly {@code longEdge} pixels.
+     * Images that are already smaller are decoded at their original size.
+     *
+     * @param resolver ContentResolver used to open the image.
+     * @param uri The Uri of the image.
+     * @param longEdge The size of the longest edge of the decoded bitmap.
+     * @return The decoded bitmap, never {@code null}.
+     * @throws java.io.FileNotFoundException If the image can't be opened.
+     * @throws IOException If the image format isn't supported or it can't be decoded.
+     */
+    Bitmap decode(@NonNull ContentResolver resolver, @NonNull Uri uri, int longEdge) throws IOException;
+}
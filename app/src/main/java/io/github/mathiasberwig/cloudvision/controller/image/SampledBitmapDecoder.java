@@ -0,0 +1,100 @@
+package io.github.mathiasberwig.cloudvision.controller.image;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@link ResizeBackend} that decodes the whole image with {@link BitmapFactory} using a power of 2
+ * {@code inSampleSize}, then scales it to the exact size with bilinear filtering (see
+ * {@link ImageResizer#scale(Bitmap, int, int, BitmapPool)}). It supports every format of
+ * {@link BitmapFactory}, but needs to open the image twice. Both the subsampled and the scaled
+ * bitmaps reuse the memory of bitmaps of the {@link BitmapPool} (the first one with
+ * {@code inBitmap}).
+ *
+ * @see <a href="http://developer.android.com/intl/pt-br/training/displaying-bitmaps/load-bitmap.html#load-bitmap">
+ *     Android Developers: Loading Large Bitmaps Efficiently</a>
+ */
+public class SampledBitmapDecoder implements ResizeBackend {
+
+    private final BitmapPool pool;
+    private final Bitmap.Config config;
+
+    /**
+     * Default (and main) constructor.
+     *
+     * @param pool The pool used to allocate the bitmaps.
+     * @param config The config of the decoded bitmap.
+     */
+    public SampledBitmapDecoder(@NonNull BitmapPool pool, @NonNull Bitmap.Config config) {
+        this.pool = pool;
+        this.config = config;
+    }
+
+    @Override
+    public String getName() {
+        return "BitmapFactory";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public Bitmap decode(@NonNull ContentResolver resolver, @NonNull Uri uri, int longEdge) throws IOException {
+        // First decode with inJustDecodeBounds=true to check dimensions
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(resolver, uri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) throw new IOException("Unknown image format");
+
+        final float scale = ImageResizer.getScale(options.outWidth, options.outHeight, longEdge);
+        final int outWidth = Math.max(1, Math.round(options.outWidth * scale));
+        final int outHeight = Math.max(1, Math.round(options.outHeight * scale));
+
+        // Then decode the bitmap with inSampleSize set, into a pooled bitmap large enough for it
+        final int sampleSize = ImageResizer.getSampleSize(scale);
+        options.inSampleSize = sampleSize;
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = config;
+        options.inMutable = true;
+        options.inBitmap = pool.get((options.outWidth + sampleSize - 1) / sampleSize,
+                (options.outHeight + sampleSize - 1) / sampleSize, config);
+
+        Bitmap sampled;
+        try {
+            sampled = decodeStream(resolver, uri, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder refused to reuse the bitmap
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            sampled = decodeStream(resolver, uri, options);
+        }
+        if (sampled == null) {
+            if (options.inBitmap != null) pool.put(options.inBitmap);
+            throw new IOException("Unable to decode " + uri);
+        }
+
+        // Finally scale it to the exact size
+        if (sampled.getWidth() == outWidth && sampled.getHeight() == outHeight) return sampled;
+
+        final Bitmap scaled = ImageResizer.scale(sampled, outWidth, outHeight, pool);
+        pool.put(sampled);
+        return scaled;
+    }
+
+    private static Bitmap decodeStream(ContentResolver resolver, Uri uri, BitmapFactory.Options options) throws IOException {
+        final InputStream inputStream = resolver.openInputStream(uri);
+        try {
+            return BitmapFactory.decodeStream(inputStream, null, options);
+        } finally {
+            if (inputStream != null) inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package io.github.mathiasberwig.cloudvision.controller.image;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * <p>{@link ResizeBackend} that decodes images of any size into a bitmap of exact size. The source
+ * is opened just once and read tile by tile with a {@link BitmapRegionDecoder}; each tile is
+ * subsampled while decoded (into the same reused tile bitmap) and then scaled into the output
+ * bitmap, so the memory used is the output plus a single tile. Both come from a {@link BitmapPool}.</p>
+ *
+ * <p>{@link BitmapRegionDecoder} only supports JPEG and PNG images. Other formats make
+ * {@link #decode(ContentResolver, Uri, int)} throw an {@link IOException}.</p>
+ */
+public class TiledBitmapDecoder implements ResizeBackend {
+
+    /**
+     * Max width and height (in decoded pixels) of each tile.
+     */
+    private static final int TILE_SIZE = 512;
+
+    private final BitmapPool pool;
+    private final Bitmap.Config config;
+
+    /**
+     * Default (and main) constructor.
+     *
+     * @param pool The pool used to allocate the output and the tile.
+     * @param config The config of the decoded bitmap.
+     */
+    public TiledBitmapDecoder(@NonNull BitmapPool pool, @NonNull Bitmap.Config config) {
+        this.pool = pool;
+        this.config = config;
+    }
+
+    @Override
+    public String getName() {
+        return "BitmapRegionDecoder";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public Bitmap decode(@NonNull ContentResolver resolver, @NonNull Uri uri, int longEdge) throws IOException {
+        final ParcelFileDescriptor fileDescriptor = resolver.openFileDescriptor(uri, "r");
+        if (fileDescriptor == null) throw new FileNotFoundException("Unable to open " + uri);
+
+        try {
+            final BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(fileDescriptor.getFileDescriptor(), false);
+            try {
+                return decode(decoder, longEdge);
+            } finally {
+                decoder.recycle();
+            }
+        } finally {
+            fileDescriptor.close();
+        }
+    }
+
+    /**
+     * Decodes all tiles of {@code decoder} into a new bitmap.
+     *
+     * @param decoder The decoder of the source image.
+     * @param longEdge The size of the longest edge of the output.
+     * @return The decoded bitmap.
+     * @throws IOException If any tile can't be decoded.
+     */
+    private Bitmap decode(BitmapRegionDecoder decoder, int longEdge) throws IOException {
+        final int width = decoder.getWidth();
+        final int height = decoder.getHeight();
+
+        final float scale = ImageResizer.getScale(width, height, longEdge);
+        final int outWidth = Math.max(1, Math.round(width * scale));
+        final int outHeight = Math.max(1, Math.round(height * scale));
+
+        // Each tile is subsampled by the largest power of 2 that keeps it larger than the output,
+        // so the decoder does most of the work and the final scale keeps the quality
+        final int sampleSize = ImageResizer.getSampleSize(scale);
+
+        // All tiles are decoded into the same bitmap. The edge tiles are smaller, and use just the
+        // top left corner of it.
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = config;
+        options.inMutable = true;
+        options.inBitmap = pool.get(Math.min(TILE_SIZE, ceil(width, sampleSize)),
+                Math.min(TILE_SIZE, ceil(height, sampleSize)), config);
+
+        final Bitmap output = pool.get(outWidth, outHeight, config);
+        final Canvas canvas = new Canvas(output);
+        final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+
+        final int tileSourceSize = TILE_SIZE * sampleSize;
+        final Rect region = new Rect();
+        final Rect source = new Rect();
+        final RectF destination = new RectF();
+
+        // The output goes back to the pool if any tile fails, even by a RuntimeException
+        boolean decoded = false;
+        try {
+            for (int top = 0; top < height; top += tileSourceSize) {
+                for (int left = 0; left < width; left += tileSourceSize) {
+                    region.set(left, top, Math.min(left + tileSourceSize, width), Math.min(top + tileSourceSize, height));
+
+                    final Bitmap tile = decodeRegion(decoder, region, options);
+                    if (tile == null) throw new IOException("Unable to decode the region " + region);
+
+                    source.set(0, 0, Math.min(tile.getWidth(), ceil(region.width(), sampleSize)),
+                            Math.min(tile.getHeight(), ceil(region.height(), sampleSize)));
+                    destination.set(region.left * scale, region.top * scale, region.right * scale, region.bottom * scale);
+                    canvas.drawBitmap(tile, source, destination, paint);
+                    options.inBitmap = tile;
+                }
+            }
+            decoded = true;
+            return output;
+        } finally {
+            if (options.inBitmap != null) pool.put(options.inBitmap);
+            if (!decoded) pool.put(output);
+        }
+    }
+
+    /**
+     * Decodes {@code region} into {@code options.inBitmap}. If the decoder refuses to reuse it, the
+     * tile is given back to the pool and the region is decoded into a new bitmap.
+     */
+    private Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect region, BitmapFactory.Options options) {
+        try {
+            return decoder.decodeRegion(region, options);
+        } catch (IllegalArgumentException e) {
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            return decoder.decodeRegion(region, options);
+        }
+    }
+
+    private static int ceil(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+}
@@ -0,0 +1,187 @@
+package io.github.mathiasberwig.cloudvision.controller.service;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.github.mathiasberwig.cloudvision.controller.CancellationToken;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * <p>Group of HTTP calls executed at the same time with the asynchronous API of OkHttp. The thread
+ * that creates the group enqueues the first calls, then waits all of them (and the calls they
+ * enqueue) with {@link #await(long)}.</p>
+ *
+ * <p>The results are delivered by {@link Query#onResult(Object)} one at a time, so a query can
+ * update the info shared with the others without further synchronization. Once the group is
+ * closed, the calls still running are aborted and their results are ignored.</p>
+ */
+public class CallGroup {
+    private static final String TAG = CallGroup.class.getName();
+
+    private final OkHttpClient client;
+    private final CancellationToken cancellationToken;
+
+    private final Object lock = new Object();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final List<Call> calls = new ArrayList<>();
+
+    /**
+     * Number of calls not delivered yet, plus one while the creator enqueues the first calls (so
+     * the group isn't finished by a call that completes before the next one is enqueued).
+     */
+    private int pendingCalls = 1;
+    private boolean closed;
+
+    /**
+     * Default (and main) constructor.
+     *
+     * @param client The client that executes the calls.
+     * @param cancellationToken The token of the analysis. The calls are aborted if it's cancelled.
+     */
+    public CallGroup(OkHttpClient client, CancellationToken cancellationToken) {
+        this.client = client;
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Enqueues a call of the group. It does nothing if the group is already closed.
+     *
+     * @param request The request of the call.
+     * @param query Parses the response and handles its result.
+     */
+    public <T> void enqueue(Request request, final Query<T> query) {
+        final Call call;
+        synchronized (lock) {
+            if (closed) return;
+
+            call = cancellationToken.register(client.newCall(request));
+            calls.add(call);
+            pendingCalls++;
+        }
+
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                if (!call.isCanceled()) Log.e(TAG, e.getMessage(), e);
+                deliver(query, null);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                // The response is parsed outside the lock, so the other calls aren't blocked
+                T result = null;
+                try {
+                    result = query.parse(response);
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                } finally {
+                    response.close();
+                }
+                deliver(query, result);
+            }
+        });
+    }
+
+    /**
+     * Runs {@code task} like the results of the calls are delivered (one at a time), so it can
+     * handle info that needs no call (like info found on a cache) without racing with them. It
+     * does nothing if the group is already closed or the analysis is cancelled.
+     *
+     * @param task The task. It may enqueue calls and update the info shared with the queries.
+     */
+    public void post(Runnable task) {
+        synchronized (lock) {
+            if (closed || cancellationToken.isCancelled()) return;
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Waits until all calls finish, up to {@code millis}. Then the group is closed: the calls still
+     * running are aborted and no more results are delivered.
+     *
+     * @param millis The max time to wait (the time budget of the group).
+     * @return {@code true} if all calls finished in time.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public boolean await(long millis) throws InterruptedException {
+        try {
+            synchronized (lock) {
+                if (--pendingCalls == 0) return true;
+            }
+            return finished.await(millis, TimeUnit.MILLISECONDS);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes the group, aborting the calls still running.
+     */
+    private void close() {
+        final List<Call> running;
+        synchronized (lock) {
+            closed = true;
+            running = new ArrayList<>(calls);
+            calls.clear();
+        }
+        for (Call call : running) {
+            call.cancel();
+        }
+    }
+
+    /**
+     * Delivers the result of a call, unless the group is closed or the analysis is cancelled.
+     */
+    private <T> void deliver(Query<T> query, T result) {
+        synchronized (lock) {
+            try {
+                if (!closed && !cancellationToken.isCancelled()) query.onResult(result);
+            } catch (RuntimeException e) {
+                Log.e(TAG, e.getMessage(), e);
+            } finally {
+                // The calls enqueued by onResult were already counted
+                if (--pendingCalls == 0) finished.countDown();
+            }
+        }
+    }
+
+    /**
+     * A call of the group.
+     *
+     * @param <T> The type of the result.
+     */
+    public static abstract class Query<T> {
+
+        /**
+         * Parses the response of the call. Called on a thread of OkHttp.
+         *
+         * @param response The response. It's closed after this method returns.
+         * @return The result, or {@code null} if the response has none.
+         * @throws IOException If the response can't be read.
+         */
+        protected abstract T parse(Response response) throws IOException;
+
+        /**
+         * Handles the result of the call. Called on a thread of OkHttp, but never at the same time
+         * as another query of the group, so it may enqueue the next calls and update shared info.
+         *
+         * @param result The result of {@link #parse(Response)}, or {@code null} if the call failed.
+         */
+        protected abstract void onResult(T result);
+    }
+}
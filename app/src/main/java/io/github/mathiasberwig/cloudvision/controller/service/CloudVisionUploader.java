@@ -1,11 +1,9 @@
 package io.github.mathiasberwig.cloudvision.controller.service;
 
-import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
@@ -13,70 +11,130 @@ import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.vision.v1.Vision;
-import com.google.api.services.vision.v1.VisionRequestInitializer;
-import com.google.api.services.vision.v1.model.AnnotateImageRequest;
 import com.google.api.services.vision.v1.model.AnnotateImageResponse;
 import com.google.api.services.vision.v1.model.BatchAnnotateImagesRequest;
+import com.google.api.services.vision.v1.model.BatchAnnotateImagesResponse;
 import com.google.api.services.vision.v1.model.EntityAnnotation;
 import com.google.api.services.vision.v1.model.Feature;
-import com.google.api.services.vision.v1.model.Image;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
+import io.github.mathiasberwig.cloudvision.CloudVision;
 import io.github.mathiasberwig.cloudvision.R;
+import io.github.mathiasberwig.cloudvision.controller.CancellationToken;
+import io.github.mathiasberwig.cloudvision.controller.image.BitmapPool;
+import io.github.mathiasberwig.cloudvision.controller.image.BudgetedCompressor;
+import io.github.mathiasberwig.cloudvision.controller.image.ImageEncoder;
+import io.github.mathiasberwig.cloudvision.controller.image.ImageHeader;
+import io.github.mathiasberwig.cloudvision.controller.image.ImageResizer;
+import io.github.mathiasberwig.cloudvision.controller.image.PerceptualHash;
+import io.github.mathiasberwig.cloudvision.controller.vision.AnnotateRequestContent;
+import io.github.mathiasberwig.cloudvision.controller.vision.CallPolicy;
+import io.github.mathiasberwig.cloudvision.controller.vision.CallTrace;
+import io.github.mathiasberwig.cloudvision.controller.vision.FeatureProfile;
+import io.github.mathiasberwig.cloudvision.controller.vision.ImageBuffer;
+import io.github.mathiasberwig.cloudvision.controller.vision.ImageSource;
+import io.github.mathiasberwig.cloudvision.controller.vision.OkHttpTransport;
+import io.github.mathiasberwig.cloudvision.controller.vision.RequestDigest;
+import io.github.mathiasberwig.cloudvision.data.cache.DiskCache;
+import io.github.mathiasberwig.cloudvision.data.cache.NearDuplicateIndex;
 import io.github.mathiasberwig.cloudvision.data.model.LabelInfo;
 import io.github.mathiasberwig.cloudvision.data.model.LandmarkInfo;
 import io.github.mathiasberwig.cloudvision.data.model.LogoInfo;
+import okhttp3.OkHttpClient;
 
 /**
- * <p>IntentService that communicates with Google Cloud Vision API. It sends an image to the REST service
+ * <p>Service that communicates with Google Cloud Vision API. It sends an image to the REST service
  * and gets a response with annotations about the image. </p>
  *
- * <p>To use this class you first need to set the {@link #CLOUD_VISION_API_KEY}.</p>
+ * <p>To use this class you first need to set the {@code google_apis_key} string resource. It's
+ * used by the {@link Vision} client shared by the app (see {@link CloudVision#getVision()}).</p>
  *
- * <p>There is a default initializer to create a new Intent and start this IntentService, but you
+ * <p>There is a default initializer to create a new Intent and start this service, but you
  * can personalize and create your custom call just passing the extras:
  * <li>{@link #EXTRA_LABEL_DETECTION}</li>
  * <li>{@link #EXTRA_LOGO_DETECTION}</li>
  * <li>{@link #EXTRA_LANDMARK_DETECTION}</li>
- * <li>{@link #EXTRA_IMAGE_PROPERTIES}</li>
  * <li>{@link #EXTRA_MAX_LABELS}</li>
  * <li>{@link #EXTRA_MAX_LOGOS}</li>
  * <li>{@link #EXTRA_MAX_LANDMARKS}</li>
- * <li>{@link #EXTRA_MAX_IMAGE_PROPERTIES}</li>
- * <li>{@link #EXTRA_IMAGE_URI}</li>
- * <li>{@link #EXTRA_IMAGE_QUALITY}</li></p>
+ * <li>{@link #EXTRA_IMAGE_URI} or {@link #EXTRA_IMAGE_URIS}</li>
+ * <li>{@link #EXTRA_IMAGE_DIGEST} or {@link #EXTRA_IMAGE_DIGESTS}</li>
+ * <li>{@link #EXTRA_IMAGE_QUALITY}</li>
+ * <li>{@link #EXTRA_IMAGE_SIZE}</li>
+ * <li>{@link #EXTRA_PAYLOAD_BUDGET}</li>
+ * <li>{@link #EXTRA_IMAGE_FORMAT}</li>
+ * <li>{@link #EXTRA_DUPLICATE_DISTANCE}</li>
+ * <li>{@link #EXTRA_ANALYSIS_ID}</li></p>
  *
  * <p>The results of the query are sent as extras ({@link #EXTRA_RESULT_ERROR},
  * {@link #EXTRA_RESULT_LABELS}, {@link #EXTRA_RESULT_LOGO}, {@link #EXTRA_RESULT_LANDMARK}) and
- * broadcasted with the action {@link #ACTION_DONE}.</p>
+ * broadcasted with the action {@link #ACTION_DONE}, once for each image (with its
+ * {@link #EXTRA_IMAGE_URI}, {@link #EXTRA_UPLOAD_ID}, {@link #EXTRA_BATCH_INDEX} and
+ * {@link #EXTRA_BATCH_SIZE}).</p>
+ *
+ * <p>The images of an upload are packed in as few calls as possible, each one with up to
+ * {@link #MAX_REQUESTS_PER_CALL} {@code AnnotateImageRequest}s.</p>
+ *
+ * <p>Uploads are handled at the same time, one on each core. While a call is sent on
+ * {@link #NETWORK_EXECUTOR}, the images of the next one are decoded and compressed.</p>
+ *
+ * <p>The UI shows every result with annotations of an upload (see
+ * {@link #hasAnnotations(Intent)}), so the copies of those images are kept for it. The copies of
+ * the images without annotations are deleted once their results are broadcasted.</p>
+ *
+ * <p>When the {@link CancellationToken} of the upload is cancelled, the images left are skipped,
+ * the calls are aborted, no result is broadcasted and the copies of the images are deleted.</p>
  */
-public class CloudVisionUploader extends IntentService {
+public class CloudVisionUploader extends ConcurrentIntentService {
     private static final String TAG = CloudVisionUploader.class.getName();
 
-    private static String CLOUD_VISION_API_KEY;
-
     // Parameters Extras
     public static final String EXTRA_LABEL_DETECTION = "EXTRA_LABEL_DETECTION";
     public static final String EXTRA_LOGO_DETECTION = "EXTRA_LOGO_DETECTION";
     public static final String EXTRA_LANDMARK_DETECTION = "EXTRA_LANDMARK_DETECTION";
-    public static final String EXTRA_IMAGE_PROPERTIES = "EXTRA_IMAGE_PROPERTIES";
     public static final String EXTRA_MAX_LABELS = "pref_max_labels";
     public static final String EXTRA_MAX_LOGOS = "EXTRA_MAX_LOGOS";
     public static final String EXTRA_MAX_LANDMARKS = "EXTRA_MAX_LANDMARKS";
-    public static final String EXTRA_MAX_IMAGE_PROPERTIES = "EXTRA_MAX_IMAGE_PROPERTIES";
     public static final String EXTRA_IMAGE_URI = "EXTRA_IMAGE_URI";
+    public static final String EXTRA_IMAGE_URIS = "EXTRA_IMAGE_URIS";
+    public static final String EXTRA_IMAGE_DIGEST = "EXTRA_IMAGE_DIGEST";
+    public static final String EXTRA_IMAGE_DIGESTS = "EXTRA_IMAGE_DIGESTS";
     public static final String EXTRA_IMAGE_QUALITY = "pref_image_quality";
+    public static final String EXTRA_IMAGE_SIZE = "pref_image_size";
+    public static final String EXTRA_PAYLOAD_BUDGET = "pref_payload_budget";
+    public static final String EXTRA_IMAGE_FORMAT = "pref_image_format";
+    public static final String EXTRA_DUPLICATE_DISTANCE = "pref_duplicate_distance";
+
+    /**
+     * Extra that stores the id of the {@link CancellationToken} of the analysis. It's copied to the
+     * results.
+     */
+    public static final String EXTRA_ANALYSIS_ID = "EXTRA_ANALYSIS_ID";
 
     // Response Extras
     /**
@@ -99,192 +157,857 @@ public class CloudVisionUploader extends IntentService {
      */
     public static final String EXTRA_RESULT_LANDMARK = "EXTRA_RESULT_LANDMARK";
 
+    /**
+     * Extra that stores the position of the image in {@link #EXTRA_IMAGE_URIS}.
+     */
+    public static final String EXTRA_BATCH_INDEX = "EXTRA_BATCH_INDEX";
+
+    /**
+     * Extra that stores the number of images of the upload.
+     */
+    public static final String EXTRA_BATCH_SIZE = "EXTRA_BATCH_SIZE";
+
+    /**
+     * Extra that stores the id of the analysis that uploaded the image, the one of its copy (see
+     * {@link #getImageCopy(Context, long, int)}). It stays with the result when the UI moves it to
+     * an analysis of its own.
+     */
+    public static final String EXTRA_UPLOAD_ID = "EXTRA_UPLOAD_ID";
+
     // Default values
     private static final int DEFAULT_MAX_LABELS = 50;
     private static final int DEFAULT_MAX_LOGOS = 5;
     private static final int DEFAULT_MAX_LANDMARKS = 1;
-    private static final int DEFAULT_MAX_IMAGE_PROPERTIES = 5;
     private static final int DEFAULT_IMAGE_QUALITY = 75;
+    private static final int DEFAULT_IMAGE_SIZE = 1600;
+    private static final int DEFAULT_PAYLOAD_BUDGET = 0;
+    private static final String DEFAULT_IMAGE_FORMAT = "jpeg";
+    /**
+     * Near-duplicates are off by default: a different photo within the distance would get the
+     * results of the other one without notice, so the user opts in on the settings.
+     */
+    private static final int DEFAULT_DUPLICATE_DISTANCE = 0;
+
+    /**
+     * Max size of a JPEG sent without being compressed again, when there is no payload budget.
+     */
+    private static final long DEFAULT_PASS_THROUGH_SIZE = 512 * 1024;
+
+    /**
+     * Config of the decoded bitmaps. Cloud Vision ignores the alpha channel, so 16 bits per pixel
+     * are enough and use half the memory of {@code ARGB_8888}.
+     */
+    private static final Bitmap.Config DECODE_CONFIG = Bitmap.Config.RGB_565;
+
+    /**
+     * Size of the image decoded just to calculate its perceptual hash, when the original image is
+     * sent without being compressed again.
+     */
+    private static final int HASH_IMAGE_SIZE = 256;
+
+    /**
+     * Max number of {@code AnnotateImageRequest}s in a single call to Cloud Vision.
+     */
+    private static final int MAX_REQUESTS_PER_CALL = 16;
+
+    /**
+     * The filename format of the copies of the images made for an analysis, with the id of its
+     * {@link CancellationToken} and the position of the image on the upload.
+     */
+    private static final String IMAGE_COPY_NAME = "cloud_vision_%d_%d.jpg";
+
+    /**
+     * Writes the compressed images back to their files while they are uploaded. A single thread
+     * keeps the writes in order.
+     */
+    private static final ExecutorService PERSISTENCE_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    /**
+     * Number of uploads decoded and compressed at the same time.
+     */
+    private static final int WORKER_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Number of calls to Cloud Vision sent at the same time. It's below the number of idle
+     * connections kept by the OkHttp client, so they are all reused.
+     */
+    private static final int NETWORK_THREADS = 4;
+
+    /**
+     * Max number of calls sent or waiting to be sent. The workers wait when it's reached, so the
+     * compressed images don't pile up in memory while the network is slow.
+     */
+    private static final int MAX_PENDING_CALLS = NETWORK_THREADS + 2;
+
+    /**
+     * Sends the calls to Cloud Vision, so the workers can prepare the next one meanwhile.
+     */
+    private static final ExecutorService NETWORK_EXECUTOR = Executors.newFixedThreadPool(NETWORK_THREADS);
+
+    /**
+     * Permits for the calls that are sent or waiting on {@link #NETWORK_EXECUTOR}.
+     */
+    private static final Semaphore PENDING_CALLS = new Semaphore(MAX_PENDING_CALLS);
+
+    /**
+     * Max time of a call to Cloud Vision, including its retries.
+     */
+    private static final long ANNOTATE_DEADLINE_MILLIS = 45 * 1000;
+
+    /**
+     * Max number of attempts of a call to Cloud Vision.
+     */
+    private static final int ANNOTATE_MAX_ATTEMPTS = 3;
+
+    /**
+     * Policy of the calls to Cloud Vision: retried on transient errors and hedged when slow.
+     */
+    private static final CallPolicy ANNOTATE_POLICY = new CallPolicy(ANNOTATE_DEADLINE_MILLIS, ANNOTATE_MAX_ATTEMPTS, true);
 
     public static final String ACTION_DONE = "io.github.mathiasberwig.cloudvision.controller.service.CloudVisionUploader.ACTION_DONE";
 
     public CloudVisionUploader() {
-        super(TAG);
+        super(TAG, WORKER_THREADS);
+    }
+
+    /**
+     * Starts this service to perform action Foo with the given parameters. If all workers of the
+     * service are busy this action will be queued.
+     *
+     * @param imageDigest The digest of the image bytes (see {@link RequestDigest}), or {@code null}
+     *                    to read the image to calculate it.
+     * @see ConcurrentIntentService
+     */
+    public static void start(Context context, Uri image, String imageDigest, CancellationToken cancellationToken) {
+        Intent intent = createIntent(context, cancellationToken);
+        intent.putExtra(EXTRA_IMAGE_URI, image);
+        intent.putExtra(EXTRA_IMAGE_DIGEST, imageDigest);
+        context.startService(intent);
     }
 
     /**
-     * Starts this service to perform action Foo with the given parameters. If
-     * the service is already performing a task this action will be queued.
+     * Starts this service to annotate all {@code images}. They are sent in as few calls as
+     * possible, and the result of each one is broadcasted separately.
      *
-     * @see IntentService
+     * @param imageDigests The digests of the images, in the same order, with {@code null} for the
+     *                     ones that must be read to calculate it.
+     * @see ConcurrentIntentService
      */
-    public static void start(Context context, Uri image) {
+    public static void start(Context context, ArrayList<Uri> images, ArrayList<String> imageDigests,
+                             CancellationToken cancellationToken) {
+        Intent intent = createIntent(context, cancellationToken);
+        intent.putParcelableArrayListExtra(EXTRA_IMAGE_URIS, images);
+        intent.putStringArrayListExtra(EXTRA_IMAGE_DIGESTS, imageDigests);
+        context.startService(intent);
+    }
+
+    /**
+     * Creates an intent for this service with the parameters set on the preferences.
+     */
+    private static Intent createIntent(Context context, CancellationToken cancellationToken) {
         Intent intent = new Intent(context, CloudVisionUploader.class);
+        intent.putExtra(EXTRA_ANALYSIS_ID, cancellationToken.getId());
 
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
 
-        intent.putExtra(EXTRA_IMAGE_URI, image);
         intent.putExtra(EXTRA_IMAGE_QUALITY, sp.getInt(EXTRA_IMAGE_QUALITY, DEFAULT_IMAGE_QUALITY));
+        intent.putExtra(EXTRA_IMAGE_SIZE, sp.getInt(EXTRA_IMAGE_SIZE, DEFAULT_IMAGE_SIZE));
+        intent.putExtra(EXTRA_PAYLOAD_BUDGET, sp.getInt(EXTRA_PAYLOAD_BUDGET, DEFAULT_PAYLOAD_BUDGET));
+        intent.putExtra(EXTRA_IMAGE_FORMAT, sp.getString(EXTRA_IMAGE_FORMAT, DEFAULT_IMAGE_FORMAT));
+        intent.putExtra(EXTRA_DUPLICATE_DISTANCE, sp.getInt(EXTRA_DUPLICATE_DISTANCE, DEFAULT_DUPLICATE_DISTANCE));
         intent.putExtra(EXTRA_LABEL_DETECTION, sp.getBoolean(EXTRA_LABEL_DETECTION, true));
         intent.putExtra(EXTRA_LOGO_DETECTION, sp.getBoolean(EXTRA_LOGO_DETECTION, true));
         intent.putExtra(EXTRA_LANDMARK_DETECTION, sp.getBoolean(EXTRA_LANDMARK_DETECTION, true));
-        intent.putExtra(EXTRA_IMAGE_PROPERTIES, sp.getBoolean(EXTRA_IMAGE_PROPERTIES, false));
         intent.putExtra(EXTRA_MAX_LABELS, DEFAULT_MAX_LABELS);
         intent.putExtra(EXTRA_MAX_LOGOS, sp.getInt(EXTRA_MAX_LOGOS, DEFAULT_MAX_LOGOS));
         intent.putExtra(EXTRA_MAX_LANDMARKS, sp.getInt(EXTRA_MAX_LANDMARKS, DEFAULT_MAX_LANDMARKS));
 
-        // Set the Cloud Vision API Key from resources
-        CLOUD_VISION_API_KEY = context.getString(R.string.google_apis_key);
-
-        context.startService(intent);
+        return intent;
     }
 
     @Override
     protected void onHandleIntent(Intent intent) {
-        if (intent.getExtras() == null || CLOUD_VISION_API_KEY == null) {
-            Log.e(TAG, "onHandleIntent: intent.getExtras() or CLOUD_VISION_API_KEY is null");
+        if (intent.getExtras() == null) {
+            Log.e(TAG, "onHandleIntent: intent.getExtras() is null");
             return;
         }
 
-        // Get the parameters to call Cloud Vision
+        // Get the parameters to call Cloud Vision, that are the same for all images
         final Bundle options = intent.getExtras();
+        final UploadSettings settings = new UploadSettings(options);
+        final List<Uri> imageUris = getImageUris(options);
+        final List<String> imageDigests = getImageDigests(options);
+        final CancellationToken token = CancellationToken.get(options.getLong(EXTRA_ANALYSIS_ID, CancellationToken.NO_ID));
+        final UploadProgress progress = new UploadProgress(imageUris.size());
 
-        // Creates the result Intent that will be sent as broadcast
-        final Intent result = new Intent(ACTION_DONE);
+        // Setup the Request. Each image is base64 encoded while the request is written to the
+        // connection, so we never hold more than the compressed bytes in memory.
+        final JsonFactory jsonFactory = ((CloudVision) getApplication()).getVision().getJsonFactory();
+        AnnotateRequestContent content = new AnnotateRequestContent(jsonFactory);
+        List<PendingImage> batch = new ArrayList<>();
+        final List<Future<?>> calls = new ArrayList<>();
 
-        // Copy image URI from received intent to the result intent (we might need it on another moment)
-        result.putExtra(EXTRA_IMAGE_URI, options.getParcelable(EXTRA_IMAGE_URI));
+        for (int i = 0; i < imageUris.size() && !token.isCancelled(); i++) {
+            // Send the pending images first if the requests of this one may not fit in the call
+            if (content.getRequestCount() + settings.featureGroups.size() > MAX_REQUESTS_PER_CALL) {
+                calls.add(submitBatch(content, batch, progress, settings, token));
+                content = new AnnotateRequestContent(jsonFactory);
+                batch = new ArrayList<>();
+            }
 
-        Bitmap bitmap;
+            final PendingImage image = new PendingImage(imageUris.get(i), i);
+            if (i < imageDigests.size()) image.digest = imageDigests.get(i);
+            image.copy = isImageCopy(this, image.uri, token.getId(), i);
+            try {
+                if (prepareImage(image, content, settings, token)) {
+                    batch.add(image);
+                } else {
+                    broadcastResult(image, progress, null, token);
+                }
+            } catch (IOException e) {
+                broadcastResult(image, progress, e, token);
+            }
+        }
+
+        if (!batch.isEmpty() && !token.isCancelled()) {
+            calls.add(submitBatch(content, batch, progress, settings, token));
+            batch = Collections.emptyList();
+        }
+
+        // The service is stopped when this method returns, so wait for the calls to finish
+        for (Future<?> call : calls) {
+            awaitBatch(call);
+        }
+
+        if (token.isCancelled()) {
+            // The images of the batch that wasn't sent may still be written, wait for them
+            for (PendingImage image : batch) {
+                awaitPersistenceQuietly(image);
+            }
+            for (int i = 0; i < imageUris.size(); i++) {
+                deleteImageCopy(this, imageUris.get(i), token.getId(), i);
+            }
+        }
+    }
+
+    /**
+     * Gets the file where an image is copied before being uploaded. Each analysis has its own
+     * files, so the copies of a cancelled analysis are deleted without touching the ones of the
+     * next.
+     *
+     * @param context Context used to get the app's files directory.
+     * @param analysisId The id of the {@link CancellationToken} of the analysis.
+     * @param position The position of the image on the upload.
+     * @return The file on the app's directory with {@link #IMAGE_COPY_NAME}.
+     */
+    public static File getImageCopy(Context context, long analysisId, int position) {
+        return new File(context.getFilesDir(), String.format(Locale.US, IMAGE_COPY_NAME, analysisId, position));
+    }
+
+    /**
+     * Checks if {@code uri} is the copy of an image made for an analysis (see
+     * {@link #getImageCopy(Context, long, int)}). The other images are the user's.
+     *
+     * @param context Context used to get the app's files directory.
+     * @param uri The Uri of the image.
+     * @param analysisId The id of the {@link CancellationToken} of the analysis.
+     * @param position The position of the image on the upload.
+     * @return {@code true} if it's the copy.
+     */
+    public static boolean isImageCopy(Context context, Uri uri, long analysisId, int position) {
+        return uri != null && uri.equals(Uri.fromFile(getImageCopy(context, analysisId, position)));
+    }
+
+    /**
+     * Deletes the copy of an image made for an analysis. Nothing is deleted if {@code uri} isn't
+     * that copy (like an image of the user that couldn't be copied).
+     *
+     * @param context Context used to get the app's files directory.
+     * @param uri The Uri of the image.
+     * @param analysisId The id of the {@link CancellationToken} of the analysis.
+     * @param position The position of the image on the upload.
+     */
+    public static void deleteImageCopy(Context context, Uri uri, long analysisId, int position) {
+        if (isImageCopy(context, uri, analysisId, position) && new File(uri.getPath()).delete()) {
+            Log.d(TAG, "deleted the copy of the image " + uri.getLastPathSegment());
+        }
+    }
+
+    /**
+     * Gets the images of the upload: all of {@link #EXTRA_IMAGE_URIS}, or just
+     * {@link #EXTRA_IMAGE_URI}.
+     *
+     * @param options The extras received by this service.
+     * @return The Uris of the images. It may have a {@code null} Uri, that results in an error.
+     */
+    private static List<Uri> getImageUris(Bundle options) {
+        final ArrayList<Uri> imageUris = options.getParcelableArrayList(EXTRA_IMAGE_URIS);
+        if (imageUris != null && !imageUris.isEmpty()) return imageUris;
+
+        return Collections.singletonList((Uri) options.getParcelable(EXTRA_IMAGE_URI));
+    }
+
+    /**
+     * Gets the digests of the images of the upload, calculated while they were copied: all of
+     * {@link #EXTRA_IMAGE_DIGESTS}, or just {@link #EXTRA_IMAGE_DIGEST}.
+     *
+     * @param options The extras received by this service.
+     * @return The digests, in the same order of the images. It may be shorter than the images or
+     * have {@code null} digests, that are calculated by reading the image.
+     */
+    private static List<String> getImageDigests(Bundle options) {
+        final ArrayList<String> imageDigests = options.getStringArrayList(EXTRA_IMAGE_DIGESTS);
+        if (imageDigests != null) return imageDigests;
+
+        return Collections.singletonList(options.getString(EXTRA_IMAGE_DIGEST));
+    }
 
+    /**
+     * Looks for the response of {@code image} on the caches. If there is none, adds the requests of
+     * the image to {@code content}: one {@code AnnotateImageRequest} for each group of
+     * {@link UploadSettings#featureGroups}, or a single one with the original image.
+     *
+     * @param image The image.
+     * @param content The request where the image will be added.
+     * @param settings The settings of the upload.
+     * @param token The token of the analysis.
+     * @return {@code true} if the image was added to {@code content}; {@code false} if its response
+     * was found on the caches.
+     * @throws IOException If the image can't be read, or the analysis was cancelled.
+     */
+    private boolean prepareImage(PendingImage image, AnnotateRequestContent content, UploadSettings settings,
+                                 CancellationToken token) throws IOException {
+        if (image.uri == null) throw new FileNotFoundException();
+
+        // Look for the response of a previous request with the same image and settings. The digest
+        // of the image is usually calculated while it's copied, so it isn't read again here.
+        if (image.digest == null) image.digest = new RequestDigest().update(getContentResolver(), image.uri).toHexString();
+        final DiskCache responseCache = ((CloudVision) getApplication()).getResponseCache();
+        image.cacheKey = new RequestDigest()
+                .update(image.digest)
+                .update(settings.key)
+                .toHexString();
+        image.response = getCachedResponse(responseCache, image.cacheKey);
+        if (image.response != null) {
+            Log.d(TAG, "using the cached response " + image.cacheKey);
+            return false;
+        }
+
+        // Check the header of the image: a JPEG that is already small enough is sent as it is,
+        // without compressing it again (it's decoded just in a small size, to be hashed)
+        final ImageHeader header = ImageHeader.read(getContentResolver(), image.uri);
+        final long passThroughSize = settings.payloadBudget > 0 ? settings.payloadBudget : DEFAULT_PASS_THROUGH_SIZE;
+        final boolean passThrough = header.canPassThrough(settings.featureGroups.firstKey(), passThroughSize);
+
+        // Without the near-duplicate check, the original isn't decoded at all
+        final boolean hashed = settings.duplicateDistance > 0;
+        final BitmapPool pool = ((CloudVision) getApplication()).getBitmapPool();
+        Bitmap bitmap = null;
+        if (!passThrough || hashed) {
+            bitmap = ImageResizer.createDefault(pool, DECODE_CONFIG).decode(getContentResolver(), image.uri,
+                    passThrough ? HASH_IMAGE_SIZE : settings.featureGroups.firstKey());
+
+            // The decoding may take a while, skip the compression if the analysis was cancelled
+            if (token.isCancelled()) {
+                pool.put(bitmap);
+                token.throwIfCancelled();
+            }
+        }
+
+        // Reuse the response of a recent image that looks the same (like another shot of a burst)
+        if (hashed) {
+            image.hash = PerceptualHash.dHash(bitmap);
+            image.hashed = true;
+            image.response = ((CloudVision) getApplication()).getDuplicateIndex()
+                    .find(image.hash, settings.key, settings.duplicateDistance);
+            if (image.response != null) {
+                Log.d(TAG, "using the response of a near-duplicate image, hash " + Long.toHexString(image.hash));
+                pool.put(bitmap);
+                return false;
+            }
+        }
+
+        final int firstRequest = content.getRequestCount();
+        if (passThrough) {
+            Log.d(TAG, "sending the original image: " + header);
+            if (bitmap != null) pool.put(bitmap);
+            content.addRequest(ImageSource.fromUri(getContentResolver(), image.uri, header.getLength()),
+                    getAllFeatures(settings.featureGroups));
+        } else {
+            image.persistence = addCompressedImages(content, bitmap, image.copy ? image.uri : null, settings.featureGroups,
+                    settings.encoder, settings.imageQuality, settings.payloadBudget);
+        }
+        image.requestCount = content.getRequestCount() - firstRequest;
+
+        return true;
+    }
+
+    /**
+     * Sends {@code batch} on {@link #NETWORK_EXECUTOR} (see
+     * {@link #sendBatch(AnnotateRequestContent, List, UploadProgress, UploadSettings, CancellationToken)}). It
+     * blocks while there are {@link #MAX_PENDING_CALLS} calls sent or waiting to be sent.
+     *
+     * @return The task that sends the batch.
+     */
+    private Future<?> submitBatch(final AnnotateRequestContent content, final List<PendingImage> batch,
+                                  final UploadProgress progress, final UploadSettings settings,
+                                  final CancellationToken token) {
+        PENDING_CALLS.acquireUninterruptibly();
+        return NETWORK_EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sendBatch(content, batch, progress, settings, token);
+                } finally {
+                    PENDING_CALLS.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits the task created by {@link #submitBatch} to finish. Its errors are already broadcasted,
+     * so an unexpected one is just logged.
+     *
+     * @param call The task that sends the batch.
+     */
+    private static void awaitBatch(Future<?> call) {
         try {
-            // Get the Bitmap from intent
-            final Uri imageUri = options.getParcelable(EXTRA_IMAGE_URI);
-            if (imageUri == null) throw new FileNotFoundException();
-
-            // First decode with inJustDecodeBounds=true to check dimensions
-            final BitmapFactory.Options bmpOptions = new BitmapFactory.Options();
-            bmpOptions.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(getContentResolver().openInputStream(imageUri), null, bmpOptions);
-
-            // Find the correct scale value (It should be the power of 2) then decode bitmap with
-            // inSampleSize set
-            bmpOptions.inSampleSize = calculateInSampleSize(bmpOptions, 1000, 1000);
-            bmpOptions.inJustDecodeBounds = false;
-            bitmap = BitmapFactory.decodeStream(getContentResolver().openInputStream(imageUri), null, bmpOptions);
-
-            // Add the image
-            final Image base64EncodedImage = new Image();
-
-            // Get the image compression quality parameter
-            final int imageQuality = options.getInt(EXTRA_IMAGE_QUALITY, DEFAULT_IMAGE_QUALITY);
-
-            // Convert the bitmap to a JPEG
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            bitmap.compress(Bitmap.CompressFormat.JPEG, imageQuality, byteArrayOutputStream);
-            bitmap.recycle();
-
-            // Write the compressed image back to file
-            writeToFile(byteArrayOutputStream, imageUri);
-
-            // Convert the output stream to a byte array
-            byte[] imageBytes = byteArrayOutputStream.toByteArray();
-            byteArrayOutputStream.close();
-
-            // Base64 encode the JPEG
-            base64EncodedImage.encodeContent(imageBytes);
-
-            // Setup HttpTransport and Serialization Factory
-            HttpTransport httpTransport = new NetHttpTransport();
-            JsonFactory jsonFactory = GsonFactory.getDefaultInstance();
-
-            // Setup Vision instance
-            Vision.Builder builder = new Vision.Builder(httpTransport, jsonFactory, null);
-            builder.setVisionRequestInitializer(new VisionRequestInitializer(CLOUD_VISION_API_KEY));
-            Vision vision = builder.build();
-
-            // Setup the Request
-            BatchAnnotateImagesRequest batchAnnotateImagesRequest = new BatchAnnotateImagesRequest();
-            batchAnnotateImagesRequest.setRequests(new ArrayList<AnnotateImageRequest>() {{
-
-                AnnotateImageRequest annotateImageRequest = new AnnotateImageRequest();
-                annotateImageRequest.setImage(base64EncodedImage);
-
-                // add the features we want
-                annotateImageRequest.setFeatures(new ArrayList<Feature>() {{
-                    // Label Detection
-                    if (options.getBoolean(EXTRA_LABEL_DETECTION)) {
-                        final int maxLabels = options.getInt(EXTRA_MAX_LABELS, DEFAULT_MAX_LABELS);
-                        Feature labelDetection = new Feature();
-                        labelDetection.setType("LABEL_DETECTION");
-                        labelDetection.setMaxResults(maxLabels);
-                        add(labelDetection);
-                    }
-
-                    // Logo Detection
-                    if (options.getBoolean(EXTRA_LOGO_DETECTION)) {
-                        final int maxLogos = options.getInt(EXTRA_MAX_LOGOS, DEFAULT_MAX_LOGOS);
-                        Feature logoDetection = new Feature();
-                        logoDetection.setType("LOGO_DETECTION");
-                        logoDetection.setMaxResults(maxLogos);
-                        add(logoDetection);
-                    }
-
-                    // Landmark Detection
-                    if (options.getBoolean(EXTRA_LANDMARK_DETECTION)) {
-                        final int maxLandmarks = options.getInt(EXTRA_MAX_LANDMARKS, DEFAULT_MAX_LANDMARKS);
-                        Feature landmarkDetection = new Feature();
-                        landmarkDetection.setType("LANDMARK_DETECTION");
-                        landmarkDetection.setMaxResults(maxLandmarks);
-                        add(landmarkDetection);
-                    }
-
-                    // Image Properties
-                    if (options.getBoolean(EXTRA_IMAGE_PROPERTIES)) {
-                        final int maxImageProperties = options.getInt(EXTRA_MAX_IMAGE_PROPERTIES, DEFAULT_MAX_IMAGE_PROPERTIES);
-                        Feature propertiesDetection = new Feature();
-                        propertiesDetection.setType("IMAGE_PROPERTIES");
-                        propertiesDetection.setMaxResults(maxImageProperties);
-                        add(propertiesDetection);
-                    }
-                }});
-
-                // Add the list of detections to the request
-                add(annotateImageRequest);
-            }});
-
-            // Here we create the request
-            Vision.Images.Annotate annotateRequest = vision.images().annotate(batchAnnotateImagesRequest);
-
-            // Due to a bug: requests to Vision API containing large images fail when GZipped.
-            annotateRequest.setDisableGZipContent(true);
-
-            Log.d(TAG, "created Cloud Vision request object, sending request: " + batchAnnotateImagesRequest.toPrettyString());
-
-            final List<AnnotateImageResponse> responses = annotateRequest.execute().getResponses();
-            if (responses != null && !responses.isEmpty()) {
-                // As we are sending just one image, the CV API will always return 1 response (or none).
-                final AnnotateImageResponse response = responses.get(0);
-
-                // Prepare the extras with info about the image
-                prepareExtras(result, response);
-
-                Log.d(TAG, "CloudVision Response: \n" + response.toPrettyString());
+            call.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "failed to send the batch because " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Sends the requests of all images of {@code batch} in a single call, then broadcasts the
+     * result of each image.
+     *
+     * @param content The request with the images of {@code batch}.
+     * @param batch The images, in the same order they were added to {@code content}.
+     * @param progress The progress of the upload.
+     * @param settings The settings of the upload.
+     * @param token The token of the analysis. The call is aborted if it's cancelled.
+     */
+    private void sendBatch(final AnnotateRequestContent content, List<PendingImage> batch, UploadProgress progress,
+                           final UploadSettings settings, final CancellationToken token) {
+        final CloudVision application = (CloudVision) getApplication();
+
+        final CallTrace trace = CallTrace.begin("annotate");
+        IOException error = null;
+        try {
+            // The batch may have waited a while for the network
+            token.throwIfCancelled();
+
+            trace.put("images", batch.size())
+                    .put("requests", content.getRequestCount())
+                    .put("features", settings.featureTypes)
+                    .put("bytes", content.getLength());
+            trace.dump("request", content);
+
+            // The call is retried and hedged by the policy, so the content may be sent more than once.
+            // Each copy is bound to its own token, so the policy aborts the copies that lose.
+            final List<AnnotateImageResponse> responses = ANNOTATE_POLICY.execute(new CallPolicy.Call<BatchAnnotateImagesResponse>() {
+                @Override
+                public BatchAnnotateImagesResponse execute(CancellationToken copyToken) throws IOException {
+                    return executeAnnotateRequest(application.getVision(), application.getHttpClient(), content,
+                            settings.responseFields, trace, copyToken);
+                }
+            }, trace, token).getResponses();
+            trace.put("responses", responses != null ? responses.size() : 0);
+
+            // The responses are in the same order of the requests. There is one response for each
+            // image size, each one with the annotations of its features, so we merge them into a
+            // single response per image.
+            int first = 0;
+            for (PendingImage image : batch) {
+                final int end = first + image.requestCount;
+                if (responses != null && responses.size() >= end) {
+                    image.response = mergeResponses(responses.subList(first, end));
+                }
+                first = end;
+
+                // Responses with errors are not cached, so the request is sent again next time
+                if (image.response != null && image.response.getError() == null) {
+                    application.getResponseCache().put(image.cacheKey, GsonFactory.getDefaultInstance().toString(image.response));
+                    if (image.hashed) application.getDuplicateIndex().put(image.hash, settings.key, image.response);
+                }
             }
+        } catch (IOException e) {
+            error = e;
+            trace.put("error", e.getClass().getSimpleName());
+        } finally {
+            trace.end();
+        }
+
+        for (PendingImage image : batch) {
+            IOException imageError = error;
+
+            // The image is read by the next activity, so it must be written before the broadcast
+            if (image.persistence != null) {
+                try {
+                    awaitPersistence(image.persistence);
+                } catch (IOException e) {
+                    if (imageError == null) imageError = e;
+                }
+            }
+
+            broadcastResult(image, progress, imageError, token);
+        }
+    }
+
+    /**
+     * Broadcasts the result of {@code image} with the action {@link #ACTION_DONE}, then deletes its
+     * copy if it has no annotations to be shown. Nothing is broadcasted if the analysis was
+     * cancelled.
+     *
+     * @param image The image.
+     * @param progress The progress of the upload.
+     * @param error The error that happened while handling the image, or {@code null}.
+     * @param token The token of the analysis.
+     */
+    private void broadcastResult(PendingImage image, UploadProgress progress, IOException error, CancellationToken token) {
+        if (token.isCancelled()) {
+            Log.d(TAG, "analysis cancelled, skipping the result of " + image.uri);
+            return;
+        }
+
+        // Creates the result Intent that will be sent as broadcast
+        final Intent result = new Intent(ACTION_DONE);
+        result.putExtra(EXTRA_ANALYSIS_ID, token.getId());
+        result.putExtra(EXTRA_UPLOAD_ID, token.getId());
+
+        // Copy image URI to the result intent (we might need it on another moment)
+        result.putExtra(EXTRA_IMAGE_URI, image.uri);
+        result.putExtra(EXTRA_BATCH_INDEX, image.index);
+        result.putExtra(EXTRA_BATCH_SIZE, progress.imageCount);
 
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, "Image picking failed because " + e.getMessage());
+        if (error instanceof FileNotFoundException) {
+            Log.e(TAG, "Image picking failed because " + error.getMessage());
             result.putExtra(EXTRA_RESULT_ERROR, getString(R.string.image_picker_error));
-        } catch (GoogleJsonResponseException e) {
-            Log.e(TAG, "failed to make API request because " + e.getContent());
+        } else if (error instanceof GoogleJsonResponseException) {
+            Log.e(TAG, "failed to make API request because " + ((GoogleJsonResponseException) error).getContent());
             result.putExtra(EXTRA_RESULT_ERROR, getString(R.string.api_request_error));
-        } catch (IOException e) {
-            Log.e(TAG, "failed to make API request because of other IOException " + e.getMessage());
+        } else if (error != null) {
+            Log.e(TAG, "failed to make API request because of other IOException " + error.getMessage());
             result.putExtra(EXTRA_RESULT_ERROR, getString(R.string.api_request_error));
+        } else if (image.response != null) {
+            // Prepare the extras with info about the image
+            prepareExtras(result, image.response);
         }
 
-        // Broadcast the result
+        // Broadcast the result. The image is shown just if it has annotations.
         LocalBroadcastManager.getInstance(this).sendBroadcast(result);
+        if (!hasAnnotations(result)) deleteImageCopy(this, image.uri, token.getId(), image.index);
+    }
+
+    /**
+     * Checks if a result broadcasted with {@link #ACTION_DONE} has annotations to be shown (labels
+     * or a landmark). Each result with annotations of an upload is shown.
+     *
+     * @param result The broadcasted result.
+     * @return {@code true} if the result has annotations.
+     */
+    public static boolean hasAnnotations(Intent result) {
+        return result.hasExtra(EXTRA_RESULT_LABELS) || result.hasExtra(EXTRA_RESULT_LANDMARK);
+    }
+
+    /**
+     * Creates the key of the settings that change the response of an image: the features (with
+     * their max results and image size), the fields of the response and the compression settings.
+     *
+     * @return The digest of the settings.
+     */
+    private static String getSettingsKey(SortedMap<Integer, List<Feature>> featureGroups, String responseFields,
+                                         ImageEncoder encoder, int imageQuality, long payloadBudget) {
+        final RequestDigest digest = new RequestDigest();
+        for (Map.Entry<Integer, List<Feature>> group : featureGroups.entrySet()) {
+            digest.update(String.valueOf(group.getKey()));
+            for (Feature feature : group.getValue()) {
+                digest.update(feature.getType() + ":" + feature.getMaxResults());
+            }
+        }
+        return digest.update(responseFields)
+                .update(encoder.name())
+                .update(String.valueOf(imageQuality))
+                .update(String.valueOf(payloadBudget))
+                .toHexString();
+    }
+
+    /**
+     * Reads the response of {@code cacheKey} from {@code responseCache}.
+     *
+     * @return The cached response, or {@code null} if there is none or it can't be parsed.
+     */
+    private static AnnotateImageResponse getCachedResponse(DiskCache responseCache, String cacheKey) {
+        final String json = responseCache.get(cacheKey);
+        if (json == null) return null;
+
+        try {
+            return GsonFactory.getDefaultInstance().fromString(json, AnnotateImageResponse.class);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to parse the cached response because " + e.getMessage());
+            responseCache.remove(cacheKey);
+            return null;
+        }
+    }
+
+    /**
+     * Creates the features requested on {@code options} and groups them by the size of the image
+     * each one needs (see {@link FeatureProfile}).
+     *
+     * @param options The extras received by this service.
+     * @param maxImageSize The largest image size allowed.
+     * @return The features grouped by the size of the image, starting with the largest. It's never
+     * empty: without features, an empty group with {@code maxImageSize} is returned.
+     */
+    private static SortedMap<Integer, List<Feature>> getFeatureGroups(Bundle options, int maxImageSize) {
+        final SortedMap<Integer, List<Feature>> groups = new TreeMap<>(Collections.reverseOrder());
+
+        // Label Detection
+        if (options.getBoolean(EXTRA_LABEL_DETECTION)) {
+            final int maxLabels = options.getInt(EXTRA_MAX_LABELS, DEFAULT_MAX_LABELS);
+            addFeature(groups, FeatureProfile.LABEL_DETECTION, maxLabels, maxImageSize);
+        }
+
+        // Logo Detection
+        if (options.getBoolean(EXTRA_LOGO_DETECTION)) {
+            final int maxLogos = options.getInt(EXTRA_MAX_LOGOS, DEFAULT_MAX_LOGOS);
+            addFeature(groups, FeatureProfile.LOGO_DETECTION, maxLogos, maxImageSize);
+        }
+
+        // Landmark Detection
+        if (options.getBoolean(EXTRA_LANDMARK_DETECTION)) {
+            final int maxLandmarks = options.getInt(EXTRA_MAX_LANDMARKS, DEFAULT_MAX_LANDMARKS);
+            addFeature(groups, FeatureProfile.LANDMARK_DETECTION, maxLandmarks, maxImageSize);
+        }
+
+        if (groups.isEmpty()) groups.put(maxImageSize, new ArrayList<Feature>());
+
+        return groups;
+    }
+
+    /**
+     * Creates a feature of {@code profile} and adds it to the group of its image size.
+     */
+    private static void addFeature(SortedMap<Integer, List<Feature>> groups, FeatureProfile profile, int maxResults, int maxImageSize) {
+        final int imageSize = profile.getLongEdge(maxImageSize);
+
+        List<Feature> group = groups.get(imageSize);
+        if (group == null) {
+            group = new ArrayList<>();
+            groups.put(imageSize, group);
+        }
+        group.add(profile.createFeature(maxResults));
+    }
+
+    /**
+     * Adds one {@code AnnotateImageRequest} for each group of {@code featureGroups}, with the image
+     * scaled to the size of the group and compressed by {@code encoder}. The largest image is
+     * written back to {@code copyUri} in background, while the request is sent, but just when it's
+     * a JPEG.
+     *
+     * @param content The request where the images will be added.
+     * @param bitmap The image, decoded with the largest size of {@code featureGroups}. It's given
+     *               back to the pool.
+     * @param copyUri The Uri of the copy of the image made for the analysis (see
+     *                {@link #getImageCopy(Context, long, int)}), or {@code null} if the image isn't
+     *                a copy. The user's own images are never overwritten.
+     * @param featureGroups The features grouped by image size.
+     * @param encoder The codec used to compress the images.
+     * @param imageQuality The compression quality (or the highest quality, when there is a budget).
+     * @param payloadBudget The max size of all images in bytes, or {@code 0} to use a fixed quality.
+     * @return The task that writes the image back to {@code copyUri}, or {@code null} if it isn't.
+     * @throws IOException If the request can't be added.
+     */
+    private Future<Void> addCompressedImages(AnnotateRequestContent content, Bitmap bitmap, Uri copyUri,
+                                             SortedMap<Integer, List<Feature>> featureGroups,
+                                             ImageEncoder encoder, int imageQuality, long payloadBudget) throws IOException {
+        final BitmapPool pool = ((CloudVision) getApplication()).getBitmapPool();
+
+        // The copies are named .jpg, so just a JPEG is written back
+        final boolean persist = encoder == ImageEncoder.JPEG && copyUri != null;
+
+        Future<Void> persistence = null;
+        for (Map.Entry<Integer, List<Feature>> group : featureGroups.entrySet()) {
+            // Compress the bitmap, scaled to the size of the group. With a payload budget, each
+            // image gets a share of it proportional to its area.
+            final Bitmap scaled = ImageResizer.scale(bitmap, group.getKey(), pool);
+            final ImageBuffer imageBuffer;
+            if (payloadBudget > 0) {
+                final long imageBudget = payloadBudget * group.getKey() * group.getKey() / getTotalArea(featureGroups);
+                imageBuffer = BudgetedCompressor.compress(encoder, scaled, pool, imageQuality, imageBudget);
+            } else {
+                imageBuffer = new ImageBuffer();
+                encoder.encode(scaled, imageQuality, imageBuffer);
+            }
+            if (scaled != bitmap) pool.put(scaled);
+
+            // Write the largest compressed image back to file. The buffer isn't changed anymore, so
+            // it's read by the upload and the write at the same time.
+            if (persist && group.getKey().equals(featureGroups.firstKey())) persistence = persistImage(imageBuffer, copyUri);
+
+            content.addRequest(imageBuffer.asImageSource(), group.getValue());
+
+            Log.d(TAG, "added " + group.getValue().size() + " feature(s) with image of " + group.getKey()
+                    + " px (" + imageBuffer.size() + " bytes of " + encoder.getMimeType() + ")");
+        }
+        pool.put(bitmap);
+
+        return persistence;
+    }
+
+    /**
+     * Writes {@code imageBuffer} to {@code outputFile} on {@link #PERSISTENCE_EXECUTOR}.
+     *
+     * @param imageBuffer The compressed image.
+     * @param outputFile The Uri to the output file.
+     * @return The task that writes the image.
+     */
+    private Future<Void> persistImage(final ImageBuffer imageBuffer, final Uri outputFile) {
+        return PERSISTENCE_EXECUTOR.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                writeToFile(imageBuffer, outputFile);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Waits the task created by {@link #persistImage(ImageBuffer, Uri)} to finish.
+     *
+     * @param persistence The task that writes the image.
+     * @throws IOException If the image can't be written.
+     */
+    private static void awaitPersistence(Future<Void> persistence) throws IOException {
+        try {
+            persistence.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing the image");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Describes the types of the features of each group, like {@code 640:[LABEL_DETECTION]}.
+     */
+    private static String getFeatureTypes(SortedMap<Integer, List<Feature>> groups) {
+        final StringBuilder types = new StringBuilder();
+        for (Map.Entry<Integer, List<Feature>> group : groups.entrySet()) {
+            if (types.length() > 0) types.append(',');
+            types.append(group.getKey()).append(":[");
+            for (int i = 0; i < group.getValue().size(); i++) {
+                if (i > 0) types.append(',');
+                types.append(group.getValue().get(i).getType());
+            }
+            types.append(']');
+        }
+        return types.toString();
+    }
+
+    /**
+     * Waits the image to be written back to its file, ignoring the errors. Used when the result of
+     * the image won't be broadcasted.
+     */
+    private static void awaitPersistenceQuietly(PendingImage image) {
+        if (image.persistence == null) return;
+
+        try {
+            awaitPersistence(image.persistence);
+        } catch (IOException e) {
+            Log.d(TAG, "failed to write the image because " + e.getMessage());
+        }
+    }
+
+    /**
+     * Joins the features of all groups in a single list.
+     */
+    private static List<Feature> getAllFeatures(SortedMap<Integer, List<Feature>> groups) {
+        final List<Feature> features = new ArrayList<>();
+        for (List<Feature> group : groups.values()) {
+            features.addAll(group);
+        }
+        return features;
+    }
+
+    /**
+     * Sums the area (as the square of the longest edge) of the images of all groups.
+     */
+    private static long getTotalArea(SortedMap<Integer, List<Feature>> groups) {
+        long area = 0;
+        for (int imageSize : groups.keySet()) {
+            area += (long) imageSize * imageSize;
+        }
+        return area;
+    }
+
+    /**
+     * Merges the responses of all {@code AnnotateImageRequest}s of the same image. Each response
+     * just have the annotations of the features sent with it.
+     *
+     * @param responses The responses, in the same order of the requests.
+     * @return A single response with all annotations.
+     */
+    private static AnnotateImageResponse mergeResponses(List<AnnotateImageResponse> responses) {
+        if (responses.size() == 1) return responses.get(0);
+
+        final AnnotateImageResponse merged = new AnnotateImageResponse();
+        for (AnnotateImageResponse response : responses) {
+            if (response == null) continue;
+            if (response.getLabelAnnotations() != null) merged.setLabelAnnotations(response.getLabelAnnotations());
+            if (response.getLogoAnnotations() != null) merged.setLogoAnnotations(response.getLogoAnnotations());
+            if (response.getLandmarkAnnotations() != null) merged.setLandmarkAnnotations(response.getLandmarkAnnotations());
+            if (response.getError() != null) merged.setError(response.getError());
+        }
+        return merged;
+    }
+
+    /**
+     * Sends the streaming {@code content} to the annotate endpoint of {@code vision} and parses the
+     * response. The body is not GZipped, because requests to Vision API containing large images
+     * fail when GZipped.
+     *
+     * @param vision The Vision client, used to build the URL (with the API key) and parse the response.
+     * @param httpClient The client that sends the request.
+     * @param content The body of the request.
+     * @param responseFields The partial response mask (see {@link FeatureProfile#getResponseFields(Iterable)}).
+     * @param trace The trace of the call, where the time to send it and to parse the response are recorded.
+     * @param token The token of the copy of the call (see {@link CallPolicy.Call}). The request is
+     *              aborted when it's cancelled.
+     * @return The response of Cloud Vision, with just the fields of {@code responseFields}.
+     * @throws GoogleJsonResponseException If Cloud Vision returns an error status.
+     * @throws IOException If the request can't be sent.
+     */
+    static BatchAnnotateImagesResponse executeAnnotateRequest(Vision vision, OkHttpClient httpClient,
+                                                              AnnotateRequestContent content, String responseFields,
+                                                              CallTrace trace, CancellationToken token) throws IOException {
+        // The annotate request is created just to resolve its URL, the body is sent by our content
+        final GenericUrl url = vision.images().annotate(new BatchAnnotateImagesRequest())
+                .setFields(responseFields)
+                .buildHttpRequestUrl();
+
+        // The request is sent by a transport bound to the analysis, so it can be aborted
+        final HttpRequest request = new OkHttpTransport(httpClient, token)
+                .createRequestFactory(vision.getRequestFactory().getInitializer())
+                .buildPostRequest(url, content);
+        request.setParser(vision.getObjectParser());
+
+        final HttpResponse response = GoogleJsonResponseException.execute(vision.getJsonFactory(), request);
+        trace.endStage("send");
+        try {
+            final BatchAnnotateImagesResponse batchResponse = response.parseAs(BatchAnnotateImagesResponse.class);
+            trace.endStage("parse");
+            trace.dump("response", batchResponse);
+            return batchResponse;
+        } finally {
+            response.disconnect();
+        }
     }
 
     /**
@@ -346,35 +1069,110 @@ public class CloudVisionUploader extends IntentService {
     }
 
     /**
-     * Gets the height and width of the image from {@code options} then calculate the largest
-     * inSampleSize value that is a power of 2 and keeps both height and width larger than the
-     * requested height and width.
-     *
-     * @see <a href="http://developer.android.com/intl/pt-br/training/displaying-bitmaps/load-bitmap.html#load-bitmap">
-     *     Android Developers: Loading Large Bitmaps Efficiently</a>
-     * @param options Options that will be used to decode the image.
-     * @param reqWidth The requested width.
-     * @param reqHeight The requested height.
-     * @return The best scale value (power of 2).
-     */
-    private static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
-        // Raw height and width of image
-        final int height = options.outHeight;
-        final int width = options.outWidth;
-        int inSampleSize = 1;
-
-        if (height > reqHeight || width > reqWidth) {
-
-            final int halfHeight = height / 2;
-            final int halfWidth = width / 2;
-
-            // Calculate the largest inSampleSize value that is a power of 2 and keeps both
-            // height and width larger than the requested height and width.
-            while ((halfHeight / inSampleSize) > reqHeight && (halfWidth / inSampleSize) > reqWidth) {
-                inSampleSize *= 2;
-            }
+     * The settings of an upload, read from the extras. They are the same for all its images.
+     */
+    private static class UploadSettings {
+        final SortedMap<Integer, List<Feature>> featureGroups;
+        final ImageEncoder encoder;
+        final int imageQuality;
+        final long payloadBudget;
+        final int duplicateDistance;
+
+        /**
+         * The partial response mask of the calls, with just the fields read from the features.
+         */
+        final String responseFields;
+
+        /**
+         * The types of the features of each image size, as traced by {@link CallTrace}.
+         */
+        final String featureTypes;
+
+        /**
+         * The key of the settings, created by {@link #getSettingsKey}.
+         */
+        final String key;
+
+        UploadSettings(Bundle options) {
+            // Group the features by the image size each one needs
+            final int maxImageSize = options.getInt(EXTRA_IMAGE_SIZE, DEFAULT_IMAGE_SIZE);
+            featureGroups = getFeatureGroups(options, maxImageSize);
+
+            // Get the image compression quality parameter and the payload budget (in KB, 0 means
+            // the quality is fixed)
+            imageQuality = options.getInt(EXTRA_IMAGE_QUALITY, DEFAULT_IMAGE_QUALITY);
+            payloadBudget = options.getInt(EXTRA_PAYLOAD_BUDGET, DEFAULT_PAYLOAD_BUDGET) * 1024L;
+
+            // Get the codec used to compress the image
+            encoder = ImageEncoder.forPolicy(options.getString(EXTRA_IMAGE_FORMAT, DEFAULT_IMAGE_FORMAT));
+
+            // Get the max distance between the hashes of near-duplicate images (0 means disabled)
+            duplicateDistance = options.getInt(EXTRA_DUPLICATE_DISTANCE, DEFAULT_DUPLICATE_DISTANCE);
+
+            // Ask Cloud Vision just for the fields read from the features
+            responseFields = FeatureProfile.getResponseFields(getAllFeatures(featureGroups));
+            featureTypes = getFeatureTypes(featureGroups);
+
+            key = getSettingsKey(featureGroups, responseFields, encoder, imageQuality, payloadBudget);
+        }
+    }
+
+    /**
+     * The progress of an upload, shared by the threads that broadcast the results of its images.
+     */
+    private static class UploadProgress {
+        final int imageCount;
+
+        UploadProgress(int imageCount) {
+            this.imageCount = imageCount;
         }
+    }
 
-        return inSampleSize;
+    /**
+     * An image of the upload and the state of its request.
+     */
+    private static class PendingImage {
+        final Uri uri;
+        final int index;
+
+        /**
+         * The digest of the image bytes, as hex (see {@link RequestDigest}).
+         */
+        String digest;
+
+        /**
+         * Whether the image is a copy made for the analysis, so it can be written back and deleted
+         * (see {@link #getImageCopy(Context, long, int)}).
+         */
+        boolean copy;
+
+        String cacheKey;
+
+        /**
+         * The perceptual hash of the image. It's calculated just when the near-duplicate check is
+         * enabled ({@link #hashed}).
+         */
+        long hash;
+        boolean hashed;
+
+        /**
+         * The number of {@code AnnotateImageRequest}s of the image.
+         */
+        int requestCount;
+
+        /**
+         * The task that writes the compressed image back to {@link #uri}, if any.
+         */
+        Future<Void> persistence;
+
+        /**
+         * The response of the image, when it's found on the caches or received.
+         */
+        AnnotateImageResponse response;
+
+        PendingImage(Uri uri, int index) {
+            this.uri = uri;
+            this.index = index;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,133 @@
+package io.github.mathiasberwig.cloudvision.controller.service;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Service that handles each start request on a pool of worker threads. It works like an
+ * {@link android.app.IntentService}, but a request doesn't wait for the previous one to finish.</p>
+ *
+ * <p>The pool has up to {@code threadCount} threads, and the requests beyond it wait on a queue.
+ * The service stops itself when there is no request left.</p>
+ */
+public abstract class ConcurrentIntentService extends Service {
+
+    /**
+     * Time an idle worker thread waits for a new request before finishing.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final String name;
+    private final int threadCount;
+
+    /**
+     * Number of requests not finished and the id of the last one. They are used just on the main
+     * thread, like {@link #onStartCommand(Intent, int, int)}, so a request that finishes can't
+     * stop the service while a new one is being started.
+     */
+    private int pendingRequests;
+    private int lastStartId;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private ThreadPoolExecutor executor;
+
+    /**
+     * Creates a ConcurrentIntentService.
+     *
+     * @param name Used to name the worker threads, important only for debugging.
+     * @param threadCount The max number of requests handled at the same time.
+     */
+    public ConcurrentIntentService(String name, int threadCount) {
+        super();
+        this.name = name;
+        this.threadCount = threadCount;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        executor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        lastStartId = startId;
+        pendingRequests++;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    onHandleIntent(intent);
+                } finally {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Stop only if no request arrived meanwhile (stopSelf ignores old start ids)
+                            if (--pendingRequests == 0) stopSelf(lastStartId);
+                        }
+                    });
+                }
+            }
+        });
+
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        // The requests already submitted still finish, but no new one is accepted
+        executor.shutdown();
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /**
+     * Invoked on a worker thread with a request to process. Other requests may be processed at the
+     * same time on the other threads, so the implementation must be thread-safe.
+     *
+     * @param intent The value passed to {@link android.content.Context#startService(Intent)}.
+     */
+    protected abstract void onHandleIntent(Intent intent);
+
+    /**
+     * Creates the worker threads with background priority and a name based on the service.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        WorkerThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, name + "-" + threadNumber.incrementAndGet());
+        }
+    }
+}
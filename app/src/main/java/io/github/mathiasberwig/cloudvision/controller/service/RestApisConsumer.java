@@ -1,35 +1,75 @@
 package io.github.mathiasberwig.cloudvision.controller.service;
 
-import android.app.IntentService;
 import android.content.Intent;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.support.v4.content.LocalBroadcastManager;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.android.gms.maps.model.LatLng;
 import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.TimeUnit;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.mathiasberwig.cloudvision.CloudVision;
+import io.github.mathiasberwig.cloudvision.controller.CancellationToken;
+import io.github.mathiasberwig.cloudvision.data.cache.BrandStore;
+import io.github.mathiasberwig.cloudvision.data.cache.TitleCache;
 import io.github.mathiasberwig.cloudvision.data.model.LandmarkInfo;
 import io.github.mathiasberwig.cloudvision.data.model.LogoInfo;
 import io.github.mathiasberwig.cloudvision.data.model.pojo.FormattedAddress;
 import io.github.mathiasberwig.cloudvision.data.model.pojo.WikiArticleInfo;
 import io.github.mathiasberwig.cloudvision.data.model.pojo.WikiDataBrandInfo;
+import io.github.mathiasberwig.cloudvision.data.model.pojo.WikiDataEntities;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 
 /**
- * IntentService that communicates with third-party APIs to query info about Labels, Logos and
- * Landmarks.
+ * Service that communicates with third-party APIs to query info about Labels, Logos and
+ * Landmarks. Up to {@link #WORKER_THREADS} results are queried at the same time.
+ *
+ * <p>The queries of a result are executed at the same time by a {@link CallGroup}, each one as soon
+ * as the info it depends on arrives. The info queried within {@link #QUERIES_BUDGET_MILLIS} is
+ * broadcasted, and the slower queries are aborted.</p>
+ *
+ * <p>The queries of a result are skipped (and the running ones aborted) when the
+ * {@link CancellationToken} of its analysis ({@link CloudVisionUploader#EXTRA_ANALYSIS_ID}) is
+ * cancelled. In this case, nothing is broadcasted.</p>
+ *
+ * <p>The info is delivered stage by stage: each query that completes is broadcasted with
+ * {@link #ACTION_PROGRESS}, so the UI shows it right away. {@link #ACTION_DONE} is broadcasted
+ * with all the info at the end.</p>
  */
-public class RestApisConsumer extends IntentService {
+public class RestApisConsumer extends ConcurrentIntentService {
     private static final String TAG = RestApisConsumer.class.getName();
 
+    /**
+     * Number of results queried at the same time. The queries just wait for the network, so it
+     * doesn't depend on the number of cores.
+     */
+    private static final int WORKER_THREADS = 3;
+
+    /**
+     * Max time spent querying the info of a result. The queries run at the same time, so it's
+     * enough for the slowest chain of dependent queries (like the article title, then its extract).
+     */
+    private static final long QUERIES_BUDGET_MILLIS = 20 * 1000;
+
     /**
      * The URL of Google Maps Geocode API.
      */
@@ -50,171 +90,512 @@ public class RestApisConsumer extends IntentService {
     /**
      * The URL of Wikidata's API.
      */
-    private static final String WIKIDATA_API_BASE_URL = "https://query.wikidata.org/bigdata/namespace/wdq/sparql";
+    private static final String WIKIDATA_API_BASE_URL = "https://www.wikidata.org/w/api.php";
+
+    /**
+     * The max number of entities queried in a single request to Wikidata's API. More entities are
+     * split in several requests (see {@link #partitionIds(List)}).
+     */
+    private static final int MAX_WIKIDATA_IDS = 50;
+
+    /**
+     * The max number of entities searched by the name of a brand. They are checked in order, and
+     * the first one that is a brand is used.
+     */
+    private static final int MAX_BRAND_SEARCH_RESULTS = 5;
+
+    /**
+     * The classes of the brands on Wikidata: business (Q4830453), musical group (Q215380) and
+     * software (Q7397). The brands are instances of them or of any of their subclasses.
+     */
+    private static final List<String> BRAND_CLASSES = Arrays.asList("Q4830453", "Q215380", "Q7397");
+
+    /**
+     * The max number of levels of superclasses walked up to find a brand class.
+     */
+    private static final int MAX_CLASS_DEPTH = 6;
+
+    // Ids of the properties of the classes on Wikidata
+    private static final String P_INSTANCE_OF = "P31";
+    private static final String P_SUBCLASS_OF = "P279";
 
     /**
      * The max sentences queried from Wikipedia's API on extract actions.
      */
     public static final int DEFAULT_WIKIPEDIA_MAX_SENTENCES = 4;
 
+    /**
+     * Action broadcasted when a query finishes. It has the
+     * {@link CloudVisionUploader#EXTRA_ANALYSIS_ID} and the updated info
+     * ({@link CloudVisionUploader#EXTRA_RESULT_LANDMARK} or
+     * {@link CloudVisionUploader#EXTRA_RESULT_LOGO}).
+     */
+    public static final String ACTION_PROGRESS = "io.github.mathiasberwig.cloudvision.controller.service.RestApisConsumer.ACTION_PROGRESS";
+
     /**
      * Action broadcasted when this service finishes querying the APIs.
      */
     public static final String ACTION_DONE = "io.github.mathiasberwig.cloudvision.controller.service.RestApisConsumer.ACTION_DONE";
 
     private OkHttpClient client;
+    private TitleCache titleCache;
+    private TitleCache labelCache;
+    private BrandStore brandStore;
     private Gson gson;
 
     public RestApisConsumer() {
-        super(TAG);
-
-        // Instantiate the OkHttp Client
-        // The queries that uses computer vision and big data queries can easily exceed the default
-        // timeouts, so we set bigger ones
-        client = new OkHttpClient.Builder()
-                .connectTimeout(10, TimeUnit.SECONDS)
-                .readTimeout(10, TimeUnit.SECONDS)
-                .build();
+        super(TAG, WORKER_THREADS);
 
         // Instantiate the Gson client
         gson = new Gson();
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Use the OkHttp Client shared by the app, so the connections to the APIs are reused
+        client = ((CloudVision) getApplication()).getHttpClient();
+        titleCache = ((CloudVision) getApplication()).getTitleCache();
+        labelCache = ((CloudVision) getApplication()).getLabelCache();
+        brandStore = ((CloudVision) getApplication()).getBrandStore();
+    }
+
     @Override
     protected void onHandleIntent(Intent intent) {
+        final CancellationToken token = CancellationToken.get(
+                intent.getLongExtra(CloudVisionUploader.EXTRA_ANALYSIS_ID, CancellationToken.NO_ID));
+        final Locale deviceLocale = Locale.getDefault();
+
         Intent broadcast = new Intent(ACTION_DONE);
         broadcast.putExtras(intent.getExtras());
 
+        // All queries are executed at the same time, each one starting as soon as the info it
+        // depends on arrives
+        final CallGroup calls = new CallGroup(client, token);
+        LandmarkInfo landmarkInfo = null;
+        LogoInfo logoInfo = null;
+
         // Check if the service should query info about a landmark
-        if (intent.hasExtra(CloudVisionUploader.EXTRA_RESULT_LANDMARK)) {
+        if (intent.hasExtra(CloudVisionUploader.EXTRA_RESULT_LANDMARK) && !token.isCancelled()) {
             // Get the landmark info from extra
-            LandmarkInfo landmarkInfo = intent.getParcelableExtra(CloudVisionUploader.EXTRA_RESULT_LANDMARK);
-
-            // Query the landmark info from Wikipedia's API
-            queryLandmarkInfoFromWikipedia(landmarkInfo, DEFAULT_WIKIPEDIA_MAX_SENTENCES);
+            landmarkInfo = intent.getParcelableExtra(CloudVisionUploader.EXTRA_RESULT_LANDMARK);
 
-            // Query the landmark address from Google's Geocoding API
-            queryLandmarkAddressFromGoogleGeocoding(landmarkInfo);
-
-            // Update the Extra on Broadcast
-            broadcast.putExtra(CloudVisionUploader.EXTRA_RESULT_LANDMARK, landmarkInfo);
+            // Query the landmark info from Wikipedia's API and its address from Google's Geocoding API
+            queryLandmarkInfoFromWikipedia(calls, landmarkInfo, DEFAULT_WIKIPEDIA_MAX_SENTENCES, deviceLocale, token);
+            queryLandmarkAddressFromGoogleGeocoding(calls, landmarkInfo, token);
         }
 
         // Check if the service should query info about a logo
-        if (intent.hasExtra(CloudVisionUploader.EXTRA_RESULT_LOGO)) {
+        if (intent.hasExtra(CloudVisionUploader.EXTRA_RESULT_LOGO) && !token.isCancelled()) {
             // Get the logo info from extra
-            LogoInfo logoInfo = intent.getParcelableExtra(CloudVisionUploader.EXTRA_RESULT_LOGO);
+            logoInfo = intent.getParcelableExtra(CloudVisionUploader.EXTRA_RESULT_LOGO);
 
-            // Query the brand info from Wikipedia's API
-            queryBrandInfoFromWikipedia(logoInfo, DEFAULT_WIKIPEDIA_MAX_SENTENCES);
+            // Query the brand info from Wikipedia's and Wikidata's APIs
+            queryBrandInfo(calls, logoInfo, DEFAULT_WIKIPEDIA_MAX_SENTENCES, deviceLocale, token);
+        }
 
-            // Query the brand info from Wikidata's API
-            queryBrandInfoFromWikidata(logoInfo);
+        // Wait the queries up to the time budget. The info that arrives later is discarded.
+        try {
+            if (!calls.await(QUERIES_BUDGET_MILLIS)) Log.d(TAG, "time budget exceeded, broadcasting the info queried so far");
+        } catch (InterruptedException e) {
+            Log.e(TAG, e.getMessage(), e);
+            Thread.currentThread().interrupt();
+        }
 
-            broadcast.putExtra(CloudVisionUploader.EXTRA_RESULT_LOGO, logoInfo);
+        // The user isn't waiting for the result anymore
+        if (token.isCancelled()) {
+            Log.d(TAG, "analysis cancelled, skipping the broadcast");
+            return;
         }
 
+        // Update the Extras on Broadcast (the group is closed, so the info doesn't change anymore)
+        if (landmarkInfo != null) broadcast.putExtra(CloudVisionUploader.EXTRA_RESULT_LANDMARK, landmarkInfo);
+        if (logoInfo != null) broadcast.putExtra(CloudVisionUploader.EXTRA_RESULT_LOGO, logoInfo);
+
         // Send the broadcast
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
     }
 
+    /**
+     * Broadcasts the info updated by a query with {@link #ACTION_PROGRESS}. Nothing is broadcasted
+     * if the analysis was cancelled.
+     *
+     * @param extra The extra of the info, like {@link CloudVisionUploader#EXTRA_RESULT_LANDMARK}.
+     * @param info The updated info.
+     * @param token The token of the analysis.
+     */
+    private void broadcastProgress(String extra, Parcelable info, CancellationToken token) {
+        if (token.isCancelled()) return;
+
+        final Intent progress = new Intent(ACTION_PROGRESS);
+        progress.putExtra(CloudVisionUploader.EXTRA_ANALYSIS_ID, token.getId());
+        progress.putExtra(extra, info);
+        LocalBroadcastManager.getInstance(this).sendBroadcast(progress);
+    }
+
+    /**
+     * Copies {@code info} through a {@link Parcel}. Local broadcasts aren't parceled, so the info
+     * is copied before it's broadcasted, while the next queries keep changing the original.
+     *
+     * @param info The info to be copied.
+     * @param creator The creator of the class of {@code info}.
+     * @return The copy of {@code info}.
+     */
+    private static <T extends Parcelable> T copyOf(T info, Parcelable.Creator<T> creator) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            info.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return creator.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
     /**
      * Query the Wikipedia API to get info about a landmark. It updates the {@link LandmarkInfo#name},
      * the {@link LandmarkInfo#description} and {@link LandmarkInfo#wikipediaArticleUrl} fields of
      * {@link LandmarkInfo}.
      *
+     * @param calls The group of the queries of the analysis.
      * @param landmarkInfo a LandmarkInfo object containing name, and latLng data.
      * @param maxSentences The max number of sentences to be returned in the description field.
+     * @param locale The locale of the article.
+     * @param token The token of the analysis.
      */
-    private void queryLandmarkInfoFromWikipedia(LandmarkInfo landmarkInfo, int maxSentences) {
-
-        // Query info about the landmark from Wikipedia
-        final WikiArticleInfo wikiArticleInfo = queryInfoFromWikipedia(landmarkInfo.getName(), maxSentences);
-
-        // Put the info queried from Wikipedia to LandmarkInfo
-        if (wikiArticleInfo != null) {
-            landmarkInfo.setName(wikiArticleInfo.getTitle());
-            landmarkInfo.setDescription(wikiArticleInfo.getExtract());
-            landmarkInfo.setWikipediaArticleUrl(wikiArticleInfo.wikipediaArticleUrl);
-        }
+    private void queryLandmarkInfoFromWikipedia(CallGroup calls, final LandmarkInfo landmarkInfo, int maxSentences,
+                                                Locale locale, final CancellationToken token) {
+        new ArticleLookup(calls, landmarkInfo.getName(), locale, maxSentences, new ArticleListener() {
+            @Override
+            void onArticle(WikiArticleInfo wikiArticleInfo) {
+                // Put the info queried from Wikipedia to LandmarkInfo
+                landmarkInfo.setName(wikiArticleInfo.getTitle());
+                landmarkInfo.setDescription(wikiArticleInfo.getExtract());
+                landmarkInfo.setWikipediaArticleUrl(wikiArticleInfo.wikipediaArticleUrl);
+                broadcastProgress(CloudVisionUploader.EXTRA_RESULT_LANDMARK, copyOf(landmarkInfo, LandmarkInfo.CREATOR), token);
+            }
+        }).start();
     }
 
     /**
-     * Query the Wikipedia API to get info about a logo. It updates the ({@code name},
-     * {@code description} and {@code wikipediaArticleUrl} properties of {@link LogoInfo}.
+     * Query info about a logo from Wikipedia and Wikidata. Wikidata is queried as soon as the
+     * article of the brand is found, while its info is extracted from Wikipedia. It updates the
+     * ({@code name}, {@code description}, {@code wikipediaArticleUrl}, {@code url} and the
+     * additional info of {@link LogoInfo}.
      *
+     * @param calls The group of the queries of the analysis.
      * @param logoInfo a LogoInfo object containing the brand name.
      * @param maxSentences The max number of sentences to be returned in the description field.
+     * @param locale The locale of the article.
+     * @param token The token of the analysis.
      */
-    private void queryBrandInfoFromWikipedia(LogoInfo logoInfo, int maxSentences) {
-
-        // Query info about the brand from Wikipedia
-        final WikiArticleInfo wikiArticleInfo = queryInfoFromWikipedia(logoInfo.getBrandName(), maxSentences);
+    private void queryBrandInfo(final CallGroup calls, final LogoInfo logoInfo, int maxSentences,
+                                final Locale locale, final CancellationToken token) {
+        new ArticleLookup(calls, logoInfo.getBrandName(), locale, maxSentences, new ArticleListener() {
+            @Override
+            void onQueryRequest(WikipediaQueryRequest qryRequest) {
+                queryBrandInfoFromWikidata(calls, logoInfo, qryRequest, locale, token);
+            }
 
-        if (wikiArticleInfo != null) {
-            logoInfo.setBrandName(wikiArticleInfo.getTitle());
-            logoInfo.setDescription(wikiArticleInfo.getExtract());
-            logoInfo.setWikipediaArticleUrl(wikiArticleInfo.wikipediaArticleUrl);
-        }
+            @Override
+            void onArticle(WikiArticleInfo wikiArticleInfo) {
+                logoInfo.setBrandName(wikiArticleInfo.getTitle());
+                logoInfo.setDescription(wikiArticleInfo.getExtract());
+                logoInfo.setWikipediaArticleUrl(wikiArticleInfo.wikipediaArticleUrl);
+                broadcastProgress(CloudVisionUploader.EXTRA_RESULT_LOGO, copyOf(logoInfo, LogoInfo.CREATOR), token);
+            }
+        }).start();
     }
 
     /**
      * Query the Wikidata API to get info about a logo. It updates the ({@code url} and
      * sets additional info of {@link LogoInfo} with the result data.
      *
+     * <p>The brands found before are read from the {@link BrandStore}: when the snapshot of the
+     * brand in the language is stored, no query is needed, and when just the id of its entity is
+     * stored, the entity is queried by id.</p>
+     *
+     * <p>Otherwise the entity of the brand is the one linked to its article on Wikipedia, that
+     * comes with its claims in a single request. If the article isn't linked, or its entity isn't a
+     * brand (see {@link BrandTypeCheck}), the entity is searched by name. Then the labels of the
+     * entities referenced by the claims (like the country) are read from the {@link TitleCache} of
+     * labels, and just the ones not cached are queried.</p>
+     *
+     * @param calls The group of the queries of the analysis.
      * @param logoInfo a LogoInfo object containing the brand name.
+     * @param qryRequest The article of the brand.
+     * @param locale The locale of the labels.
+     * @param token The token of the analysis.
      */
-    private void queryBrandInfoFromWikidata(LogoInfo logoInfo) {
-        // Query info about the brand from Wikidata
-        final WikiDataBrandInfo wikiDataBrandInfo = queryWikiDataBrandInfo(logoInfo.getBrandName());
-
-        if (wikiDataBrandInfo != null) {
-            logoInfo.setLogoUrl(wikiDataBrandInfo.getLogoUrl());
-            logoInfo.setProperties(wikiDataBrandInfo.getProperties());
+    private void queryBrandInfoFromWikidata(final CallGroup calls, final LogoInfo logoInfo, final WikipediaQueryRequest qryRequest,
+                                            final Locale locale, final CancellationToken token) {
+        final String site = qryRequest.queryLocale.getLanguage() + "wiki";
+
+        // Read the brand from the store
+        final String entityId = brandStore.getEntityId(qryRequest.articleName, site);
+        if (BrandStore.NO_ENTITY.equals(entityId)) return;
+        if (entityId != null) {
+            final WikiDataBrandInfo snapshot = brandStore.getSnapshot(entityId, locale.getLanguage());
+            if (snapshot != null) {
+                // Delivered like the results of the queries, so it doesn't race with them
+                calls.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        setBrandInfo(logoInfo, snapshot, token);
+                    }
+                });
+            } else {
+                queryBrandEntityFromWikidata(calls, logoInfo, entityId, locale, token);
+            }
+            return;
         }
+
+        // Build the request
+        final HttpUrl url = getWikidataApiUrl("wbgetentities")
+                .addQueryParameter("sites", site)
+                .addQueryParameter("titles", qryRequest.articleName)
+                .addQueryParameter("props", "claims")
+                .build();
+
+        // Query the entity linked to the article of the brand
+        calls.enqueue(new Request.Builder().url(url).get().build(), new EntitiesQuery() {
+            @Override
+            protected void onResult(WikiDataEntities wikiDataEntities) {
+                final WikiDataEntities.Entity entity = wikiDataEntities != null ? wikiDataEntities.getEntity() : null;
+                if (entity == null) {
+                    searchBrandFromWikidata(calls, logoInfo, qryRequest, locale, token);
+                    return;
+                }
+
+                // The article may be about something else with the same name (like the fruit)
+                new BrandTypeCheck(calls, Collections.singletonList(entity), new BrandListener() {
+                    @Override
+                    void onBrand(WikiDataEntities.Entity brand, boolean complete) {
+                        if (brand != null) {
+                            brandStore.putEntityId(qryRequest.articleName, site, brand.getId());
+                            queryBrandLabelsFromWikidata(calls, logoInfo, brand, locale, token);
+                        } else {
+                            searchBrandFromWikidata(calls, logoInfo, qryRequest, locale, token);
+                        }
+                    }
+                }).start();
+            }
+        });
     }
 
     /**
-     * Uses the Wikidata's API to query info about a brand.
+     * Searches the entity of a brand on Wikidata by its name, then queries the claims of the
+     * matches and uses the first one that is a brand (see {@link BrandTypeCheck}). The id found is
+     * stored on the {@link BrandStore}, as well as the brands without entity.
      *
-     * @param brandName The name of the brand.
-     * @return object with the response of Wikidata query, or {@code null}.
+     * @param calls The group of the queries of the analysis.
+     * @param logoInfo a LogoInfo object containing the brand name.
+     * @param qryRequest The article of the brand, whose title is searched.
+     * @param locale The locale of the labels.
+     * @param token The token of the analysis.
      */
-    private WikiDataBrandInfo queryWikiDataBrandInfo(String brandName) {
-        final Locale deviceLocale = Locale.getDefault();
+    private void searchBrandFromWikidata(final CallGroup calls, final LogoInfo logoInfo, final WikipediaQueryRequest qryRequest,
+                                         final Locale locale, final CancellationToken token) {
+        final String site = qryRequest.queryLocale.getLanguage() + "wiki";
+        final HttpUrl url = getWikidataApiUrl("wbsearchentities")
+                .addQueryParameter("search", qryRequest.articleName)
+                .addQueryParameter("language", qryRequest.queryLocale.getLanguage())
+                .addQueryParameter("type", "item")
+                .addQueryParameter("limit", String.valueOf(MAX_BRAND_SEARCH_RESULTS))
+                .build();
 
-        WikipediaQueryRequest qryRequest = new WikipediaQueryRequest().get(brandName, deviceLocale);
+        calls.enqueue(new Request.Builder().url(url).get().build(), new CallGroup.Query<List<String>>() {
+            @Override
+            protected List<String> parse(Response response) throws IOException {
+                // De-serialize the response
+                final WikiDataEntities.SearchResult result = gson.fromJson(response.body().string(), WikiDataEntities.SearchResult.class);
+                if (result == null) throw new IOException("Empty response of wbsearchentities");
 
-        // Build the request
-        final HttpUrl url = HttpUrl.parse(WIKIDATA_API_BASE_URL)
-                .newBuilder()
-                .addQueryParameter("format", "json")
-                .addQueryParameter("query", getWikidataQuery(qryRequest.queryLocale, qryRequest.articleName))
+                return result.getIds();
+            }
+
+            @Override
+            protected void onResult(final List<String> ids) {
+                // Store just the valid responses, the errors may not happen again
+                if (ids == null) return;
+                if (ids.isEmpty()) {
+                    brandStore.putEntityId(qryRequest.articleName, site, BrandStore.NO_ENTITY);
+                    return;
+                }
+
+                final HttpUrl url = getWikidataApiUrl("wbgetentities")
+                        .addQueryParameter("ids", TextUtils.join("|", ids))
+                        .addQueryParameter("props", "claims")
+                        .build();
+
+                // Query the claims of the matches, to check which one is a brand
+                calls.enqueue(new Request.Builder().url(url).get().build(), new EntitiesQuery() {
+                    @Override
+                    protected void onResult(WikiDataEntities wikiDataEntities) {
+                        if (wikiDataEntities == null || wikiDataEntities.getEntities() == null) return;
+
+                        // Keep the order of the search, from the best match
+                        final List<WikiDataEntities.Entity> candidates = new ArrayList<>();
+                        for (String id : ids) {
+                            final WikiDataEntities.Entity candidate = wikiDataEntities.getEntities().get(id);
+                            if (candidate != null && !candidate.isMissing()) candidates.add(candidate);
+                        }
+
+                        new BrandTypeCheck(calls, candidates, new BrandListener() {
+                            @Override
+                            void onBrand(WikiDataEntities.Entity brand, boolean complete) {
+                                if (brand != null) {
+                                    brandStore.putEntityId(qryRequest.articleName, site, brand.getId());
+                                    queryBrandLabelsFromWikidata(calls, logoInfo, brand, locale, token);
+                                } else if (complete) {
+                                    brandStore.putEntityId(qryRequest.articleName, site, BrandStore.NO_ENTITY);
+                                }
+                            }
+                        }).start();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Queries the claims of the entity of a brand by its id, then its labels.
+     *
+     * @param calls The group of the queries of the analysis.
+     * @param logoInfo a LogoInfo object containing the brand name.
+     * @param entityId The id of the entity of the brand.
+     * @param locale The locale of the labels.
+     * @param token The token of the analysis.
+     */
+    private void queryBrandEntityFromWikidata(final CallGroup calls, final LogoInfo logoInfo, String entityId,
+                                              final Locale locale, final CancellationToken token) {
+        final HttpUrl url = getWikidataApiUrl("wbgetentities")
+                .addQueryParameter("ids", entityId)
+                .addQueryParameter("props", "claims")
                 .build();
 
-        // Build the request
-        final Request request = new Request.Builder().url(url).get().build();
+        calls.enqueue(new Request.Builder().url(url).get().build(), new EntitiesQuery() {
+            @Override
+            protected void onResult(WikiDataEntities wikiDataEntities) {
+                final WikiDataEntities.Entity entity = wikiDataEntities != null ? wikiDataEntities.getEntity() : null;
+                if (entity != null) queryBrandLabelsFromWikidata(calls, logoInfo, entity, locale, token);
+            }
+        });
+    }
 
-        try {
-            // Execute call
-            Response response = client.newCall(request).execute();
+    /**
+     * Gets the labels of the entities referenced by a brand, then updates the {@link LogoInfo}.
+     * The labels not cached are queried in as few requests as possible, at the same time. Once all
+     * labels are known, the info is stored as the snapshot of the brand (see {@link BrandStore}).
+     *
+     * @param calls The group of the queries of the analysis.
+     * @param logoInfo a LogoInfo object containing the brand name.
+     * @param entity The entity of the brand, with its claims.
+     * @param locale The locale of the labels. English labels are used when it has none.
+     * @param token The token of the analysis.
+     */
+    private void queryBrandLabelsFromWikidata(CallGroup calls, final LogoInfo logoInfo, final WikiDataEntities.Entity entity,
+                                              Locale locale, final CancellationToken token) {
+        final String language = locale.getLanguage();
+        final Map<String, String> labels = new HashMap<>();
+        final List<String> missingIds = new ArrayList<>();
+
+        // Read the labels from the cache
+        for (String id : WikiDataBrandInfo.getReferencedIds(entity)) {
+            final String label = labelCache.get(id, language);
+            if (label == null) {
+                missingIds.add(id);
+            } else if (!TitleCache.NO_TITLE.equals(label)) {
+                labels.put(id, label);
+            }
+        }
 
-            // De-serialize the response
-            return gson.fromJson(response.body().string(), WikiDataBrandInfo.class);
-        } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-            return null;
+        if (missingIds.isEmpty()) {
+            final WikiDataBrandInfo info = new WikiDataBrandInfo(entity, labels);
+            brandStore.putSnapshot(entity.getId(), language, info);
+            setBrandInfo(logoInfo, info, token);
+            return;
+        }
+
+        // Query the labels not cached. The results arrive one at a time, the last one updates the
+        // info.
+        final List<List<String>> chunks = partitionIds(missingIds);
+        final AtomicInteger pendingChunks = new AtomicInteger(chunks.size());
+        final AtomicBoolean allValid = new AtomicBoolean(true);
+        for (final List<String> chunk : chunks) {
+            final HttpUrl url = getWikidataApiUrl("wbgetentities")
+                    .addQueryParameter("ids", TextUtils.join("|", chunk))
+                    .addQueryParameter("props", "labels")
+                    .addQueryParameter("languages", language.equals(Locale.ENGLISH.getLanguage()) ? language : language + "|en")
+                    .build();
+
+            calls.enqueue(new Request.Builder().url(url).get().build(), new EntitiesQuery() {
+                @Override
+                protected void onResult(WikiDataEntities wikiDataEntities) {
+                    // Cache just the valid responses, the errors may not happen again
+                    final boolean valid = wikiDataEntities != null && wikiDataEntities.getEntities() != null;
+                    if (valid) {
+                        for (String id : chunk) {
+                            final WikiDataEntities.Entity labelledEntity = wikiDataEntities.getEntities().get(id);
+                            final String label = labelledEntity != null ? labelledEntity.getLabel(language, "en") : null;
+
+                            labelCache.put(id, language, label);
+                            if (label != null) labels.put(id, label);
+                        }
+                    } else {
+                        allValid.set(false);
+                    }
+                    if (pendingChunks.decrementAndGet() > 0) return;
+
+                    // Without some labels, the other properties are still shown (but not stored)
+                    final WikiDataBrandInfo info = new WikiDataBrandInfo(entity, labels);
+                    if (allValid.get()) brandStore.putSnapshot(entity.getId(), language, info);
+                    setBrandInfo(logoInfo, info, token);
+                }
+            });
         }
     }
 
+    /**
+     * Splits {@code ids} in lists of up to {@link #MAX_WIKIDATA_IDS}, each one queried by a
+     * request to Wikidata's API.
+     *
+     * @param ids The ids of the entities.
+     * @return The lists of ids, in the same order.
+     */
+    private static List<List<String>> partitionIds(List<String> ids) {
+        final List<List<String>> chunks = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i += MAX_WIKIDATA_IDS) {
+            chunks.add(ids.subList(i, Math.min(ids.size(), i + MAX_WIKIDATA_IDS)));
+        }
+        return chunks;
+    }
+
+    /**
+     * Updates the logo and additional info of a {@link LogoInfo} with the info from Wikidata.
+     *
+     * @param logoInfo a LogoInfo object containing the brand name.
+     * @param wikiDataBrandInfo The info from Wikidata.
+     * @param token The token of the analysis.
+     */
+    private void setBrandInfo(LogoInfo logoInfo, WikiDataBrandInfo wikiDataBrandInfo, CancellationToken token) {
+        logoInfo.setLogoUrl(wikiDataBrandInfo.getLogoUrl());
+        logoInfo.setProperties(wikiDataBrandInfo.getProperties());
+        broadcastProgress(CloudVisionUploader.EXTRA_RESULT_LOGO, copyOf(logoInfo, LogoInfo.CREATOR), token);
+    }
+
     /**
      * Uses the Google Maps Geocoding Web API to query for an human-readable address by passing
      * latitude and longitude parameters. It updates the {@link LandmarkInfo#address} field of
      * {@link LandmarkInfo}.
      *
+     * @param calls The group of the queries of the analysis.
      * @param landmarkInfo a LandmarkInfo instance with {@link LandmarkInfo#latLng} set.
+     * @param token The token of the analysis.
      */
-    private void queryLandmarkAddressFromGoogleGeocoding(LandmarkInfo landmarkInfo) {
+    private void queryLandmarkAddressFromGoogleGeocoding(CallGroup calls, final LandmarkInfo landmarkInfo,
+                                                         final CancellationToken token) {
         LatLng latLng = landmarkInfo.getLatLng();
 
         // Format the parameter as lat,long
@@ -229,41 +610,45 @@ public class RestApisConsumer extends IntentService {
         // Build the request
         final Request request = new Request.Builder().url(url).get().build();
 
-        try {
-            // Execute call
-            Response response = client.newCall(request).execute();
+        calls.enqueue(request, new CallGroup.Query<String>() {
+            @Override
+            protected String parse(Response response) throws IOException {
+                if (response.code() != 200) return null;
 
-            if (response.code() == 200) {
                 // De-serialize the response
-                String address = gson.fromJson(response.body().string(), FormattedAddress.class).getFormattedAddress();
+                return gson.fromJson(response.body().string(), FormattedAddress.class).getFormattedAddress();
+            }
+
+            @Override
+            protected void onResult(String address) {
+                if (address == null) return;
 
                 // Set the address of LandmarkInfo
                 landmarkInfo.setAddress(address);
+                broadcastProgress(CloudVisionUploader.EXTRA_RESULT_LANDMARK, copyOf(landmarkInfo, LandmarkInfo.CREATOR), token);
             }
-        } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-        }
+        });
     }
 
     /**
-     * Extracts page info about an article for the current {@link Locale} using the Wikipedia's API.
+     * Extracts page info about an article using the Wikipedia's API. Redirects are followed, so
+     * the article can be queried by another name (like the English one, on other languages).
      *
-     * @param articleNameInEnglish The title of article in english to be queried.
+     * @param calls The group of the queries of the analysis.
+     * @param qryRequest The article to be queried.
      * @param maxSentences The number of sentences (1-10) that API should return.
-     * @return The plain text extracted from the article's page.
+     * @param query Handles the info extracted from the article's page.
      */
-    private WikiArticleInfo queryInfoFromWikipedia(String articleNameInEnglish, int maxSentences) {
-        final Locale deviceLocale = Locale.getDefault();
-
-        WikipediaQueryRequest qryRequest = new WikipediaQueryRequest().get(articleNameInEnglish, deviceLocale);
-
+    private void queryInfoFromWikipedia(CallGroup calls, WikipediaQueryRequest qryRequest, int maxSentences, ArticleQuery query) {
         // Build the request to query extracted text from the article on the user's locale or English
         final HttpUrl url = HttpUrl.parse(qryRequest.wikipediaApiUrl)
                 .newBuilder()
                 .addQueryParameter("action", "query")
                 .addQueryParameter("format", "json")
                 .addQueryParameter("utf8", "1")
-                .addQueryParameter("prop", "extracts")
+                .addQueryParameter("redirects", "1")
+                .addQueryParameter("prop", "extracts|pageprops")
+                .addQueryParameter("ppprop", "disambiguation")
                 .addQueryParameter("exsentences", String.valueOf(maxSentences))
                 .addQueryParameter("exsectionformat", "plain")
                 .addQueryParameter("exintro", "1")
@@ -274,30 +659,18 @@ public class RestApisConsumer extends IntentService {
         // Build the request
         final Request request = new Request.Builder().url(url).get().build();
 
-        try {
-            // Execute call
-            Response response = client.newCall(request).execute();
-
-            // De-serialize the response
-            WikiArticleInfo wai = gson.fromJson(response.body().string(), WikiArticleInfo.class);
-            // Add the Wikipedia Article URL to response
-            wai.wikipediaArticleUrl = qryRequest.wikipediaWikIUrl;
-            // Return the response
-            return wai;
-
-        } catch (IOException | NullPointerException | JsonSyntaxException e) {
-            Log.e(TAG, e.getMessage(), e);
-            return null;
-        }
+        calls.enqueue(request, query);
     }
 
     /**
      * Query the title of an article in another language using Wikipedia's API in English.
      *
+     * @param calls The group of the queries of the analysis.
      * @param englishArticleName The title of the article to be queried in english.
-     * @return The title of the article in the language requested or {@code null}.
+     * @param locale The language requested.
+     * @param query Handles the response.
      */
-    private String queryArticleTitleWikipedia(String englishArticleName, Locale locale) {
+    private void queryArticleTitleWikipedia(CallGroup calls, String englishArticleName, Locale locale, CallGroup.Query<String> query) {
         // (Google CloudVision API) returns the names of Labels, Logos and Landmarks in English, so
         // we need to search in en.wikipedia.org.
         final HttpUrl url = HttpUrl.parse(getWikipediasApiUrl(Locale.ENGLISH))
@@ -305,6 +678,7 @@ public class RestApisConsumer extends IntentService {
                 .addQueryParameter("action", "query")
                 .addQueryParameter("format", "json")
                 .addQueryParameter("utf8", "1")
+                .addQueryParameter("redirects", "1")
                 .addQueryParameter("titles", englishArticleName)
                 .addQueryParameter("prop", "langlinks")
                 .addQueryParameter("lllang", locale.getLanguage())
@@ -313,17 +687,7 @@ public class RestApisConsumer extends IntentService {
         // Build the request
         final Request request = new Request.Builder().url(url).get().build();
 
-        try {
-            // Execute call
-            Response response = client.newCall(request).execute();
-
-            // De-serialize the response
-            return gson.fromJson(response.body().string(), WikiArticleInfo.class).getTitleForLocale(locale);
-
-        } catch (IOException | NullPointerException | JsonSyntaxException e) {
-            Log.e(TAG, e.getMessage(), e);
-            return null;
-        }
+        calls.enqueue(request, query);
     }
 
     /**
@@ -348,110 +712,32 @@ public class RestApisConsumer extends IntentService {
     }
 
     /**
-     * Get a locale-dependent SPARQL  query for an entity on Wikidata. In it we query for brands as
-     * instances/subclasses of business enterprise, bands or softwares.
+     * Get a builder of an URL for Wikidata's API.
      *
-     * @param locale The locale to get language and country code.
-     * @param brandName The name of the brand that will be queried.
-     * @return A locale-dependent SPARQL query for the {@code brandName} provided.
-     */
-    private static String getWikidataQuery(Locale locale, String brandName) {
-        String language;
-        // If the user locale language is any variant of english, we will query the default english
-        // API. With different locales, we try to combine the language and country codes (like pt-BR),
-        // and english is added as fallback lang (some properties doesn't have labels in other languages besides english).
-        if (locale.getLanguage().equals(Locale.ENGLISH.getLanguage())) {
-            language = locale.getLanguage();
-        } else {
-            language = locale.getCountry().equals("") ? String.format("%s,en", locale.getLanguage()) : String.format("%s-%s,en", locale.getLanguage(), locale.getCountry());
-        }
-
-        String query =
-                "SELECT DISTINCT " +
-                " ?brand " +
-                " ?website ?logo ?country ?inception" +
-                " ?twitter ?facebook" +
-                " ?founders " +
-                " ?headquarters ?divisions ?employees" +
-                " ?genre ?awards" +
-                " ?developers ?languages ?licenses" +
-                "WHERE {" +
-                    " ?brand ?label \"%s\" ." + // Search by Brand name
-                    " { ?brand wdt:P31/wdt:P279* wd:Q4830453 . }" + // Business enterprise (instance of any subclass of)
-                " UNION" +
-                    " { ?brand wdt:P31/wdt:P279* wd:Q215380 . }" +  // Band (instance of any subclass of)
-                " UNION" +
-                    " { ?brand wdt:P31/wdt:P279* wd:Q7397 . }" +    // Software (instance of any subclass of)
-                " OPTIONAL { ?brand wdt:P856 ?website . }" +
-                " OPTIONAL { ?brand wdt:P154 ?logo . }" +
-                " OPTIONAL { ?brand wdt:P17 ?country . }" +
-                " OPTIONAL { ?brand wdt:P495 ?country . }" +
-                " OPTIONAL { ?brand wdt:P1128 ?employees . }" +
-                " OPTIONAL { ?brand wdt:P571 ?inception . }" +
-                " OPTIONAL { ?brand wdt:P2002 ?twitter . }" +
-                " OPTIONAL { ?brand wdt:P2013 ?facebook . }" +
-                " OPTIONAL { ?brand wdt:P136 ?genre . }" +
-                " SERVICE wikibase:label {" +
-                    " bd:serviceParam wikibase:language \"%s\" ." + // Language for labels
-                    " ?country rdfs:label ?country ." +
-                    " ?genre rdfs:label ?genre }" +
-                " { SELECT " +
-                    " (GROUP_CONCAT(DISTINCT(?founderLabel); separator=\", \") as ?founders)" +
-                    " (GROUP_CONCAT(DISTINCT(?industryLabel); separator=\", \") as ?divisions)" +
-                    " (GROUP_CONCAT(DISTINCT(?headquarterLabel); separator=\", \") as ?headquarters)" +
-                    " (GROUP_CONCAT(DISTINCT(?developerLabel); separator=\", \") as ?developers)" +
-                    " (GROUP_CONCAT(DISTINCT(?languageLabel); separator=\", \") as ?languages)" +
-                    " (GROUP_CONCAT(DISTINCT(?licenseLabel); separator=\", \") as ?licenses)" +
-                    " (GROUP_CONCAT(DISTINCT(?awardLabel); separator=\", \") as ?awards)" +
-                    " WHERE {" +
-                        " ?brand ?label \"%s\" ." + // Search by Brand name
-                        " { ?brand wdt:P31/wdt:P279* wd:Q4830453 . }" + // Business enterprise (instance of any subclass of)
-                        " UNION" +
-                        " { ?brand wdt:P31/wdt:P279* wd:Q215380 . }" +  // Band (instance of any subclass of)
-                        " UNION" +
-                        " { ?brand wdt:P31/wdt:P279* wd:Q7397 . }" +    // Software (instance of any subclass of)
-                    " OPTIONAL { ?brand wdt:P112 ?founder . }" +
-                    " OPTIONAL { ?brand wdt:P159 ?headquartersLocation . }" +
-                    " OPTIONAL { ?brand wdt:P452 ?industry . }  " +
-                    " OPTIONAL { ?brand wdt:P178 ?developer . }" +
-                    " OPTIONAL { ?brand wdt:P277 ?language . }" +
-                    " OPTIONAL { ?brand wdt:P275 ?license . }" +
-                    " OPTIONAL { ?brand wdt:P166 ?award . }" +
-                " SERVICE wikibase:label {" +
-                    " bd:serviceParam wikibase:language \"%s\" ." + // Language for labels
-                    " ?founder rdfs:label ?founderLabel ." +
-                    " ?industry rdfs:label ?industryLabel ." +
-                    " ?headquartersLocation rdfs:label ?headquarterLabel ." +
-                    " ?developer rdfs:label ?developerLabel ." +
-                    " ?language rdfs:label ?languageLabel ." +
-                    " ?license rdfs:label ?licenseLabel ." +
-                    " ?award rdfs:label ?awardLabel }" +
-                "} } }" +
-                " ORDER BY ?brand" +
-                " LIMIT 1";
-
-        return String.format(query, brandName, language, brandName, language);
+     * @param action The action of the API, like {@code wbgetentities}.
+     * @return A builder of the URL, with the action and the JSON format.
+     */
+    private static HttpUrl.Builder getWikidataApiUrl(String action) {
+        return HttpUrl.parse(WIKIDATA_API_BASE_URL)
+                .newBuilder()
+                .addQueryParameter("action", action)
+                .addQueryParameter("format", "json");
     }
 
-    private class WikipediaQueryRequest {
+    private static class WikipediaQueryRequest {
         String articleName;
         String wikipediaApiUrl;
-        String wikipediaWikIUrl;
         Locale queryLocale;
 
-        WikipediaQueryRequest get(String articleNameInEnglish, Locale locale) {
-            // Compare the device's language with English and then set the article name that will be queried
-            if (!locale.getLanguage().equals(Locale.ENGLISH.getLanguage())) {
-                articleName = queryArticleTitleWikipedia(articleNameInEnglish, locale);
+        WikipediaQueryRequest get(String articleNameInEnglish, String articleNameInLocale, Locale locale) {
+            // Use the article on the device's language, if it was found
+            if (articleNameInLocale != null && !locale.getLanguage().equals(Locale.ENGLISH.getLanguage())) {
+                articleName = articleNameInLocale;
                 wikipediaApiUrl = getWikipediasApiUrl(locale);
-                wikipediaWikIUrl = getWikipediasWikiUrl(locale, articleName);
                 queryLocale = locale;
-            }
-
-            if (articleName == null || wikipediaApiUrl == null) {
+            } else {
                 articleName = articleNameInEnglish;
                 wikipediaApiUrl = getWikipediasApiUrl(Locale.ENGLISH);
-                wikipediaWikIUrl = getWikipediasWikiUrl(Locale.ENGLISH, articleName);
                 queryLocale = Locale.ENGLISH;
             }
 
@@ -463,9 +749,430 @@ public class RestApisConsumer extends IntentService {
             return "WikipediaQueryRequest{" +
                     "articleName='" + articleName + '\'' +
                     ", wikipediaApiUrl='" + wikipediaApiUrl + '\'' +
-                    ", wikipediaWikIUrl='" + wikipediaWikIUrl + '\'' +
                     ", queryLocale=" + queryLocale +
                     '}';
         }
     }
+
+    /**
+     * Listener of an {@link ArticleLookup}. Its methods are called by the {@link CallGroup}, one
+     * at a time.
+     */
+    private static abstract class ArticleListener {
+
+        /**
+         * Called when the article to be queried is known, before its info is extracted.
+         *
+         * @param qryRequest The article.
+         */
+        void onQueryRequest(WikipediaQueryRequest qryRequest) {
+        }
+
+        /**
+         * Called when the info of the article is extracted. It isn't called if the article is
+         * not found.
+         *
+         * @param wikiArticleInfo The info of the article.
+         */
+        abstract void onArticle(WikiArticleInfo wikiArticleInfo);
+    }
+
+    /**
+     * Listener of a {@link BrandTypeCheck}. It's called by the {@link CallGroup}, like the results
+     * of the queries.
+     */
+    private static abstract class BrandListener {
+
+        /**
+         * Called when the check finishes.
+         *
+         * @param brand The first candidate that is a brand, or {@code null} if there is none.
+         * @param complete {@code false} if some classes couldn't be checked (like when a query
+         *                 failed), so a candidate may have been rejected by mistake.
+         */
+        abstract void onBrand(WikiDataEntities.Entity brand, boolean complete);
+    }
+
+    /**
+     * <p>Lookup of an article about {@code articleNameInEnglish} on the Wikipedia of the device's
+     * language, that usually takes a single round trip.</p>
+     *
+     * <p>If the title on that language is cached (see {@link TitleCache}), or the language is
+     * English, its info is extracted right away. Otherwise the info is extracted by the English
+     * name, that often is the same or a redirect; meanwhile the title on that language is queried
+     * from the English Wikipedia. The language link is the right article, so the article found by
+     * the English name is used only if it has the same title, or if there is no link.</p>
+     */
+    private class ArticleLookup {
+        private final CallGroup calls;
+        private final String articleNameInEnglish;
+        private final Locale locale;
+        private final int maxSentences;
+        private final ArticleListener listener;
+
+        // State of the lookup, changed only by the results of the queries (one at a time)
+        private boolean directQueried;
+        private WikiArticleInfo directArticle;
+        private boolean titleQueried;
+        private String translatedTitle;
+
+        ArticleLookup(CallGroup calls, String articleNameInEnglish, Locale locale, int maxSentences,
+                      ArticleListener listener) {
+            this.calls = calls;
+            this.articleNameInEnglish = articleNameInEnglish;
+            this.locale = locale;
+            this.maxSentences = maxSentences;
+            this.listener = listener;
+        }
+
+        /**
+         * Starts the lookup. Nothing is changed by this method, the listener is called by the
+         * group.
+         */
+        void start() {
+            // The English Wikipedia is queried directly
+            if (locale.getLanguage().equals(Locale.ENGLISH.getLanguage())) {
+                queryArticle(new WikipediaQueryRequest().get(articleNameInEnglish, null, locale));
+                return;
+            }
+
+            // Skip the translation if the title is cached
+            final String cachedTitle = titleCache.get(articleNameInEnglish, locale.getLanguage());
+            if (cachedTitle != null) {
+                final String articleName = TitleCache.NO_TITLE.equals(cachedTitle) ? null : cachedTitle;
+                queryArticle(new WikipediaQueryRequest().get(articleNameInEnglish, articleName, locale));
+                return;
+            }
+
+            // Look for the English name on the device's language
+            final WikipediaQueryRequest directRequest = new WikipediaQueryRequest().get(articleNameInEnglish, articleNameInEnglish, locale);
+            queryInfoFromWikipedia(calls, directRequest, maxSentences, new ArticleQuery(directRequest) {
+                @Override
+                protected void onResult(WikiArticleInfo wikiArticleInfo) {
+                    // Wait for the title on the device's language, it may be another article
+                    directQueried = true;
+                    directArticle = wikiArticleInfo;
+                    if (titleQueried) finish();
+                }
+            });
+
+            // Meanwhile, query the title on the device's language
+            queryArticleTitleWikipedia(calls, articleNameInEnglish, locale, new CallGroup.Query<String>() {
+                @Override
+                protected String parse(Response response) throws IOException {
+                    if (!response.isSuccessful()) throw new IOException("Unexpected response " + response.code());
+
+                    // De-serialize the response
+                    final WikiArticleInfo wikiArticleInfo = gson.fromJson(response.body().string(), WikiArticleInfo.class);
+                    if (wikiArticleInfo == null) throw new IOException("Empty response");
+
+                    // The article may not exist or have no links to other languages
+                    String articleName;
+                    try {
+                        articleName = wikiArticleInfo.getTitleForLocale(locale);
+                    } catch (NullPointerException e) {
+                        articleName = null;
+                    }
+                    return articleName != null ? articleName : TitleCache.NO_TITLE;
+                }
+
+                @Override
+                protected void onResult(String articleName) {
+                    // Cache just the valid responses (the errors may not happen again). Without a
+                    // link (NO_TITLE), the next lookups use the English name.
+                    if (articleName != null) titleCache.put(articleNameInEnglish, locale.getLanguage(), articleName);
+
+                    titleQueried = true;
+                    translatedTitle = TitleCache.NO_TITLE.equals(articleName) ? null : articleName;
+                    if (directQueried) finish();
+                }
+            });
+        }
+
+        /**
+         * Picks the article once the English name was looked up and the title on the device's
+         * language is known. The article found by the English name is used if the title is the
+         * same, or if there is no title (or it couldn't be queried). Otherwise the article of the
+         * title is queried.
+         */
+        private void finish() {
+            if (directArticle != null && (translatedTitle == null
+                    || translatedTitle.equals(directArticle.getTitle())
+                    || translatedTitle.equals(articleNameInEnglish))) {
+                // The article was found by its English name (or a redirect). Its title isn't
+                // cached, the cache holds just the titles of the language links.
+                listener.onQueryRequest(new WikipediaQueryRequest().get(articleNameInEnglish, directArticle.getTitle(), locale));
+                listener.onArticle(directArticle);
+                return;
+            }
+
+            queryTranslatedArticle();
+        }
+
+        /**
+         * Queries the article by the title on the device's language, or the English one if there
+         * is none. Called when the article found by the English name isn't used.
+         */
+        private void queryTranslatedArticle() {
+            // The English name was already looked up on the device's language
+            if (translatedTitle == null || translatedTitle.equals(articleNameInEnglish)) translatedTitle = null;
+            queryArticle(new WikipediaQueryRequest().get(articleNameInEnglish, translatedTitle, locale));
+        }
+
+        /**
+         * Extracts the info of the article of {@code qryRequest}.
+         */
+        private void queryArticle(WikipediaQueryRequest qryRequest) {
+            listener.onQueryRequest(qryRequest);
+            queryInfoFromWikipedia(calls, qryRequest, maxSentences, new ArticleQuery(qryRequest) {
+                @Override
+                protected void onResult(WikiArticleInfo wikiArticleInfo) {
+                    if (wikiArticleInfo != null) listener.onArticle(wikiArticleInfo);
+                }
+            });
+        }
+    }
+
+    /**
+     * <p>Check of the type of the entities that may be a brand. Just the instances of a business,
+     * a musical group or a software (see {@link #BRAND_CLASSES}), or of any of their subclasses,
+     * are brands. Otherwise a brand could be confused with other things with the same name, like
+     * the fruit for "Apple".</p>
+     *
+     * <p>The classes of the candidates ({@code P31}) are walked up by their superclasses
+     * ({@code P279}), a level per round trip, until a brand class is found or
+     * {@link #MAX_CLASS_DEPTH} is reached. The verdicts of the classes of the candidates are stored
+     * on the {@link BrandStore}, so the common ones (like "public company") don't need any
+     * request.</p>
+     */
+    private class BrandTypeCheck {
+        private final CallGroup calls;
+        private final List<WikiDataEntities.Entity> candidates;
+        private final BrandListener listener;
+
+        // State of the check, changed only by the results of the queries (one at a time)
+        private final Set<String> brandClasses = new HashSet<>();
+        private final Set<String> walkedClasses = new HashSet<>();
+        private final Map<String, Set<String>> reachedFrom = new HashMap<>();
+        private Map<String, Set<String>> frontier = new LinkedHashMap<>();
+        private Map<String, Set<String>> nextFrontier;
+        private int pendingQueries;
+        private boolean failed;
+        private boolean complete = true;
+        private int depth;
+
+        /**
+         * @param candidates The entities, with their claims, from the one preferred.
+         */
+        BrandTypeCheck(CallGroup calls, List<WikiDataEntities.Entity> candidates, BrandListener listener) {
+            this.calls = calls;
+            this.candidates = candidates;
+            this.listener = listener;
+        }
+
+        /**
+         * Starts the check. If the classes of the candidates are known, the listener is called
+         * right away.
+         */
+        void start() {
+            for (WikiDataEntities.Entity candidate : candidates) {
+                for (String classId : candidate.getEntityIds(P_INSTANCE_OF)) {
+                    final Boolean stored = BRAND_CLASSES.contains(classId) ? Boolean.TRUE : brandStore.isBrandClass(classId);
+                    if (stored == null) {
+                        walkedClasses.add(classId);
+                        reach(classId, Collections.singleton(classId), frontier);
+                    } else if (stored) {
+                        brandClasses.add(classId);
+                    }
+                }
+            }
+            next();
+        }
+
+        /**
+         * Queries the superclasses of the frontier, or finishes the check if a candidate was
+         * decided.
+         */
+        private void next() {
+            if (isDecided() || frontier.isEmpty() || depth == MAX_CLASS_DEPTH) {
+                finish();
+                return;
+            }
+
+            // The classes of the level are queried at the same time, by as few requests as possible
+            final List<List<String>> chunks = partitionIds(new ArrayList<>(frontier.keySet()));
+            nextFrontier = new LinkedHashMap<>();
+            pendingQueries = chunks.size();
+            for (final List<String> ids : chunks) {
+                final HttpUrl url = getWikidataApiUrl("wbgetentities")
+                        .addQueryParameter("ids", TextUtils.join("|", ids))
+                        .addQueryParameter("props", "claims")
+                        .build();
+
+                calls.enqueue(new Request.Builder().url(url).get().build(), new EntitiesQuery() {
+                    @Override
+                    protected void onResult(WikiDataEntities wikiDataEntities) {
+                        if (wikiDataEntities == null || wikiDataEntities.getEntities() == null) {
+                            failed = true;
+                        } else {
+                            walkUp(ids, wikiDataEntities);
+                        }
+                        if (--pendingQueries > 0) return;
+
+                        // The whole level is known, walk up the next one
+                        if (failed) {
+                            complete = false;
+                            finish();
+                            return;
+                        }
+                        frontier = nextFrontier;
+                        depth++;
+                        next();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Adds the superclasses of the classes {@code ids} to {@link #nextFrontier}, or marks their
+         * origins as brand classes.
+         */
+        private void walkUp(List<String> ids, WikiDataEntities wikiDataEntities) {
+            for (String id : ids) {
+                final WikiDataEntities.Entity entity = wikiDataEntities.getEntities().get(id);
+                if (entity == null) continue;
+
+                for (String superclassId : entity.getEntityIds(P_SUBCLASS_OF)) {
+                    final Boolean stored = BRAND_CLASSES.contains(superclassId) ? Boolean.TRUE : brandStore.isBrandClass(superclassId);
+                    if (stored == null) {
+                        reach(superclassId, frontier.get(id), nextFrontier);
+                    } else if (stored) {
+                        brandClasses.addAll(frontier.get(id));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds {@code classId} to {@code nextFrontier}, reached from the classes of the candidates
+         * {@code origins}. The origins already known to be brand classes, or that reached the
+         * class before, are skipped.
+         */
+        private void reach(String classId, Set<String> origins, Map<String, Set<String>> nextFrontier) {
+            Set<String> reached = reachedFrom.get(classId);
+            if (reached == null) {
+                reached = new HashSet<>();
+                reachedFrom.put(classId, reached);
+            }
+
+            for (String origin : origins) {
+                if (brandClasses.contains(origin) || !reached.add(origin)) continue;
+
+                Set<String> next = nextFrontier.get(classId);
+                if (next == null) {
+                    next = new HashSet<>();
+                    nextFrontier.put(classId, next);
+                }
+                next.add(origin);
+            }
+        }
+
+        /**
+         * @return {@code true} if the preferred candidate that may be a brand is already known to
+         * be one.
+         */
+        private boolean isDecided() {
+            for (WikiDataEntities.Entity candidate : candidates) {
+                if (isBrand(candidate)) return true;
+                if (isPending(candidate)) return false;
+            }
+            return true;
+        }
+
+        private boolean isBrand(WikiDataEntities.Entity candidate) {
+            for (String classId : candidate.getEntityIds(P_INSTANCE_OF)) {
+                if (brandClasses.contains(classId)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return {@code true} if a class of {@code candidate} is still being walked up.
+         */
+        private boolean isPending(WikiDataEntities.Entity candidate) {
+            final Set<String> classIds = candidate.getEntityIds(P_INSTANCE_OF);
+            for (Set<String> origins : frontier.values()) {
+                for (String origin : origins) {
+                    if (classIds.contains(origin)) return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Stores the verdicts of the classes of the candidates that were walked up, then calls the
+         * listener. The classes not found to be brand classes are stored just when the check was
+         * complete and they were walked up to the end (or to {@link #MAX_CLASS_DEPTH}).
+         */
+        private void finish() {
+            // The classes still being walked up may be brand classes, unless the max depth was reached
+            final Set<String> pending = new HashSet<>();
+            if (depth < MAX_CLASS_DEPTH) {
+                for (Set<String> origins : frontier.values()) {
+                    pending.addAll(origins);
+                }
+            }
+
+            for (String classId : walkedClasses) {
+                final boolean brandClass = brandClasses.contains(classId);
+                if (brandClass || (complete && !pending.contains(classId))) brandStore.putBrandClass(classId, brandClass);
+            }
+
+            for (WikiDataEntities.Entity candidate : candidates) {
+                if (isBrand(candidate)) {
+                    listener.onBrand(candidate, complete);
+                    return;
+                }
+            }
+            listener.onBrand(null, complete);
+        }
+    }
+
+    /**
+     * Query of the info extracted from an article on Wikipedia. Its result is {@code null} if the
+     * article doesn't exist or is a disambiguation page.
+     */
+    private abstract class ArticleQuery extends CallGroup.Query<WikiArticleInfo> {
+        private final WikipediaQueryRequest qryRequest;
+
+        ArticleQuery(WikipediaQueryRequest qryRequest) {
+            this.qryRequest = qryRequest;
+        }
+
+        @Override
+        protected WikiArticleInfo parse(Response response) throws IOException {
+            // De-serialize the response
+            WikiArticleInfo wai = gson.fromJson(response.body().string(), WikiArticleInfo.class);
+            if (wai == null || wai.isMissing() || wai.isDisambiguation()) return null;
+
+            // Add the Wikipedia Article URL to response, by the title found after the redirects
+            wai.wikipediaArticleUrl = getWikipediasWikiUrl(qryRequest.queryLocale, wai.getTitle());
+            // Return the response
+            return wai;
+        }
+    }
+
+    /**
+     * Query of entities on Wikidata's API.
+     */
+    private abstract class EntitiesQuery extends CallGroup.Query<WikiDataEntities> {
+
+        @Override
+        protected WikiDataEntities parse(Response response) throws IOException {
+            if (!response.isSuccessful()) throw new IOException("Unexpected response " + response.code());
+
+            // De-serialize the response
+            return gson.fromJson(response.body().string(), WikiDataEntities.class);
+        }
+    }
 }
@@ -0,0 +1,192 @@
+package io.github.mathiasberwig.cloudvision.controller.vision;
+
+import android.support.annotation.NonNull;
+import android.util.Base64;
+import android.util.Base64OutputStream;
+
+import com.google.api.client.http.AbstractHttpContent;
+import com.google.api.client.http.HttpMediaType;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.Charsets;
+import com.google.api.services.vision.v1.model.BatchAnnotateImagesRequest;
+import com.google.api.services.vision.v1.model.Feature;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Streaming body of a {@link BatchAnnotateImagesRequest}. Instead of holding the base64 image in
+ * a String (as {@link com.google.api.services.vision.v1.model.Image#encodeContent(byte[])} does)
+ * and serializing the whole request to a buffer, this content writes the JSON envelope by hand and
+ * base64-encodes each {@link ImageSource} straight to the connection's stream.</p>
+ *
+ * <p>The memory used while sending is constant (a copy buffer plus the features JSON), no matter
+ * the size of the images.</p>
+ */
+public class AnnotateRequestContent extends AbstractHttpContent {
+
+    /**
+     * Same encoding of {@code Image#encodeContent}: URL safe, without padding or line breaks.
+     */
+    private static final int BASE64_FLAGS = Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING;
+
+    private static final byte[] BATCH_START = "{\"requests\":[".getBytes(Charsets.UTF_8);
+    private static final byte[] BATCH_END = "]}".getBytes(Charsets.UTF_8);
+    private static final byte[] REQUEST_SEPARATOR = ",".getBytes(Charsets.UTF_8);
+    private static final byte[] IMAGE_START = "{\"image\":{\"content\":\"".getBytes(Charsets.UTF_8);
+    private static final byte[] FEATURES_START = "\"},\"features\":".getBytes(Charsets.UTF_8);
+    private static final byte[] REQUEST_END = "}".getBytes(Charsets.UTF_8);
+
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    private final JsonFactory jsonFactory;
+    private final List<Entry> entries = new ArrayList<>();
+
+    public AnnotateRequestContent(JsonFactory jsonFactory) {
+        super(new HttpMediaType("application/json; charset=UTF-8"));
+        this.jsonFactory = jsonFactory;
+    }
+
+    /**
+     * Adds an {@code AnnotateImageRequest} to the batch.
+     *
+     * @param image The compressed image to be annotated.
+     * @param features The features requested for the {@code image}.
+     * @return This content, so calls can be chained.
+     * @throws IOException If the features can't be serialized.
+     */
+    public AnnotateRequestContent addRequest(@NonNull ImageSource image, @NonNull List<Feature> features) throws IOException {
+        entries.add(new Entry(image, jsonFactory.toByteArray(features)));
+        return this;
+    }
+
+    /**
+     * @return The number of {@code AnnotateImageRequest} added to the batch.
+     */
+    public int getRequestCount() {
+        return entries.size();
+    }
+
+    @Override
+    protected long computeLength() throws IOException {
+        long length = BATCH_START.length + BATCH_END.length;
+
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+            final long imageLength = entry.image.getLength();
+
+            // Chunked transfer will be used if the size of any image is unknown
+            if (imageLength < 0) return -1;
+
+            if (i > 0) length += REQUEST_SEPARATOR.length;
+            length += IMAGE_START.length + getBase64Length(imageLength) + FEATURES_START.length
+                    + entry.features.length + REQUEST_END.length;
+        }
+
+        return length;
+    }
+
+    @Override
+    public boolean retrySupported() {
+        // Every ImageSource can be opened again
+        return true;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+
+        out.write(BATCH_START);
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+
+            if (i > 0) out.write(REQUEST_SEPARATOR);
+            out.write(IMAGE_START);
+
+            // Encode the image while it's read. Closing the Base64OutputStream writes the last
+            // quantum, but must not close the connection's stream.
+            final OutputStream base64 = new Base64OutputStream(new NonClosingOutputStream(out), BASE64_FLAGS);
+            final InputStream in = entry.image.open();
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    base64.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+                base64.close();
+            }
+
+            out.write(FEATURES_START);
+            out.write(entry.features);
+            out.write(REQUEST_END);
+        }
+        out.write(BATCH_END);
+        out.flush();
+    }
+
+    /**
+     * Describes the requests of the batch: the size of each image and its features. The images
+     * themselves are left out, so it's safe to log.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder description = new StringBuilder("[");
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+
+            if (i > 0) description.append(',');
+            description.append("{\"image\":{\"length\":").append(entry.image.getLength())
+                    .append("},\"features\":").append(new String(entry.features, Charsets.UTF_8))
+                    .append('}');
+        }
+        return description.append(']').toString();
+    }
+
+    /**
+     * Computes the size of a base64 string without padding.
+     *
+     * @param length The number of bytes that will be encoded.
+     * @return The number of chars of the encoded string.
+     */
+    private static long getBase64Length(long length) {
+        return (length * 4 + 2) / 3;
+    }
+
+    /**
+     * An image and its features serialized as JSON.
+     */
+    private static class Entry {
+        final ImageSource image;
+        final byte[] features;
+
+        Entry(ImageSource image, byte[] features) {
+            this.image = image;
+            this.features = features;
+        }
+    }
+
+    /**
+     * Stream that forwards everything to {@code out}, except the call to {@link #close()}.
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package io.github.mathiasberwig.cloudvision.controller.vision;
+
+import android.util.Log;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import io.github.mathiasberwig.cloudvision.controller.CancellationToken;
+
+/**
+ * <p>Policy used to execute a call to a remote API. It makes a call more resilient to slow or
+ * broken connections:
+ * <li>The call, with all its attempts, must finish before a deadline.</li>
+ * <li>Failed attempts are retried after a jittered exponential backoff, but only when the error
+ * is transient (see {@link #isRetryable(IOException)}).</li>
+ * <li>Optionally, when an attempt takes longer than the 95th percentile of the recent calls, a
+ * second copy of it is sent (a hedged request). The first copy that succeeds wins, and the HTTP
+ * calls of the other one are aborted.</li></p>
+ *
+ * <p>The call must be idempotent, since it may be executed more than once, even at the same time.
+ * A policy keeps the latencies of its calls, so the same instance should be used for all calls of
+ * the same kind.</p>
+ */
+public class CallPolicy {
+    private static final String TAG = CallPolicy.class.getName();
+
+    /**
+     * HTTP statuses of the errors that are retried: request timeout, too many requests and the
+     * server errors that are usually transient.
+     */
+    private static final int[] RETRYABLE_STATUSES = {408, 429, 500, 502, 503, 504};
+
+    /**
+     * Number of recent latencies used to calculate the delay of the hedged requests.
+     */
+    private static final int LATENCY_SAMPLES = 64;
+
+    /**
+     * Min number of latencies recorded before the requests are hedged.
+     */
+    private static final int MIN_LATENCY_SAMPLES = 16;
+
+    private static final int INITIAL_BACKOFF_MILLIS = 500;
+    private static final int MAX_BACKOFF_MILLIS = 8 * 1000;
+    private static final double BACKOFF_MULTIPLIER = 2;
+    private static final double BACKOFF_RANDOMIZATION_FACTOR = 0.5;
+
+    /**
+     * Max number of attempts with a hedged copy at the same time, by all policies. A slow attempt
+     * isn't hedged when it's reached, so a slow network doesn't get even more calls.
+     */
+    private static final int MAX_HEDGED_COPIES = 4;
+
+    /**
+     * Permits for the attempts with a hedged copy.
+     */
+    private static final Semaphore HEDGED_COPIES = new Semaphore(MAX_HEDGED_COPIES);
+
+    /**
+     * Executes the copies of the calls, so the caller can give up on them when the deadline is
+     * reached or a hedged copy wins. The copies abandoned are aborted through their tokens, so
+     * the threads are released soon.
+     */
+    private static final ExecutorService CALL_EXECUTOR = Executors.newCachedThreadPool();
+
+    private final long deadlineMillis;
+    private final int maxAttempts;
+    private final boolean hedging;
+
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int latencyCount;
+
+    /**
+     * Default (and main) constructor.
+     *
+     * @param deadlineMillis The max time of a call, including all its attempts and backoffs.
+     * @param maxAttempts The max number of attempts of a call (1 disables the retries).
+     * @param hedging {@code true} to send a second copy of slow attempts.
+     */
+    public CallPolicy(long deadlineMillis, int maxAttempts, boolean hedging) {
+        this.deadlineMillis = deadlineMillis;
+        this.maxAttempts = maxAttempts;
+        this.hedging = hedging;
+    }
+
+    /**
+     * Executes {@code call} following this policy.
+     *
+     * @param call The call. It's executed on another thread, maybe more than once at the same time.
+     * @param trace The trace of the call, where the attempts are recorded.
+     * @param cancellationToken The token of the analysis. No attempt is made after it's cancelled.
+     * @return The result of the first attempt that succeeds.
+     * @throws InterruptedIOException If the deadline is reached, the analysis is cancelled or the
+     * thread is interrupted.
+     * @throws IOException The error of the last attempt, if none succeeds.
+     */
+    public <T> T execute(Call<T> call, CallTrace trace, CancellationToken cancellationToken) throws IOException {
+        final long deadline = now() + deadlineMillis;
+        final BackOff backOff = new ExponentialBackOff.Builder()
+                .setInitialIntervalMillis(INITIAL_BACKOFF_MILLIS)
+                .setMaxIntervalMillis(MAX_BACKOFF_MILLIS)
+                .setMultiplier(BACKOFF_MULTIPLIER)
+                .setRandomizationFactor(BACKOFF_RANDOMIZATION_FACTOR)
+                .setMaxElapsedTimeMillis((int) deadlineMillis)
+                .build();
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return executeAttempt(call, deadline, trace, cancellationToken);
+            } catch (IOException e) {
+                if (cancellationToken.isCancelled() || attempt >= maxAttempts || !isRetryable(e)) throw e;
+
+                // Give up if the next attempt would start after the deadline
+                final long backOffMillis = backOff.nextBackOffMillis();
+                if (backOffMillis == BackOff.STOP || now() + backOffMillis >= deadline) throw e;
+
+                Log.d(TAG, "attempt " + attempt + " failed because " + e + ", retrying in " + backOffMillis + " ms");
+                trace.put("retry", e.getClass().getSimpleName());
+                awaitBackOff(backOffMillis, cancellationToken);
+            }
+        }
+    }
+
+    /**
+     * Executes an attempt of {@code call}, with a hedged copy if it's slow. Each copy gets a child
+     * of {@code cancellationToken}, cancelled when the attempt returns, so the HTTP calls of the
+     * copies still running are aborted.
+     *
+     * @param call The call.
+     * @param deadline The time (on {@link #now()}) when the call gives up.
+     * @param trace The trace of the call.
+     * @param cancellationToken The token of the analysis.
+     * @return The result of the first copy that succeeds.
+     * @throws IOException The error of the last copy, if none succeeds.
+     */
+    private <T> T executeAttempt(Call<T> call, long deadline, CallTrace trace, CancellationToken cancellationToken)
+            throws IOException {
+        final CompletionService<T> completion = new ExecutorCompletionService<>(CALL_EXECUTOR);
+        final List<Future<T>> copies = new ArrayList<>(2);
+        final List<CancellationToken> copyTokens = new ArrayList<>(2);
+        final long start = now();
+
+        copies.add(completion.submit(createCopy(call, cancellationToken, copyTokens)));
+        final long hedgeDelay = hedging ? getHedgeDelay() : -1;
+        boolean hedged = hedgeDelay < 0;
+        boolean hedgePermit = false;
+
+        try {
+            IOException failure = null;
+            int pending = 1;
+            while (pending > 0) {
+                final long remaining = deadline - now();
+                if (remaining <= 0) {
+                    trace.put("deadline", "exceeded");
+                    throw new InterruptedIOException("Deadline exceeded");
+                }
+
+                // Before the hedged copy is sent, wait just until its delay
+                long wait = remaining;
+                if (!hedged) wait = Math.max(0, Math.min(remaining, start + hedgeDelay - now()));
+                final Future<T> done = completion.poll(wait, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    if (!hedged) {
+                        hedged = true;
+                        hedgePermit = HEDGED_COPIES.tryAcquire();
+                        if (hedgePermit) {
+                            copies.add(completion.submit(createCopy(call, cancellationToken, copyTokens)));
+                            pending++;
+                            trace.put("hedgedAfterMs", hedgeDelay);
+                        }
+                    }
+                    continue;
+                }
+
+                pending--;
+                try {
+                    final T result = done.get();
+                    addLatency(now() - start);
+                    return result;
+                } catch (ExecutionException e) {
+                    failure = toIOException(e.getCause());
+                }
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting the call");
+        } finally {
+            // Abort the copies still running, their results are not needed anymore. Blocking socket
+            // I/O ignores the interruption, so their HTTP calls are cancelled through their tokens.
+            for (CancellationToken copyToken : copyTokens) {
+                copyToken.cancel();
+            }
+            for (Future<T> copy : copies) {
+                copy.cancel(true);
+            }
+            if (hedgePermit) HEDGED_COPIES.release();
+        }
+    }
+
+    /**
+     * Creates a copy of {@code call} with a child of {@code cancellationToken}, added to
+     * {@code copyTokens}.
+     */
+    private static <T> Callable<T> createCopy(final Call<T> call, CancellationToken cancellationToken,
+                                              List<CancellationToken> copyTokens) {
+        final CancellationToken copyToken = cancellationToken.createChild();
+        copyTokens.add(copyToken);
+        return new Callable<T>() {
+            @Override
+            public T call() throws IOException {
+                return call.execute(copyToken);
+            }
+        };
+    }
+
+    /**
+     * Checks if the call should be retried after {@code e}: network errors, timeouts and the
+     * {@link #RETRYABLE_STATUSES}. Errors of the request itself (like other statuses or a missing
+     * file) would fail again, as well as an interrupted or expired call.
+     *
+     * @param e The error of the attempt.
+     * @return {@code true} if another attempt may succeed.
+     */
+    public static boolean isRetryable(IOException e) {
+        if (e instanceof HttpResponseException) {
+            final int status = ((HttpResponseException) e).getStatusCode();
+            for (int retryableStatus : RETRYABLE_STATUSES) {
+                if (status == retryableStatus) return true;
+            }
+            return false;
+        }
+
+        if (e instanceof FileNotFoundException) return false;
+
+        // Timeouts are subclasses of InterruptedIOException too, but they can be retried
+        if (e instanceof InterruptedIOException) return e instanceof SocketTimeoutException;
+
+        return true;
+    }
+
+    /**
+     * Calculates the delay of the hedged copies: the 95th percentile of the recent latencies.
+     *
+     * @return The delay in milliseconds, or {@code -1} if there aren't enough latencies yet.
+     */
+    private synchronized long getHedgeDelay() {
+        final int count = Math.min(latencyCount, LATENCY_SAMPLES);
+        if (count < MIN_LATENCY_SAMPLES) return -1;
+
+        final long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(count * 0.95) - 1];
+    }
+
+    /**
+     * Records the latency of a successful attempt, replacing the oldest one.
+     */
+    private synchronized void addLatency(long latency) {
+        latencies[latencyCount % LATENCY_SAMPLES] = latency;
+        latencyCount++;
+    }
+
+    /**
+     * @return The current time in milliseconds, from a monotonic clock (it isn't changed with the
+     * time of the device).
+     */
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Waits {@code millis} before the next attempt, unless the analysis is cancelled meanwhile.
+     *
+     * @throws InterruptedIOException If the analysis is cancelled or the thread is interrupted.
+     */
+    private static void awaitBackOff(long millis, CancellationToken cancellationToken) throws InterruptedIOException {
+        try {
+            if (cancellationToken.await(millis)) cancellationToken.throwIfCancelled();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting the backoff");
+        }
+    }
+
+    /**
+     * Unwraps the error thrown by a copy of the call.
+     */
+    private static IOException toIOException(Throwable cause) {
+        if (cause instanceof IOException) return (IOException) cause;
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        return new IOException(cause);
+    }
+
+    /**
+     * A call executed by a policy.
+     *
+     * @param <T> The type of the result.
+     */
+    public interface Call<T> {
+
+        /**
+         * Executes a copy of the call. It's executed on another thread, maybe more than once at
+         * the same time.
+         *
+         * @param copyToken The token of this copy. The HTTP calls of the copy must be registered on
+         *                  it, so they are aborted when the copy isn't needed anymore (another copy
+         *                  won, the deadline was reached or the analysis was cancelled).
+         * @return The result of the call.
+         * @throws IOException If the call fails.
+         */
+        T execute(CancellationToken copyToken) throws IOException;
+    }
+}
@@ -0,0 +1,108 @@
+package io.github.mathiasberwig.cloudvision.controller.vision;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Random;
+
+import io.github.mathiasberwig.cloudvision.BuildConfig;
+
+/**
+ * <p>Trace of a single call to a remote API. It records the shape of the call (like the number of
+ * images, the features and the payload size), the time spent on each stage and the result, then
+ * logs them all in a single line when the call ends.</p>
+ *
+ * <p>Just a share of the calls is traced, as set by {@code BuildConfig.TRACE_SAMPLE_RATE}. The
+ * others get a trace that ignores everything, so tracing them costs nothing.</p>
+ *
+ * <p>The values must never contain the content of the images. The full request and response are
+ * only logged by {@link #dump(String, Object)} on builds with {@code BuildConfig.TRACE_FULL_DUMP}
+ * (it's always off on release builds).</p>
+ *
+ * <p>The methods are synchronized, because the attempts of a call may run on other threads (see
+ * {@link CallPolicy}).</p>
+ */
+public class CallTrace {
+    private static final String TAG = CallTrace.class.getName();
+
+    private static final Random RANDOM = new Random();
+
+    /**
+     * Trace given to the calls that are not sampled.
+     */
+    private static final CallTrace NOT_SAMPLED = new CallTrace(null);
+
+    private final String name;
+    private final StringBuilder values = new StringBuilder();
+    private final long startTime;
+    private long stageStartTime;
+
+    private CallTrace(String name) {
+        this.name = name;
+        this.startTime = SystemClock.elapsedRealtime();
+        this.stageStartTime = startTime;
+    }
+
+    /**
+     * Starts the trace of a call, if it's sampled.
+     *
+     * @param name The name of the call, like {@code annotate}.
+     * @return The trace of the call. If the call isn't sampled, it just ignores every value.
+     */
+    public static CallTrace begin(String name) {
+        if (RANDOM.nextDouble() >= BuildConfig.TRACE_SAMPLE_RATE) return NOT_SAMPLED;
+        return new CallTrace(name);
+    }
+
+    /**
+     * @return {@code true} if this call is traced. Values that are expensive to create should be
+     * created only when it's {@code true}.
+     */
+    public boolean isSampled() {
+        return name != null;
+    }
+
+    /**
+     * Records a value of the call.
+     *
+     * @param key The name of the value.
+     * @param value The value. It must not contain image content.
+     * @return This trace, so calls can be chained.
+     */
+    public synchronized CallTrace put(String key, Object value) {
+        if (isSampled()) values.append(' ').append(key).append('=').append(value);
+        return this;
+    }
+
+    /**
+     * Records the time spent since the previous stage (or the start of the call).
+     *
+     * @param stage The name of the stage that just finished, like {@code send}.
+     * @return This trace, so calls can be chained.
+     */
+    public synchronized CallTrace endStage(String stage) {
+        if (!isSampled()) return this;
+
+        final long now = SystemClock.elapsedRealtime();
+        put(stage + "Ms", now - stageStartTime);
+        stageStartTime = now;
+        return this;
+    }
+
+    /**
+     * Logs the whole {@code content} of the call, if the full dump is enabled on this build.
+     *
+     * @param label What the content is, like {@code response}.
+     * @param content The content. Its {@code toString()} must not contain image content.
+     */
+    public synchronized void dump(String label, Object content) {
+        if (isSampled() && BuildConfig.TRACE_FULL_DUMP) Log.v(TAG, name + " " + label + ": " + content);
+    }
+
+    /**
+     * Logs the values of the call and its total time.
+     */
+    public synchronized void end() {
+        if (isSampled()) Log.d(TAG, name + values + " totalMs=" + (SystemClock.elapsedRealtime() - startTime));
+    }
+}
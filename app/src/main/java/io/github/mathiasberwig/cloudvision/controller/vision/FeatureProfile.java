@@ -0,0 +1,84 @@
+package io.github.mathiasberwig.cloudvision.controller.vision;
+
+import com.google.api.services.vision.v1.model.Feature;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Enum with the features requested to Cloud Vision and the image resolution each one needs. Label
+ * detection works well with small images, while logos need more detail. Features with the same
+ * resolution share the same {@code AnnotateImageRequest}.
+ *
+ * <p>Each feature also has the fields of {@code AnnotateImageResponse} read by the app, so the
+ * other ones can be left out of the response (see {@link #getResponseFields(Iterable)}).</p>
+ */
+public enum FeatureProfile {
+
+    LABEL_DETECTION(640, "labelAnnotations(description,score)"),
+    LOGO_DETECTION(Integer.MAX_VALUE, "logoAnnotations(description,score)"),
+    LANDMARK_DETECTION(1024, "landmarkAnnotations(description,score,locations/latLng)");
+
+    /**
+     * Field of {@code AnnotateImageResponse} that is always requested, whatever the features.
+     */
+    private static final String ERROR_FIELD = "error";
+
+    private final int longEdge;
+    private final String responseFields;
+
+    /**
+     * Default (and main) constructor.
+     *
+     * @param longEdge The size of the longest edge of the image sent with this feature.
+     * @param responseFields The fields of {@code AnnotateImageResponse} read from this feature.
+     */
+    FeatureProfile(int longEdge, String responseFields) {
+        this.longEdge = longEdge;
+        this.responseFields = responseFields;
+    }
+
+    /**
+     * Returns the size of the image that should be sent with this feature.
+     *
+     * @param maxLongEdge The largest image size allowed (as set by the user).
+     * @return The size of the longest edge of the image.
+     */
+    public int getLongEdge(int maxLongEdge) {
+        return Math.min(longEdge, maxLongEdge);
+    }
+
+    /**
+     * Creates a new {@link Feature} of this type.
+     *
+     * @param maxResults The max number of results of the feature.
+     * @return The new feature.
+     */
+    public Feature createFeature(int maxResults) {
+        Feature feature = new Feature();
+        feature.setType(name());
+        feature.setMaxResults(maxResults);
+        return feature;
+    }
+
+    /**
+     * Creates the partial response mask (the {@code fields} parameter) of an annotate call with
+     * {@code features}. Cloud Vision only sends back the fields read by the app.
+     *
+     * @param features The features of all requests of the call.
+     * @return The mask of {@code BatchAnnotateImagesResponse}, like
+     * {@code responses(labelAnnotations(description,score),error)}.
+     */
+    public static String getResponseFields(Iterable<Feature> features) {
+        final Set<FeatureProfile> profiles = EnumSet.noneOf(FeatureProfile.class);
+        for (Feature feature : features) {
+            profiles.add(valueOf(feature.getType()));
+        }
+
+        final StringBuilder fields = new StringBuilder("responses(");
+        for (FeatureProfile profile : profiles) {
+            fields.append(profile.responseFields).append(',');
+        }
+        return fields.append(ERROR_FIELD).append(')').toString();
+    }
+}
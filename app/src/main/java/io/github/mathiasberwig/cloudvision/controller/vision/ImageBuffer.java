@@ -0,0 +1,24 @@
+package io.github.mathiasberwig.cloudvision.controller.vision;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A {@link ByteArrayOutputStream} that can hand its internal array to an {@link ImageSource}
+ * without the copy made by {@link #toByteArray()}.
+ */
+public class ImageBuffer extends ByteArrayOutputStream {
+
+    public ImageBuffer() {
+        super(64 * 1024);
+    }
+
+    /**
+     * Wraps the bytes written so far in an {@link ImageSource}. The buffer must not be written or
+     * reset while the returned source is in use.
+     *
+     * @return An ImageSource sharing the internal array of this buffer.
+     */
+    public synchronized ImageSource asImageSource() {
+        return ImageSource.fromBuffer(buf, 0, count);
+    }
+}
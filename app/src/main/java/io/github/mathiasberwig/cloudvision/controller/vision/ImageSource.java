@@ -0,0 +1,80 @@
+package io.github.mathiasberwig.cloudvision.controller.vision;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A compressed image that can be read (more than once) by {@link AnnotateRequestContent} while the
+ * request is written to the network. It never holds a copy of the image, it just knows how to open
+ * it again.
+ */
+public abstract class ImageSource {
+
+    /**
+     * Opens a new stream with the compressed image bytes. The caller must close it.
+     *
+     * @return A new stream positioned at the first byte of the image.
+     * @throws IOException If the image can't be opened.
+     */
+    public abstract InputStream open() throws IOException;
+
+    /**
+     * Returns the size of the compressed image.
+     *
+     * @return The number of bytes of the image or {@code -1} if it's unknown.
+     */
+    public abstract long getLength();
+
+    /**
+     * Creates an ImageSource backed by a region of an array. The array is not copied, so it must
+     * not be changed while the request is being sent.
+     *
+     * @param buffer The array with the image bytes.
+     * @param offset The position of the first byte of the image.
+     * @param length The number of bytes of the image.
+     * @return A new ImageSource reading from {@code buffer}.
+     */
+    public static ImageSource fromBuffer(@NonNull final byte[] buffer, final int offset, final int length) {
+        return new ImageSource() {
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(buffer, offset, length);
+            }
+
+            @Override
+            public long getLength() {
+                return length;
+            }
+        };
+    }
+
+    /**
+     * Creates an ImageSource that reads the image straight from a content (or file) Uri.
+     *
+     * @param resolver ContentResolver used to open the image.
+     * @param uri The Uri of the image.
+     * @param length The size of the image or {@code -1} if it's unknown.
+     * @return A new ImageSource reading from {@code uri}.
+     */
+    public static ImageSource fromUri(@NonNull final ContentResolver resolver, @NonNull final Uri uri, final long length) {
+        return new ImageSource() {
+            @Override
+            public InputStream open() throws IOException {
+                final InputStream inputStream = resolver.openInputStream(uri);
+                if (inputStream == null) throw new FileNotFoundException("Unable to open " + uri);
+                return inputStream;
+            }
+
+            @Override
+            public long getLength() {
+                return length;
+            }
+        };
+    }
+}
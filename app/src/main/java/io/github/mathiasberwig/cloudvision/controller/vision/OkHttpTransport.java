@@ -0,0 +1,215 @@
+package io.github.mathiasberwig.cloudvision.controller.vision;
+
+import android.support.annotation.NonNull;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import io.github.mathiasberwig.cloudvision.controller.CancellationToken;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+
+/**
+ * <p>{@link HttpTransport} of the Google API clients backed by an {@link OkHttpClient}. All requests
+ * share the connection pool of the client, so the connections (and their TLS sessions) are kept
+ * alive between requests, and HTTP/2 is used when the server supports it.</p>
+ *
+ * <p>Requests with timeouts different from the client's run on a derived client, that still shares
+ * the connection pool and dispatcher.</p>
+ *
+ * <p>A transport created with a {@link CancellationToken} registers its calls on it, so they are
+ * aborted when the analysis is cancelled.</p>
+ */
+public class OkHttpTransport extends HttpTransport {
+
+    private final OkHttpClient client;
+    private final CancellationToken cancellationToken;
+
+    /**
+     * Default (and main) constructor.
+     *
+     * @param client The client that executes the requests.
+     */
+    public OkHttpTransport(@NonNull OkHttpClient client) {
+        this(client, CancellationToken.get(CancellationToken.NO_ID));
+    }
+
+    /**
+     * Creates a transport whose calls are aborted when {@code cancellationToken} is cancelled.
+     *
+     * @param client The client that executes the requests.
+     * @param cancellationToken The token of the analysis.
+     */
+    public OkHttpTransport(@NonNull OkHttpClient client, @NonNull CancellationToken cancellationToken) {
+        this.client = client;
+        this.cancellationToken = cancellationToken;
+    }
+
+    @Override
+    public boolean supportsMethod(String method) {
+        return true;
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new OkHttpRequest(method, url);
+    }
+
+    private class OkHttpRequest extends LowLevelHttpRequest {
+        private final String method;
+        private final Request.Builder builder;
+        private int connectTimeout = client.connectTimeoutMillis();
+        private int readTimeout = client.readTimeoutMillis();
+
+        OkHttpRequest(String method, String url) {
+            this.method = method;
+            this.builder = new Request.Builder().url(url);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            builder.addHeader(name, value);
+        }
+
+        @Override
+        public void setTimeout(int connectTimeout, int readTimeout) {
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            if (getContentEncoding() != null) builder.addHeader("Content-Encoding", getContentEncoding());
+
+            RequestBody body = null;
+            if (getStreamingContent() != null) {
+                body = new StreamingRequestBody(getStreamingContent(), getContentType(), getContentLength());
+            } else if (requiresBody(method)) {
+                body = RequestBody.create(null, new byte[0]);
+            }
+            builder.method(method, body);
+
+            OkHttpClient requestClient = client;
+            if (connectTimeout != client.connectTimeoutMillis() || readTimeout != client.readTimeoutMillis()) {
+                requestClient = client.newBuilder()
+                        .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                        .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                        .writeTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                        .build();
+            }
+
+            return new OkHttpResponse(cancellationToken.register(requestClient.newCall(builder.build())).execute());
+        }
+    }
+
+    /**
+     * OkHttp refuses these methods without a body, even an empty one.
+     */
+    private static boolean requiresBody(String method) {
+        return "POST".equals(method) || "PUT".equals(method) || "PATCH".equals(method);
+    }
+
+    /**
+     * Request body that writes the {@link StreamingContent} straight to the connection.
+     */
+    private static class StreamingRequestBody extends RequestBody {
+        private final StreamingContent content;
+        private final MediaType contentType;
+        private final long contentLength;
+
+        StreamingRequestBody(StreamingContent content, String contentType, long contentLength) {
+            this.content = content;
+            this.contentType = contentType == null ? null : MediaType.parse(contentType);
+            this.contentLength = contentLength;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return contentType;
+        }
+
+        @Override
+        public long contentLength() {
+            return contentLength;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            content.writeTo(sink.outputStream());
+            sink.flush();
+        }
+    }
+
+    private static class OkHttpResponse extends LowLevelHttpResponse {
+        private final Response response;
+
+        OkHttpResponse(Response response) {
+            this.response = response;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return response.body().byteStream();
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return response.header("Content-Encoding");
+        }
+
+        @Override
+        public long getContentLength() {
+            return response.body().contentLength();
+        }
+
+        @Override
+        public String getContentType() {
+            return response.header("Content-Type");
+        }
+
+        @Override
+        public String getStatusLine() {
+            return response.protocol() + " " + response.code() + " " + response.message();
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.code();
+        }
+
+        @Override
+        public String getReasonPhrase() {
+            return response.message();
+        }
+
+        @Override
+        public int getHeaderCount() {
+            return response.headers().size();
+        }
+
+        @Override
+        public String getHeaderName(int index) {
+            return response.headers().name(index);
+        }
+
+        @Override
+        public String getHeaderValue(int index) {
+            return response.headers().value(index);
+        }
+
+        @Override
+        public void disconnect() {
+            response.body().close();
+        }
+    }
+}
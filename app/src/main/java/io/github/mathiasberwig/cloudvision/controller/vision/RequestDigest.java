@@ -0,0 +1,100 @@
+package io.github.mathiasberwig.cloudvision.controller.vision;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 digest of everything that changes the response of an annotate request: the bytes of the
+ * image and the settings used to send it. Equal digests always mean equal requests, so the digest
+ * is used as the key of cached responses.
+ */
+public class RequestDigest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final MessageDigest digest;
+
+    public RequestDigest() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds the bytes of the image at {@code uri} to the digest.
+     *
+     * @param resolver ContentResolver used to open the image.
+     * @param uri The Uri of the image.
+     * @return This digest.
+     * @throws IOException If the image can't be read.
+     */
+    public RequestDigest update(@NonNull ContentResolver resolver, @NonNull Uri uri) throws IOException {
+        final InputStream inputStream = resolver.openInputStream(uri);
+        if (inputStream == null) throw new FileNotFoundException("Unable to open " + uri);
+
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return this;
+    }
+
+    /**
+     * Adds the remaining bytes of {@code buffer} to the digest, like a part of the image read by
+     * {@link #update(ContentResolver, Uri)}. The position of the buffer is moved to its limit.
+     *
+     * @param buffer The bytes of the image.
+     * @return This digest.
+     */
+    public RequestDigest update(@NonNull ByteBuffer buffer) {
+        digest.update(buffer);
+        return this;
+    }
+
+    /**
+     * Adds a setting to the digest. Each setting is terminated, so {@code "ab", "c"} and
+     * {@code "a", "bc"} have different digests.
+     *
+     * @param value The value of the setting.
+     * @return This digest.
+     */
+    public RequestDigest update(@NonNull String value) {
+        digest.update(value.getBytes(UTF_8));
+        digest.update((byte) 0);
+        return this;
+    }
+
+    /**
+     * Finishes the digest.
+     *
+     * @return The digest as a lowercase hex string.
+     */
+    public String toHexString() {
+        final byte[] bytes = digest.digest();
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,231 @@
+package io.github.mathiasberwig.cloudvision.data.cache;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.File;
+
+import io.github.mathiasberwig.cloudvision.controller.vision.RequestDigest;
+import io.github.mathiasberwig.cloudvision.data.model.pojo.WikiDataBrandInfo;
+
+/**
+ * <p>Local store of the brands found on Wikidata. It maps the name of a brand to the id of its
+ * entity, and keeps a snapshot of the info of each entity per language (with the labels already
+ * resolved), so a brand seen before doesn't need any query. It also keeps whether the instances
+ * of a class of entities are brands, so the type of a new brand is usually checked without any
+ * query.</p>
+ *
+ * <p>The recent entries are kept in memory, already parsed, and all of them on disk (see
+ * {@link DiskCache}), where the least recently used are deleted first. Each entry expires after a
+ * while, so the brands are refreshed from time to time.</p>
+ */
+public class BrandStore {
+    private static final String TAG = BrandStore.class.getName();
+
+    /**
+     * Id stored when the brand has no entity on Wikidata.
+     */
+    public static final String NO_ENTITY = "";
+
+    /**
+     * Time the id of an entity is kept. The ids never change, but the name may point to another
+     * entity later.
+     */
+    private static final long ENTITY_ID_TTL_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Time a {@link #NO_ENTITY} is kept. The brand may be added to Wikidata meanwhile.
+     */
+    private static final long NO_ENTITY_TTL_MILLIS = 24L * 60 * 60 * 1000;
+
+    /**
+     * Time the snapshot of an entity is kept. Its claims (like the number of employees) change
+     * more often than its id.
+     */
+    private static final long SNAPSHOT_TTL_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Time the verdict of a class is kept (see {@link #isBrandClass(String)}). The classes are
+     * rarely moved on the hierarchy of Wikidata.
+     */
+    private static final long BRAND_CLASS_TTL_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * The ids stored before the type of the entities was checked may be of something else with
+     * the name of the brand, so they are stored under a new type and the old ones are never read
+     * (they are deleted from the disk as the least recently used).
+     */
+    private static final String TYPE_ENTITY_ID = "brandEntityId";
+    private static final String TYPE_SNAPSHOT = "snapshot";
+    private static final String TYPE_BRAND_CLASS = "brandClass";
+
+    private static class Entry {
+        final Object value;
+        final long expiresAt;
+
+        Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final LruCache<String, Entry> memoryCache;
+    private final DiskCache diskCache;
+    private final Gson gson = new Gson();
+
+    /**
+     * Default (and main) constructor.
+     *
+     * @param directory The directory of the entries stored on disk.
+     * @param maxMemoryEntries Max number of entries kept in memory.
+     * @param maxDiskSize Max number of bytes of the entries stored on disk.
+     */
+    public BrandStore(@NonNull File directory, int maxMemoryEntries, long maxDiskSize) {
+        this.memoryCache = new LruCache<>(maxMemoryEntries);
+        this.diskCache = new DiskCache(directory, maxDiskSize);
+    }
+
+    /**
+     * Gets the id of the entity of a brand.
+     *
+     * @param brandName The name of the brand (the title of its article on Wikipedia).
+     * @param site The Wikipedia of the article, like {@code enwiki}.
+     * @return The id, {@link #NO_ENTITY} if the brand has no entity, or {@code null} if it isn't
+     * stored (or expired).
+     */
+    @Nullable
+    public String getEntityId(@NonNull String brandName, @NonNull String site) {
+        return (String) get(getKey(TYPE_ENTITY_ID, site, brandName), String.class);
+    }
+
+    /**
+     * Stores the id of the entity of a brand. It must be called just after the entity is checked
+     * to be a brand (like a business), since the id is trusted while it's kept.
+     *
+     * @param brandName The name of the brand (the title of its article on Wikipedia).
+     * @param site The Wikipedia of the article, like {@code enwiki}.
+     * @param entityId The id of the entity, or {@code null} if the brand has none.
+     */
+    public void putEntityId(@NonNull String brandName, @NonNull String site, @Nullable String entityId) {
+        if (entityId == null) entityId = NO_ENTITY;
+
+        final long ttl = NO_ENTITY.equals(entityId) ? NO_ENTITY_TTL_MILLIS : ENTITY_ID_TTL_MILLIS;
+        put(getKey(TYPE_ENTITY_ID, site, brandName), entityId, entityId, ttl);
+    }
+
+    /**
+     * Gets the snapshot of the info of an entity.
+     *
+     * @param entityId The id of the entity.
+     * @param language The language of the labels, like {@code pt}.
+     * @return The info, or {@code null} if it isn't stored (or expired).
+     */
+    @Nullable
+    public WikiDataBrandInfo getSnapshot(@NonNull String entityId, @NonNull String language) {
+        return (WikiDataBrandInfo) get(getKey(TYPE_SNAPSHOT, language, entityId), WikiDataBrandInfo.class);
+    }
+
+    /**
+     * Stores the snapshot of the info of an entity.
+     *
+     * @param entityId The id of the entity.
+     * @param language The language of the labels, like {@code pt}.
+     * @param info The info, with all labels resolved.
+     */
+    public void putSnapshot(@NonNull String entityId, @NonNull String language, @NonNull WikiDataBrandInfo info) {
+        put(getKey(TYPE_SNAPSHOT, language, entityId), info, gson.toJson(info), SNAPSHOT_TTL_MILLIS);
+    }
+
+    /**
+     * Gets whether the instances of a class are brands, like the ones of "public company" (a
+     * subclass of business).
+     *
+     * @param classId The id of the class.
+     * @return The verdict, or {@code null} if it isn't stored (or expired).
+     */
+    @Nullable
+    public Boolean isBrandClass(@NonNull String classId) {
+        final String value = (String) get(getKey(TYPE_BRAND_CLASS, "", classId), String.class);
+        return value != null ? Boolean.valueOf(value) : null;
+    }
+
+    /**
+     * Stores whether the instances of a class are brands.
+     *
+     * @param classId The id of the class.
+     * @param brandClass The verdict.
+     */
+    public void putBrandClass(@NonNull String classId, boolean brandClass) {
+        final String value = String.valueOf(brandClass);
+        put(getKey(TYPE_BRAND_CLASS, "", classId), value, value, BRAND_CLASS_TTL_MILLIS);
+    }
+
+    /**
+     * Releases the entries kept in memory. The entries on disk are kept.
+     */
+    public void trimMemory() {
+        memoryCache.evictAll();
+    }
+
+    /**
+     * Gets the value of {@code key}, reading it from the disk if it isn't in memory.
+     *
+     * @param type The class of the value. Strings are stored as they are, other classes as JSON.
+     */
+    private Object get(String key, Class<?> type) {
+        Entry entry = memoryCache.get(key);
+        if (entry == null) {
+            entry = readEntry(key, type);
+            if (entry == null) return null;
+            memoryCache.put(key, entry);
+        }
+
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            memoryCache.remove(key);
+            diskCache.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Stores {@code value} in memory and its serialized form on disk.
+     */
+    private void put(String key, Object value, String serialized, long ttl) {
+        final Entry entry = new Entry(value, System.currentTimeMillis() + ttl);
+        memoryCache.put(key, entry);
+        diskCache.put(key, entry.expiresAt + "\n" + serialized);
+    }
+
+    /**
+     * Reads the entry of {@code key} from the disk. The value is the expiration time and the
+     * serialized value, on separate lines.
+     */
+    private Entry readEntry(String key, Class<?> type) {
+        final String value = diskCache.get(key);
+        if (value == null) return null;
+
+        final int separator = value.indexOf('\n');
+        try {
+            final long expiresAt = Long.parseLong(value.substring(0, separator));
+            final String serialized = value.substring(separator + 1);
+            return new Entry(type == String.class ? serialized : gson.fromJson(serialized, type), expiresAt);
+        } catch (NumberFormatException | IndexOutOfBoundsException | JsonSyntaxException e) {
+            Log.e(TAG, "failed to parse the stored entry " + key);
+            diskCache.remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * @return The key of an entry, safe to be used as file name.
+     */
+    private static String getKey(String type, String scope, String name) {
+        return new RequestDigest().update(type).update(scope).update(name).toHexString();
+    }
+}
@@ -0,0 +1,156 @@
+package io.github.mathiasberwig.cloudvision.data.cache;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * <p>Size-bounded LRU cache of strings stored on disk, one file per entry. The last access of an
+ * entry is its file modification time, so the order survives restarts without a journal.</p>
+ *
+ * <p>The keys are used as file names, so they must be safe for it (like hex digests).</p>
+ */
+public class DiskCache {
+    private static final String TAG = DiskCache.class.getName();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final long maxSize;
+
+    /**
+     * Default (and main) constructor.
+     *
+     * @param directory The directory of the entries. It's created if needed.
+     * @param maxSize Max number of bytes of all entries. The least recently used are deleted first.
+     */
+    public DiskCache(@NonNull File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Reads the entry of {@code key}, marking it as the most recently used.
+     *
+     * @param key The key of the entry.
+     * @return The value of the entry, or {@code null} if there is none or it can't be read.
+     */
+    @Nullable
+    public synchronized String get(@NonNull String key) {
+        final File file = new File(directory, key);
+        if (!file.isFile()) return null;
+
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            final byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            int read;
+            while (offset < bytes.length && (read = inputStream.read(bytes, offset, bytes.length - offset)) != -1) {
+                offset += read;
+            }
+
+            file.setLastModified(System.currentTimeMillis());
+            return new String(bytes, 0, offset, UTF_8);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to read " + key + " because " + e.getMessage());
+            return null;
+        } finally {
+            close(inputStream);
+        }
+    }
+
+    /**
+     * Writes the entry of {@code key}, replacing the old value, then deletes the least recently
+     * used entries until the cache fits in its max size. Errors are just logged.
+     *
+     * @param key The key of the entry.
+     * @param value The value of the entry.
+     */
+    public synchronized void put(@NonNull String key, @NonNull String value) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "failed to create " + directory);
+            return;
+        }
+
+        // Write to a temporary file first, so a partial entry is never read
+        final File temp = new File(directory, key + TEMP_SUFFIX);
+        OutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(temp);
+            outputStream.write(value.getBytes(UTF_8));
+        } catch (IOException e) {
+            Log.e(TAG, "failed to write " + key + " because " + e.getMessage());
+            close(outputStream);
+            temp.delete();
+            return;
+        }
+        close(outputStream);
+
+        if (!temp.renameTo(new File(directory, key))) {
+            Log.e(TAG, "failed to rename " + temp);
+            temp.delete();
+            return;
+        }
+
+        trim();
+    }
+
+    /**
+     * Deletes the entry of {@code key}, if it exists.
+     *
+     * @param key The key of the entry.
+     */
+    public synchronized void remove(@NonNull String key) {
+        new File(directory, key).delete();
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits in {@link #maxSize}.
+     */
+    private void trim() {
+        final File[] files = directory.listFiles();
+        if (files == null) return;
+
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= maxSize) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long left = lhs.lastModified();
+                final long right = rhs.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; i < files.length && size > maxSize; i++) {
+            size -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+    }
+}
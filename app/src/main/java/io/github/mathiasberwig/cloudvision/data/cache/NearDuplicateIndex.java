@@ -0,0 +1,99 @@
+package io.github.mathiasberwig.cloudvision.data.cache;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * In-memory index of the results of recent images, by their perceptual hash. Images taken one
+ * after another (like a burst) have close hashes, so they can reuse the result of the first one.
+ *
+ * @param <V> The type of the results.
+ */
+public class NearDuplicateIndex<V> {
+
+    private static class Entry<V> {
+        final long hash;
+        final String settingsKey;
+        final V value;
+        final long time;
+
+        Entry(long hash, String settingsKey, V value, long time) {
+            this.hash = hash;
+            this.settingsKey = settingsKey;
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+    /**
+     * The entries, starting with the most recent.
+     */
+    private final LinkedList<Entry<V>> entries = new LinkedList<>();
+
+    private final int maxEntries;
+    private final long maxAge;
+
+    /**
+     * Default (and main) constructor.
+     *
+     * @param maxEntries Max number of results kept.
+     * @param maxAge Max age of the results, in milliseconds.
+     */
+    public NearDuplicateIndex(int maxEntries, long maxAge) {
+        this.maxEntries = maxEntries;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Finds the result of the closest image with the same settings and a hash within
+     * {@code maxDistance} bits of {@code hash}.
+     *
+     * @param hash The perceptual hash of the image.
+     * @param settingsKey The key of the settings used to get the result.
+     * @param maxDistance The max Hamming distance between the hashes.
+     * @return The result, or {@code null} if no recent image is close enough.
+     */
+    @Nullable
+    public synchronized V find(long hash, @NonNull String settingsKey, int maxDistance) {
+        removeExpired();
+
+        Entry<V> closest = null;
+        int closestDistance = Integer.MAX_VALUE;
+        for (Entry<V> entry : entries) {
+            if (!entry.settingsKey.equals(settingsKey)) continue;
+
+            final int distance = Long.bitCount(entry.hash ^ hash);
+            if (distance <= maxDistance && distance < closestDistance) {
+                closest = entry;
+                closestDistance = distance;
+            }
+        }
+        return closest == null ? null : closest.value;
+    }
+
+    /**
+     * Adds the result of an image, discarding the oldest one if the index is full.
+     *
+     * @param hash The perceptual hash of the image.
+     * @param settingsKey The key of the settings used to get the result.
+     * @param value The result.
+     */
+    public synchronized void put(long hash, @NonNull String settingsKey, @NonNull V value) {
+        entries.addFirst(new Entry<>(hash, settingsKey, value, SystemClock.elapsedRealtime()));
+        while (entries.size() > maxEntries) {
+            entries.removeLast();
+        }
+    }
+
+    private void removeExpired() {
+        final long now = SystemClock.elapsedRealtime();
+        final Iterator<Entry<V>> iterator = entries.descendingIterator();
+        while (iterator.hasNext() && now - iterator.next().time > maxAge) {
+            iterator.remove();
+        }
+    }
+}
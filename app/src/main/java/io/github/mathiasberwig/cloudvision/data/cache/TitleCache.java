@@ -0,0 +1,141 @@
+package io.github.mathiasberwig.cloudvision.data.cache;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+
+import io.github.mathiasberwig.cloudvision.controller.vision.RequestDigest;
+
+/**
+ * <p>Cache of titles in other languages: the titles of Wikipedia's articles, by their English
+ * title, or the labels of Wikidata's entities, by their id. It keeps the recent titles in memory
+ * and all of them on disk (see {@link DiskCache}), so the same brands and landmarks don't need to
+ * be translated again.</p>
+ *
+ * <p>The names without a title in the language are cached too, as {@link #NO_TITLE}, but they
+ * expire sooner: they may be translated meanwhile.</p>
+ */
+public class TitleCache {
+    private static final String TAG = TitleCache.class.getName();
+
+    /**
+     * Title cached when the name has no title in the language.
+     */
+    public static final String NO_TITLE = "";
+
+    /**
+     * Time a title is kept. Titles rarely change, but an article (or entity) may be renamed.
+     */
+    private static final long TITLE_TTL_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Time a {@link #NO_TITLE} is kept.
+     */
+    private static final long NO_TITLE_TTL_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static class Entry {
+        final String title;
+        final long expiresAt;
+
+        Entry(String title, long expiresAt) {
+            this.title = title;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final LruCache<String, Entry> memoryCache;
+    private final DiskCache diskCache;
+
+    /**
+     * Default (and main) constructor.
+     *
+     * @param directory The directory of the titles stored on disk.
+     * @param maxMemoryEntries Max number of titles kept in memory.
+     * @param maxDiskSize Max number of bytes of the titles stored on disk.
+     */
+    public TitleCache(@NonNull File directory, int maxMemoryEntries, long maxDiskSize) {
+        this.memoryCache = new LruCache<>(maxMemoryEntries);
+        this.diskCache = new DiskCache(directory, maxDiskSize);
+    }
+
+    /**
+     * Gets the title of a name in {@code language}.
+     *
+     * @param name The name, like the title of an article in English or the id of an entity.
+     * @param language The language code, like {@code pt}.
+     * @return The title, {@link #NO_TITLE} if the name has no title in the language, or
+     * {@code null} if it isn't cached (or expired).
+     */
+    @Nullable
+    public String get(@NonNull String name, @NonNull String language) {
+        final String key = getKey(name, language);
+        final long now = System.currentTimeMillis();
+
+        Entry entry = memoryCache.get(key);
+        if (entry == null) {
+            entry = readEntry(key);
+            if (entry == null) return null;
+            memoryCache.put(key, entry);
+        }
+
+        if (entry.expiresAt <= now) {
+            memoryCache.remove(key);
+            diskCache.remove(key);
+            return null;
+        }
+        return entry.title;
+    }
+
+    /**
+     * Caches the title of a name in {@code language}.
+     *
+     * @param name The name, like the title of an article in English or the id of an entity.
+     * @param language The language code, like {@code pt}.
+     * @param title The title in the language, or {@code null} if the name has none.
+     */
+    public void put(@NonNull String name, @NonNull String language, @Nullable String title) {
+        if (title == null) title = NO_TITLE;
+
+        final long ttl = NO_TITLE.equals(title) ? NO_TITLE_TTL_MILLIS : TITLE_TTL_MILLIS;
+        final Entry entry = new Entry(title, System.currentTimeMillis() + ttl);
+        final String key = getKey(name, language);
+
+        memoryCache.put(key, entry);
+        diskCache.put(key, entry.expiresAt + "\n" + entry.title);
+    }
+
+    /**
+     * Releases the titles kept in memory. The titles on disk are kept.
+     */
+    public void trimMemory() {
+        memoryCache.evictAll();
+    }
+
+    /**
+     * Reads the entry of {@code key} from the disk. The value is the expiration time and the title,
+     * on separate lines.
+     */
+    private Entry readEntry(String key) {
+        final String value = diskCache.get(key);
+        if (value == null) return null;
+
+        final int separator = value.indexOf('\n');
+        try {
+            return new Entry(value.substring(separator + 1), Long.parseLong(value.substring(0, separator)));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            Log.e(TAG, "failed to parse the cached title " + key);
+            diskCache.remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * @return The key of a name, safe to be used as file name.
+     */
+    private static String getKey(String name, String language) {
+        return new RequestDigest().update(language).update(name).toHexString();
+    }
+}
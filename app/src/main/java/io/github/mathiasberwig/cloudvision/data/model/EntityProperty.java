@@ -1,105 +1,156 @@
 package io.github.mathiasberwig.cloudvision.data.model;
 
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.support.annotation.DrawableRes;
 import android.support.annotation.StringRes;
 import android.view.View;
 
-import java.util.Date;
-
 import io.github.mathiasberwig.cloudvision.R;
 
 /**
- * Enum to store info about a property of an Wikidata entity. I created this way because I think this
- * is more efficient than manually setting the icons and labels. The default layout for showing this
- * class is {@link io.github.mathiasberwig.cloudvision.R.layout#list_item_card_brand_property}.
+ * Class to store info about a property of an Wikidata entity. The icons and labels come from its
+ * {@link Type}, so they aren't set manually. The default layout for showing this class is
+ * {@link io.github.mathiasberwig.cloudvision.R.layout#list_item_card_brand_property}.
+ * </p>
+ * The instances are immutable, so the properties of different brands (queried by different
+ * threads) never share state.
  * </p>
  * Created by mathias.berwig on 16/06/2016.
  */
-public enum EntityProperty {
-
-    WEBSITE(R.string.p_website, R.drawable.ic_link_black_24dp),
-    COUNTRY(R.string.p_country, R.drawable.ic_flag_black_24dp),
-    INCEPTION(R.string.p_inception, R.drawable.ic_date_range_black_24dp),
-    TWITTER(R.string.p_twitter, R.drawable.ic_twitter_black_24dp),
-    FACEBOOK(R.string.p_facebook, R.drawable.ic_facebook_black_24dp),
-    FOUNDERS(R.string.p_founders, R.drawable.ic_people_black_24dp),
-    HEADQUARTERS(R.string.p_headquarters, R.drawable.ic_business_black_24dp),
-    DIVISIONS(R.string.p_divisions, R.drawable.ic_work_black_24dp),
-    EMPLOYEES(R.string.p_employees, R.drawable.ic_people_black_24dp),
-    GENRE(R.string.p_genre, R.drawable.ic_library_music_black_24dp),
-    AWARDS(R.string.p_awards, R.drawable.ic_trophy_award_24dp),
-    DEVELOPERS(R.string.p_developers, R.drawable.ic_people_black_24dp),
-    LANGUAGES(R.string.p_languages, R.drawable.ic_code_black_24dp),
-    LICENSE(R.string.p_license, R.drawable.ic_description_black_24dp);
-
-    private int name;
-    private int icon;
-    private String value;
-    private View.OnClickListener onClickListener;
+public class EntityProperty implements Parcelable {
 
     /**
-     * Default (and main) constructor.
-     *
-     * @param name The name of the property.
-     * @param icon The icon of the property.
+     * The kinds of properties shown, with their names and icons.
      */
-    EntityProperty(@StringRes int name, @DrawableRes int icon) {
-        this.name = name;
-        this.icon = icon;
+    public enum Type {
+        WEBSITE(R.string.p_website, R.drawable.ic_link_black_24dp),
+        COUNTRY(R.string.p_country, R.drawable.ic_flag_black_24dp),
+        INCEPTION(R.string.p_inception, R.drawable.ic_date_range_black_24dp),
+        TWITTER(R.string.p_twitter, R.drawable.ic_twitter_black_24dp),
+        FACEBOOK(R.string.p_facebook, R.drawable.ic_facebook_black_24dp),
+        FOUNDERS(R.string.p_founders, R.drawable.ic_people_black_24dp),
+        HEADQUARTERS(R.string.p_headquarters, R.drawable.ic_business_black_24dp),
+        DIVISIONS(R.string.p_divisions, R.drawable.ic_work_black_24dp),
+        EMPLOYEES(R.string.p_employees, R.drawable.ic_people_black_24dp),
+        GENRE(R.string.p_genre, R.drawable.ic_library_music_black_24dp),
+        AWARDS(R.string.p_awards, R.drawable.ic_trophy_award_24dp),
+        DEVELOPERS(R.string.p_developers, R.drawable.ic_people_black_24dp),
+        LANGUAGES(R.string.p_languages, R.drawable.ic_code_black_24dp),
+        LICENSE(R.string.p_license, R.drawable.ic_description_black_24dp);
+
+        private final int name;
+        private final int icon;
+
+        /**
+         * Default (and main) constructor.
+         *
+         * @param name The name of the property.
+         * @param icon The icon of the property.
+         */
+        Type(@StringRes int name, @DrawableRes int icon) {
+            this.name = name;
+            this.icon = icon;
+        }
     }
 
-    public int getName() {
-        return name;
+    private final Type type;
+    private final String value;
+
+    /**
+     * The link opened when the property is clicked, if any.
+     */
+    private final String url;
+
+    public static final Creator<EntityProperty> CREATOR = new Creator<EntityProperty>() {
+        @Override
+        public EntityProperty createFromParcel(Parcel in) {
+            return new EntityProperty(in);
+        }
+
+        @Override
+        public EntityProperty[] newArray(int size) {
+            return new EntityProperty[size];
+        }
+    };
+
+    protected EntityProperty(Parcel in) {
+        type = Type.values()[in.readInt()];
+        value = in.readString();
+        url = in.readString();
     }
 
-    public int getIcon() {
-        return icon;
+    public EntityProperty(Type type, String value) {
+        this(type, value, null);
     }
 
-    public String getValue() {
-        return value;
+    /**
+     * @param type The kind of the property.
+     * @param value The formatted value of the property.
+     * @param url The link opened when the property is clicked, or {@code null}.
+     */
+    public EntityProperty(Type type, String value, String url) {
+        this.type = type;
+        this.value = value;
+        this.url = url;
     }
 
-    public View.OnClickListener getOnClickListener() {
-        return onClickListener;
+    public Type getType() {
+        return type;
     }
 
-    public EntityProperty setValue(String value) {
-        this.value = value;
-        return this;
+    public int getName() {
+        return type.name;
+    }
+
+    public int getIcon() {
+        return type.icon;
     }
 
-    public EntityProperty setValue(Long value) {
-        this.value = String.valueOf(value);
-        return this;
+    public String getValue() {
+        return value;
     }
 
-    public EntityProperty setValue(Date value) {
-        this.value = value.toString();
-        return this;
+    public String getUrl() {
+        return url;
     }
 
-    public EntityProperty setName(int name) {
-        this.name = name;
-        return this;
+    /**
+     * @return A listener that opens {@link #getUrl()}, or {@code null} if the property has no link.
+     */
+    public View.OnClickListener getOnClickListener() {
+        if (url == null) return null;
+
+        return new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                Intent intent = new Intent(Intent.ACTION_VIEW);
+                intent.setData(Uri.parse(url));
+                v.getContext().startActivity(intent);
+            }
+        };
     }
 
-    public EntityProperty setIcon(int icon) {
-        this.icon = icon;
-        return this;
+    @Override
+    public int describeContents() {
+        return 0;
     }
 
-    public EntityProperty setOnClickListener(View.OnClickListener onClickListener) {
-        this.onClickListener = onClickListener;
-        return this;
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(type.ordinal());
+        dest.writeString(value);
+        dest.writeString(url);
     }
 
     @Override
     public String toString() {
         return "EntityProperty{" +
-                "name=" + name +
-                ", icon=" + icon +
+                "type=" + type +
                 ", value='" + value + '\'' +
+                ", url='" + url + '\'' +
                 '}';
     }
 }
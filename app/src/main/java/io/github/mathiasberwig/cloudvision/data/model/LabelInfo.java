@@ -82,6 +82,24 @@ public class LabelInfo implements Parcelable {
                 '}';
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        LabelInfo labelInfo = (LabelInfo) o;
+
+        if (Float.compare(labelInfo.score, score) != 0) return false;
+        return description != null ? description.equals(labelInfo.description) : labelInfo.description == null;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = description != null ? description.hashCode() : 0;
+        result = 31 * result + (score != +0.0f ? Float.floatToIntBits(score) : 0);
+        return result;
+    }
+
     /**
      * Same as {@link EntityAnnotation#getScore()}.
      */
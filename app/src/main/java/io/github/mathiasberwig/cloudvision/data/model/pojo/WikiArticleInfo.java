@@ -23,6 +23,8 @@ public class WikiArticleInfo {
         public class PageInfo {
             String title;
             String extract;
+            String missing;
+            Map<String, String> pageprops;
             ArrayList<LangInfo> langlinks;
 
             public class LangInfo {
@@ -53,6 +55,29 @@ public class WikiArticleInfo {
         return query.pages.entrySet().iterator().next().getValue().extract;
     }
 
+    /**
+     * Check if the article doesn't exist. Wikipedia's API returns the pages not found with the
+     * {@code missing} property.
+     *
+     * @return {@code true} if the article doesn't exist.
+     * @throws NullPointerException
+     */
+    public boolean isMissing() throws NullPointerException {
+        return query.pages.entrySet().iterator().next().getValue().missing != null;
+    }
+
+    /**
+     * Check if the article is a disambiguation page. The query must request
+     * {@code prop=pageprops&ppprop=disambiguation}.
+     *
+     * @return {@code true} if the article is a disambiguation page.
+     * @throws NullPointerException
+     */
+    public boolean isDisambiguation() throws NullPointerException {
+        final Map<String, String> pageprops = query.pages.entrySet().iterator().next().getValue().pageprops;
+        return pageprops != null && pageprops.containsKey("disambiguation");
+    }
+
     /**
      * Return the article's Title for the requested {@code locale}. Note that the webservice call
      * needs to address the locale too.
@@ -1,29 +1,34 @@
 package io.github.mathiasberwig.cloudvision.data.model.pojo;
 
-import android.content.Intent;
 import android.net.Uri;
 import android.util.Log;
-import android.view.View;
 
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import io.github.mathiasberwig.cloudvision.data.model.EntityProperty;
 
 /**
- * POJO class containing partial response mapping of a Wikidata's API response. <br>
+ * Info about a brand, created from its entity on Wikidata (see {@link WikiDataEntities}). <br>
  *
  * Created by mathias.berwig on 03/05/2016.
  */
 public class WikiDataBrandInfo {
     private static final String TAG = WikiDataBrandInfo.class.getName();
 
-    private static final SimpleDateFormat DATETIME_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.getDefault());
-    private static final SimpleDateFormat DATE_PRINT_FORMAT = new SimpleDateFormat("EEE, d MMM yyyy", Locale.getDefault());
+    /**
+     * The format of the dates on Wikidata. A {@link SimpleDateFormat} isn't thread safe, and the
+     * brands are queried by many threads, so it's created on each use.
+     */
+    private static final String DATETIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss'Z'";
 
     /**
      * The URL template to compose a Twitter profile link.
@@ -35,61 +40,101 @@ public class WikiDataBrandInfo {
      */
     private static final String FACEBOOK_URL = "https://facebook.com/%s";
 
-    Results results;
-
-    class Results {
-        ArrayList<Binding> bindings;
-
-        class Binding {
-            Value website;
-            Value logo;
-            Value country;
-            Value inception;
-            Value twitter;
-            Value facebook;
-            Value founders;
-            Value headquarters;
-            Value divisions;
-            Value employees;
-            Value genre;
-            Value awards;
-            Value developers;
-            Value languages;
-            Value licenses;
-
-            class Value {
-                String value;
-
-                @Override
-                public String toString() {
-                    return value;
-                }
-            }
-
-            @Override
-            public String toString() {
-                return "website=" + website +
-                        ", logo=" + logo +
-                        ", country=" + country +
-                        ", inception=" + inception +
-                        ", twitter=" + twitter +
-                        ", facebook=" + facebook +
-                        ", founders=" + founders +
-                        ", headquarters=" + headquarters +
-                        ", divisions=" + divisions +
-                        ", employees=" + employees +
-                        ", genre=" + genre +
-                        ", awards=" + awards +
-                        ", developers=" + developers +
-                        ", languages=" + languages +
-                        ", licenses=" + licenses;
-            }
-        }
+    /**
+     * The URL template to compose the link of a file on Wikimedia Commons (like the logos).
+     */
+    private static final String COMMONS_FILE_URL = "https://commons.wikimedia.org/wiki/Special:FilePath/%s";
+
+    // Ids of the properties on Wikidata
+    private static final String P_WEBSITE = "P856";
+    private static final String P_LOGO = "P154";
+    private static final String P_COUNTRY = "P17";
+    private static final String P_COUNTRY_OF_ORIGIN = "P495";
+    private static final String P_INCEPTION = "P571";
+    private static final String P_TWITTER = "P2002";
+    private static final String P_FACEBOOK = "P2013";
+    private static final String P_FOUNDERS = "P112";
+    private static final String P_HEADQUARTERS = "P159";
+    private static final String P_INDUSTRY = "P452";
+    private static final String P_EMPLOYEES = "P1128";
+    private static final String P_GENRE = "P136";
+    private static final String P_AWARDS = "P166";
+    private static final String P_DEVELOPERS = "P178";
+    private static final String P_LANGUAGES = "P277";
+    private static final String P_LICENSES = "P275";
+
+    /**
+     * Properties whose values are other entities, shown by their labels.
+     */
+    private static final String[] LABELLED_PROPERTIES = {P_COUNTRY, P_COUNTRY_OF_ORIGIN, P_FOUNDERS,
+            P_HEADQUARTERS, P_INDUSTRY, P_GENRE, P_AWARDS, P_DEVELOPERS, P_LANGUAGES, P_LICENSES};
+
+    private String website;
+    private String logo;
+    private String country;
+    private String inception;
+    private String twitter;
+    private String facebook;
+    private String founders;
+    private String headquarters;
+    private String divisions;
+    private String employees;
+    private String genre;
+    private String awards;
+    private String developers;
+    private String languages;
+    private String licenses;
 
-        @Override
-        public String toString() {
-            return bindings.toString();
+    /**
+     * Creates the info of a brand from its entity on Wikidata.
+     *
+     * @param entity The entity of the brand, with its claims.
+     * @param labels The labels of the entities referenced by the brand (see
+     *               {@link #getReferencedIds(WikiDataEntities.Entity)}), by id. The entities
+     *               without label are ignored.
+     */
+    public WikiDataBrandInfo(WikiDataEntities.Entity entity, Map<String, String> labels) {
+        website = getFirst(entity.getStrings(P_WEBSITE));
+        twitter = getFirst(entity.getStrings(P_TWITTER));
+        facebook = getFirst(entity.getStrings(P_FACEBOOK));
+
+        final String logoFile = getFirst(entity.getStrings(P_LOGO));
+        if (logoFile != null) logo = String.format(COMMONS_FILE_URL, Uri.encode(logoFile.replace(' ', '_')));
+
+        country = getLabels(entity, P_COUNTRY, labels);
+        if (country == null) country = getLabels(entity, P_COUNTRY_OF_ORIGIN, labels);
+
+        founders = getLabels(entity, P_FOUNDERS, labels);
+        headquarters = getLabels(entity, P_HEADQUARTERS, labels);
+        divisions = getLabels(entity, P_INDUSTRY, labels);
+        genre = getLabels(entity, P_GENRE, labels);
+        awards = getLabels(entity, P_AWARDS, labels);
+        developers = getLabels(entity, P_DEVELOPERS, labels);
+        languages = getLabels(entity, P_LANGUAGES, labels);
+        licenses = getLabels(entity, P_LICENSES, labels);
+
+        // Times are signed and have zeros on the unknown month and day (like +1892-00-00T00:00:00Z)
+        final String time = entity.getTime(P_INCEPTION);
+        if (time != null) inception = time.replaceFirst("^\\+", "").replace("-00", "-01");
+
+        // Amounts are signed decimals (like +86200)
+        final String amount = entity.getAmount(P_EMPLOYEES);
+        if (amount != null) employees = amount.replaceFirst("^\\+", "").replaceFirst("\\..*$", "");
+    }
+
+    /**
+     * Gets the ids of the entities referenced by a brand, whose labels are shown (like the
+     * country and the founders).
+     *
+     * @param entity The entity of the brand.
+     * @return The ids, without duplicates.
+     */
+    public static Set<String> getReferencedIds(WikiDataEntities.Entity entity) {
+        final Set<String> ids = new LinkedHashSet<>();
+        for (String property : LABELLED_PROPERTIES) {
+            ids.addAll(entity.getEntityIds(property));
         }
+        return ids;
     }
 
     /**
@@ -104,113 +149,112 @@ public class WikiDataBrandInfo {
         // Website
         final String website = getWebsiteUrl();
         if (website != null && !website.trim().isEmpty()) {
-            properties.add(EntityProperty.WEBSITE.setValue(website)
-                    .setOnClickListener(getOnClickListener(website)));
+            properties.add(new EntityProperty(EntityProperty.Type.WEBSITE, website, website));
         }
 
         // Country
         final String country = getCountry();
         if (country != null && !country.trim().isEmpty()) {
-            properties.add(EntityProperty.COUNTRY.setValue(country));
+            properties.add(new EntityProperty(EntityProperty.Type.COUNTRY, country));
         }
 
         // Inception
         final Date inception = getInception();
         if (inception != null) {
-            properties.add(EntityProperty.INCEPTION.setValue(DateFormat.getDateInstance(
+            properties.add(new EntityProperty(EntityProperty.Type.INCEPTION, DateFormat.getDateInstance(
                     DateFormat.MEDIUM, Locale.getDefault()).format(inception)));
         }
 
         // Twitter
         final String twitter = getTwitter();
         if (twitter != null && !twitter.trim().isEmpty()) {
-            properties.add(EntityProperty.TWITTER.setValue(twitter)
-                    .setOnClickListener(getOnClickListener(String.format(TWITTER_URL, twitter))));
+            properties.add(new EntityProperty(EntityProperty.Type.TWITTER, twitter,
+                    String.format(TWITTER_URL, twitter)));
         }
 
         // Facebook
         final String facebook = getFacebook();
         if (facebook != null && !facebook.trim().isEmpty()) {
-            properties.add(EntityProperty.FACEBOOK.setValue(facebook)
-                    .setOnClickListener(getOnClickListener(String.format(FACEBOOK_URL, facebook))));
+            properties.add(new EntityProperty(EntityProperty.Type.FACEBOOK, facebook,
+                    String.format(FACEBOOK_URL, facebook)));
         }
 
         // Founders
         final String founders = getFounders();
         if (founders != null && !founders.trim().isEmpty()) {
-            properties.add(EntityProperty.FOUNDERS.setValue(founders));
+            properties.add(new EntityProperty(EntityProperty.Type.FOUNDERS, founders));
         }
 
         // Headquarters
         final String headquarters = getHeadquarters();
         if (headquarters != null && !headquarters.trim().isEmpty()) {
-            properties.add(EntityProperty.HEADQUARTERS.setValue(headquarters));
+            properties.add(new EntityProperty(EntityProperty.Type.HEADQUARTERS, headquarters));
         }
 
         // Divisions
         final String divisions = getDivisions();
         if (divisions != null && !divisions.trim().isEmpty()) {
-            properties.add(EntityProperty.DIVISIONS.setValue(divisions));
+            properties.add(new EntityProperty(EntityProperty.Type.DIVISIONS, divisions));
         }
 
         // Employees
         final Long employees = getEmployeeNumber();
         if (employees != null && employees > 0) {
-            properties.add(EntityProperty.EMPLOYEES.setValue(String.format(Locale.getDefault(), "%,d", employees)));
+            properties.add(new EntityProperty(EntityProperty.Type.EMPLOYEES, String.format(Locale.getDefault(), "%,d", employees)));
         }
 
         // Genre
         final String genre = getGenre();
         if (genre != null && !genre.trim().isEmpty()) {
-            properties.add(EntityProperty.GENRE.setValue(genre));
+            properties.add(new EntityProperty(EntityProperty.Type.GENRE, genre));
         }
 
         // Awards
         final String awards = getAwards();
         if (awards != null && !awards.trim().isEmpty()) {
-            properties.add(EntityProperty.AWARDS.setValue(awards));
+            properties.add(new EntityProperty(EntityProperty.Type.AWARDS, awards));
         }
 
         // Developers
         final String developers = getDevelopers();
         if (developers != null && !developers.trim().isEmpty()) {
-            properties.add(EntityProperty.DEVELOPERS.setValue(developers));
+            properties.add(new EntityProperty(EntityProperty.Type.DEVELOPERS, developers));
         }
 
         // Languages
         final String languages = getLanguages();
         if (languages != null && !languages.trim().isEmpty()) {
-            properties.add(EntityProperty.LANGUAGES.setValue(languages));
+            properties.add(new EntityProperty(EntityProperty.Type.LANGUAGES, languages));
         }
 
         // Licenses
         final String licenses = getLicenses();
         if (licenses != null && !licenses.trim().isEmpty()) {
-            properties.add(EntityProperty.LICENSE.setValue(licenses));
+            properties.add(new EntityProperty(EntityProperty.Type.LICENSE, licenses));
         }
 
         return properties;
     }
 
-    private Results.Binding get() throws NullPointerException, IndexOutOfBoundsException {
-        return results.bindings.get(0);
-    }
-
     /**
-     * Creates a new {@link android.view.View.OnClickListener} to open the {@code url} in a new Intent.
+     * Joins the labels of the entities referenced by {@code property}, separated by ",".
      *
-     * @param url A valid URL to be opened.
-     * @return the OnClickListener created.
+     * @return The labels or {@code null} if there are none.
      */
-    private View.OnClickListener getOnClickListener(final String url) {
-        return new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                Intent intent = new Intent(Intent.ACTION_VIEW);
-                intent.setData(Uri.parse(url));
-                v.getContext().startActivity(intent);
-            }
-        };
+    private static String getLabels(WikiDataEntities.Entity entity, String property, Map<String, String> labels) {
+        final StringBuilder builder = new StringBuilder();
+        for (String id : entity.getEntityIds(property)) {
+            final String label = labels.get(id);
+            if (label == null) continue;
+
+            if (builder.length() > 0) builder.append(", ");
+            builder.append(label);
+        }
+        return builder.length() > 0 ? builder.toString() : null;
+    }
+
+    private static String getFirst(List<String> values) {
+        return values.isEmpty() ? null : values.get(0);
     }
 
     /**
@@ -220,12 +264,7 @@ public class WikiDataBrandInfo {
      * @return The official website or {@code null}.
      */
     public String getWebsiteUrl() {
-        try {
-            return get().website.value;
-        } catch (NullPointerException | IndexOutOfBoundsException ex) {
-            Log.d(TAG, "Can't retrieve the website URL.", ex);
-            return null;
-        }
+        return website;
     }
 
     /**
@@ -235,12 +274,7 @@ public class WikiDataBrandInfo {
      * @return The logo URL or {@code null}.
      */
     public String getLogoUrl() {
-        try {
-            return get().logo.value;
-        } catch (NullPointerException | IndexOutOfBoundsException ex) {
-            Log.d(TAG, "Can't retrieve the logo URL.", ex);
-            return null;
-        }
+        return logo;
     }
 
     /**
@@ -250,12 +284,7 @@ public class WikiDataBrandInfo {
      * @return The country name or {@code null}.
      */
     public String getCountry() {
-        try {
-            return get().country.value;
-        } catch (NullPointerException | IndexOutOfBoundsException ex) {
-            Log.d(TAG, "Can't retrieve the country name.", ex);
-            return null;
-        }
+        return country;
     }
 
     /**
@@ -266,8 +295,8 @@ public class WikiDataBrandInfo {
      */
     public Date getInception() {
         try {
-            return DATETIME_FORMAT.parse(get().inception.value);
-        } catch (ParseException | NullPointerException | IndexOutOfBoundsException ex) {
+            return inception != null ? new SimpleDateFormat(DATETIME_PATTERN, Locale.getDefault()).parse(inception) : null;
+        } catch (ParseException ex) {
             Log.d(TAG, "Can't retrieve the inception date.", ex);
             return null;
         }
@@ -280,12 +309,7 @@ public class WikiDataBrandInfo {
      * @return The Twitter profile name or {@code null}.
      */
     public String getTwitter() {
-        try {
-            return get().twitter.value;
-        } catch (NullPointerException | IndexOutOfBoundsException ex) {
-            Log.d(TAG, "Can't retrieve the Twitter profile name.", ex);
-            return null;
-        }
+        return twitter;
     }
 
     /**
@@ -295,12 +319,7 @@ public class WikiDataBrandInfo {
      * @return The Facebook profile name or {@code null}.
      */
     public String getFacebook() {
-        try {
-            return get().facebook.value;
-        } catch (NullPointerException | IndexOutOfBoundsException ex) {
-            Log.d(TAG, "Can't retrieve the Facebook profile name.", ex);
-            return null;
-        }
+        return facebook;
     }
 
     /**
@@ -310,12 +329,7 @@ public class WikiDataBrandInfo {
      * @return The founders names separated by , or {@code null}.
      */
     public String getFounders() {
-        try {
-            return get().founders.value;
-        } catch (NullPointerException | IndexOutOfBoundsException ex) {
-            Log.d(TAG, "Can't retrieve the founders name.", ex);
-            return null;
-        }
+        return founders;
     }
 
     /**
@@ -325,12 +339,7 @@ public class WikiDataBrandInfo {
      * @return The headquarters location of the company separated by , or {@code null}.
      */
     public String getHeadquarters() {
-        try {
-            return get().headquarters.value;
-        } catch (NullPointerException | IndexOutOfBoundsException ex) {
-            Log.d(TAG, "Can't retrieve the headquarters location.", ex);
-            return null;
-        }
+        return headquarters;
     }
 
     /**
@@ -340,12 +349,7 @@ public class WikiDataBrandInfo {
      * @return The industries/divisions of the company separated by , or {@code null}.
      */
     public String getDivisions() {
-        try {
-            return get().divisions.value;
-        } catch (NullPointerException | IndexOutOfBoundsException ex) {
-            Log.d(TAG, "Can't retrieve the divisions.", ex);
-            return null;
-        }
+        return divisions;
     }
 
     /**
@@ -356,9 +360,8 @@ public class WikiDataBrandInfo {
      */
     public Long getEmployeeNumber() {
         try {
-            final String employees = get().employees.value;
-            return Long.parseLong(employees);
-        } catch (NumberFormatException | IndexOutOfBoundsException | NullPointerException ex) {
+            return employees != null ? Long.parseLong(employees) : null;
+        } catch (NumberFormatException ex) {
             Log.d(TAG, "Can't retrieve the employee number.", ex);
             return null;
         }
@@ -371,12 +374,7 @@ public class WikiDataBrandInfo {
      * @return The genre of the band or {@code null}.
      */
     public String getGenre() {
-        try {
-            return get().genre.value;
-        } catch (NullPointerException | IndexOutOfBoundsException ex) {
-            Log.d(TAG, "Can't retrieve the genre.", ex);
-            return null;
-        }
+        return genre;
     }
 
     /**
@@ -386,12 +384,7 @@ public class WikiDataBrandInfo {
      * @return The awards received separated by , or {@code null}.
      */
     public String getAwards() {
-        try {
-            return get().awards.value;
-        } catch (NullPointerException | IndexOutOfBoundsException ex) {
-            Log.d(TAG, "Can't retrieve the awards.", ex);
-            return null;
-        }
+        return awards;
     }
 
     /**
@@ -401,12 +394,7 @@ public class WikiDataBrandInfo {
      * @return The developers names separated by , or {@code null}.
      */
     public String getDevelopers() {
-        try {
-            return get().developers.value;
-        } catch (NullPointerException | IndexOutOfBoundsException ex) {
-            Log.d(TAG, "Can't retrieve the developers.", ex);
-            return null;
-        }
+        return developers;
     }
 
     /**
@@ -416,12 +404,7 @@ public class WikiDataBrandInfo {
      * @return The programming languages names separated by , or {@code null}.
      */
     public String getLanguages() {
-        try {
-            return get().languages.value;
-        } catch (NullPointerException | IndexOutOfBoundsException ex) {
-            Log.d(TAG, "Can't retrieve the programming languages.", ex);
-            return null;
-        }
+        return languages;
     }
 
     /**
@@ -431,18 +414,27 @@ public class WikiDataBrandInfo {
      * @return The copyright license names separated by , or {@code null}.
      */
     public String getLicenses() {
-        try {
-            return get().licenses.value;
-        } catch (NullPointerException | IndexOutOfBoundsException ex) {
-            Log.d(TAG, "Can't retrieve the copyright licenses.", ex);
-            return null;
-        }
+        return licenses;
     }
 
     @Override
     public String toString() {
         return "WikiDataBrandInfo{" +
-                "results=" + results +
+                "website=" + website +
+                ", logo=" + logo +
+                ", country=" + country +
+                ", inception=" + inception +
+                ", twitter=" + twitter +
+                ", facebook=" + facebook +
+                ", founders=" + founders +
+                ", headquarters=" + headquarters +
+                ", divisions=" + divisions +
+                ", employees=" + employees +
+                ", genre=" + genre +
+                ", awards=" + awards +
+                ", developers=" + developers +
+                ", languages=" + languages +
+                ", licenses=" + licenses +
                 '}';
     }
 }
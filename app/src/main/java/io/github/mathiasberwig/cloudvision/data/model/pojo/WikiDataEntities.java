@@ -0,0 +1,209 @@
+package io.github.mathiasberwig.cloudvision.data.model.pojo;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.annotations.SerializedName;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * POJO class containing partial response mapping of the {@code wbgetentities} action of Wikidata's
+ * API: the claims and labels of the entities. <br>
+ *
+ * See <a href="https://www.wikidata.org/wiki/Help:Wikidata_datamodel">Wikidata's data model</a>.
+ */
+public class WikiDataEntities {
+
+    Map<String, Entity> entities;
+
+    public class Entity {
+        String id;
+        String missing;
+        Map<String, ArrayList<Claim>> claims;
+        Map<String, Label> labels;
+
+        class Claim {
+            Snak mainsnak;
+            String rank;
+        }
+
+        class Snak {
+            String snaktype;
+            DataValue datavalue;
+        }
+
+        class DataValue {
+            String type;
+            JsonElement value;
+        }
+
+        class Label {
+            String language;
+            String value;
+        }
+
+        /**
+         * @return The id of the entity, like {@code Q2813}.
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return {@code true} if the entity requested doesn't exist.
+         */
+        public boolean isMissing() {
+            return missing != null || id == null;
+        }
+
+        /**
+         * Returns the label of the entity in the first of {@code languages} that has one.
+         *
+         * @param languages The language codes, by preference.
+         * @return The label or {@code null}.
+         */
+        public String getLabel(String... languages) {
+            if (labels == null) return null;
+
+            for (String language : languages) {
+                final Label label = labels.get(language);
+                if (label != null && label.value != null) return label.value;
+            }
+            return null;
+        }
+
+        /**
+         * Returns the values of a property that are strings (like URLs, user names and file names).
+         *
+         * @param property The id of the property, like {@code P856}.
+         * @return The values, maybe empty.
+         */
+        public List<String> getStrings(String property) {
+            final List<String> strings = new ArrayList<>();
+            for (DataValue dataValue : getDataValues(property)) {
+                if (dataValue.value.isJsonPrimitive()) strings.add(dataValue.value.getAsString());
+            }
+            return strings;
+        }
+
+        /**
+         * Returns the ids of the entities referenced by a property (like the founders of a brand).
+         *
+         * @param property The id of the property, like {@code P112}.
+         * @return The ids, without duplicates and maybe empty.
+         */
+        public Set<String> getEntityIds(String property) {
+            final Set<String> ids = new LinkedHashSet<>();
+            for (DataValue dataValue : getDataValues(property)) {
+                final JsonElement id = getField(dataValue, "id");
+                if (id != null) ids.add(id.getAsString());
+            }
+            return ids;
+        }
+
+        /**
+         * Returns the first value of a property that is a time, like {@code +1892-01-29T00:00:00Z}.
+         *
+         * @param property The id of the property, like {@code P571}.
+         * @return The time or {@code null}.
+         */
+        public String getTime(String property) {
+            for (DataValue dataValue : getDataValues(property)) {
+                final JsonElement time = getField(dataValue, "time");
+                if (time != null) return time.getAsString();
+            }
+            return null;
+        }
+
+        /**
+         * Returns the first value of a property that is a quantity, like {@code +86200}.
+         *
+         * @param property The id of the property, like {@code P1128}.
+         * @return The amount or {@code null}.
+         */
+        public String getAmount(String property) {
+            for (DataValue dataValue : getDataValues(property)) {
+                final JsonElement amount = getField(dataValue, "amount");
+                if (amount != null) return amount.getAsString();
+            }
+            return null;
+        }
+
+        /**
+         * Returns the values of a property, skipping the deprecated ones and those without value
+         * (like "unknown value").
+         */
+        private List<DataValue> getDataValues(String property) {
+            final List<DataValue> dataValues = new ArrayList<>();
+            if (claims == null || claims.get(property) == null) return dataValues;
+
+            for (Claim claim : claims.get(property)) {
+                if ("deprecated".equals(claim.rank) || claim.mainsnak == null) continue;
+
+                final DataValue dataValue = claim.mainsnak.datavalue;
+                if (dataValue != null && dataValue.value != null) dataValues.add(dataValue);
+            }
+            return dataValues;
+        }
+
+        private JsonElement getField(DataValue dataValue, String name) {
+            if (!dataValue.value.isJsonObject()) return null;
+            final JsonObject object = dataValue.value.getAsJsonObject();
+            return object.has(name) ? object.get(name) : null;
+        }
+    }
+
+    /**
+     * Returns the first entity of the response. The entities not found (when they are requested
+     * by the title of an article) are ignored.
+     *
+     * @return The entity or {@code null}.
+     */
+    public Entity getEntity() {
+        if (entities == null) return null;
+
+        for (Entity entity : entities.values()) {
+            if (!entity.isMissing()) return entity;
+        }
+        return null;
+    }
+
+    /**
+     * Returns all entities of the response, by id.
+     *
+     * @return The entities, or {@code null} if there are none.
+     */
+    public Map<String, Entity> getEntities() {
+        return entities;
+    }
+
+    /**
+     * POJO class containing partial response mapping of the {@code wbsearchentities} action of
+     * Wikidata's API.
+     */
+    public static class SearchResult {
+        @SerializedName("search")
+        ArrayList<Match> matches;
+
+        class Match {
+            String id;
+        }
+
+        /**
+         * @return The ids of the matches, from the best one. It's empty if nothing was found.
+         */
+        public List<String> getIds() {
+            final List<String> ids = new ArrayList<>();
+            if (matches == null) return ids;
+
+            for (Match match : matches) {
+                if (match.id != null) ids.add(match.id);
+            }
+            return ids;
+        }
+    }
+}
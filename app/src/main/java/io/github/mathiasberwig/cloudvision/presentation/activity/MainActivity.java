@@ -1,12 +1,15 @@
 package io.github.mathiasberwig.cloudvision.presentation.activity;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
+import android.support.v4.content.LocalBroadcastManager;
 import android.support.v4.view.PagerTitleStrip;
 import android.support.v4.view.ViewPager;
 import android.support.v7.app.ActionBar;
@@ -18,8 +21,11 @@ import android.widget.ImageView;
 import com.gigamole.navigationtabstrip.NavigationTabStrip;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import io.github.mathiasberwig.cloudvision.R;
+import io.github.mathiasberwig.cloudvision.controller.CancellationToken;
 import io.github.mathiasberwig.cloudvision.controller.service.CloudVisionUploader;
 import io.github.mathiasberwig.cloudvision.controller.service.RestApisConsumer;
 import io.github.mathiasberwig.cloudvision.presentation.adapter.FragmentPageAdapter;
@@ -27,14 +33,58 @@ import uk.co.chrisjenx.calligraphy.CalligraphyContextWrapper;
 
 /**
  * Main Activity of application. Handles the ViewPager and respective fragments.
+ *
+ * <p>It's opened as soon as Google Cloud Vision returns the annotations, and starts the
+ * {@link RestApisConsumer} to query info about them. The info is delivered to the fragments (see
+ * {@link ResultsListener}) as each query finishes.</p>
  */
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = MainActivity.class.getName();
 
+    /**
+     * Key of the saved instance state that stores {@link #results}.
+     */
+    private static final String STATE_RESULTS = "STATE_RESULTS";
+
     private ViewPager viewPager;
     private NavigationTabStrip tabs;
     private ImageView imageView;
 
+    /**
+     * The results of the analysis: the extras of the intent, updated with the info queried by
+     * {@link RestApisConsumer}.
+     */
+    private Bundle results;
+
+    /**
+     * The token of the analysis. It's cancelled if the activity is closed before the queries finish.
+     */
+    private CancellationToken analysis;
+
+    private final List<ResultsListener> resultsListeners = new ArrayList<>();
+
+    /**
+     * Receiver of the info queried by {@link RestApisConsumer}. It updates {@link #results} and
+     * notifies the fragments.
+     */
+    private BroadcastReceiver queryProgressReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // Ignore the info of other analyses
+            if (intent.getLongExtra(CloudVisionUploader.EXTRA_ANALYSIS_ID, CancellationToken.NO_ID) != analysis.getId()) {
+                return;
+            }
+
+            results.putAll(intent.getExtras());
+            for (ResultsListener listener : new ArrayList<>(resultsListeners)) {
+                listener.onResultsUpdated(results);
+            }
+
+            // All queries finished, there is nothing left to cancel
+            if (RestApisConsumer.ACTION_DONE.equals(intent.getAction())) analysis.release();
+        }
+    };
+
     /**
      * Factory method to create a new MainActivity instance.
      *
@@ -46,15 +96,67 @@ public class MainActivity extends AppCompatActivity {
         context.startActivity(intent);
     }
 
+    /**
+     * Factory method to create a MainActivity instance for each result of an upload. They are
+     * stacked with the first result on top, so the user goes through them in order pressing back.
+     *
+     * @param context Context to be used to start the activities.
+     * @param results The extras of each activity, each one with an analysis of its own.
+     */
+    public static void newInstances(Context context, List<Bundle> results) {
+        Intent[] intents = new Intent[results.size()];
+        for (int i = 0; i < intents.length; i++) {
+            intents[intents.length - 1 - i] = new Intent(context, MainActivity.class).putExtras(results.get(i));
+        }
+        context.startActivities(intents);
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        results = savedInstanceState != null ? savedInstanceState.getBundle(STATE_RESULTS) : new Bundle(getIntent().getExtras());
+        analysis = CancellationToken.get(results.getLong(CloudVisionUploader.EXTRA_ANALYSIS_ID, CancellationToken.NO_ID));
+
+        // The receiver lives as long as the activity, so no info is lost while it's on background
+        final IntentFilter filter = new IntentFilter(RestApisConsumer.ACTION_PROGRESS);
+        filter.addAction(RestApisConsumer.ACTION_DONE);
+        LocalBroadcastManager.getInstance(this).registerReceiver(queryProgressReceiver, filter);
+
+        // Query info about the annotations on third-party APIs
+        if (savedInstanceState == null) {
+            Intent service = new Intent(this, RestApisConsumer.class);
+            service.putExtras(results);
+            startService(service);
+        }
+
         findViews();
         setupViewPager();
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBundle(STATE_RESULTS, results);
+    }
+
+    @Override
+    protected void onDestroy() {
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(queryProgressReceiver);
+
+        // Stop the queries, nobody will see their results. The copy of the image isn't shown
+        // anymore either, and each image of the upload has its own, so delete it.
+        if (isFinishing()) {
+            analysis.cancel();
+            CloudVisionUploader.deleteImageCopy(this, (Uri) results.getParcelable(CloudVisionUploader.EXTRA_IMAGE_URI),
+                    results.getLong(CloudVisionUploader.EXTRA_UPLOAD_ID, CancellationToken.NO_ID),
+                    results.getInt(CloudVisionUploader.EXTRA_BATCH_INDEX));
+        }
+
+        super.onDestroy();
+    }
+
     @Override
     protected void attachBaseContext(Context newBase) {
         super.attachBaseContext(CalligraphyContextWrapper.wrap(newBase));
@@ -91,10 +193,29 @@ public class MainActivity extends AppCompatActivity {
      * Return data queried by {@link RestApisConsumer}
      * using annotations found by Google Cloud Vision API.
      *
-     * @return Extras from {@link RestApisConsumer}
+     * @return Annotations from Google Cloud Vision API, with the info queried so far by
+     * {@link RestApisConsumer}
      */
     public Bundle getExtras() {
-        return getIntent().getExtras();
+        return results;
+    }
+
+    /**
+     * Adds a listener to be notified when the info queried by {@link RestApisConsumer} arrives.
+     *
+     * @param listener The listener, usually a fragment with a view.
+     */
+    public void addResultsListener(ResultsListener listener) {
+        resultsListeners.add(listener);
+    }
+
+    /**
+     * Removes a listener added by {@link #addResultsListener(ResultsListener)}.
+     *
+     * @param listener The listener.
+     */
+    public void removeResultsListener(ResultsListener listener) {
+        resultsListeners.remove(listener);
     }
 
     /**
@@ -111,4 +232,17 @@ public class MainActivity extends AppCompatActivity {
             return null;
         }
     }
+
+    /**
+     * Listener of the info queried by {@link RestApisConsumer}.
+     */
+    public interface ResultsListener {
+
+        /**
+         * Called on the main thread when a query finishes.
+         *
+         * @param results All results of the analysis so far (same of {@link #getExtras()}).
+         */
+        void onResultsUpdated(Bundle results);
+    }
 }
@@ -3,6 +3,7 @@ package io.github.mathiasberwig.cloudvision.presentation.activity;
 import android.Manifest;
 import android.app.Fragment;
 import android.content.BroadcastReceiver;
+import android.content.ClipData;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -11,6 +12,7 @@ import android.os.Bundle;
 import android.os.Environment;
 import android.provider.MediaStore;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.app.FragmentTransaction;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.app.AppCompatActivity;
@@ -24,13 +26,12 @@ import android.widget.Toast;
 import com.gordonwong.materialsheetfab.MaterialSheetFab;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
 
 import io.github.mathiasberwig.cloudvision.R;
+import io.github.mathiasberwig.cloudvision.controller.CancellationToken;
 import io.github.mathiasberwig.cloudvision.controller.PermissionUtils;
+import io.github.mathiasberwig.cloudvision.controller.image.ImageIngester;
 import io.github.mathiasberwig.cloudvision.controller.service.CloudVisionUploader;
 import io.github.mathiasberwig.cloudvision.controller.service.RestApisConsumer;
 import io.github.mathiasberwig.cloudvision.presentation.custom_view.FAB;
@@ -66,20 +67,29 @@ public class SelectImageActivity extends AppCompatActivity {
     /**
      * Receiver that is executed when the {@link CloudVisionUploader} finishes sending the image to
      * server. In case of any errors, it disable loading animation and shows a Toast to the user.
-     * If the image was sent successfully, it starts the {@link RestApisConsumer} to query third-party
-     * servers info about the image.
+     * When the results of all images arrive, it starts a {@link MainActivity} for each image with
+     * annotations, that shows them while the {@link RestApisConsumer} queries third-party servers
+     * info about them.
      */
     private BroadcastReceiver uploadCompleteReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            // Valid response from Google Cloud Vision
-            if (intent.hasExtra(CloudVisionUploader.EXTRA_RESULT_LABELS)
-             || intent.hasExtra(CloudVisionUploader.EXTRA_RESULT_LANDMARK)) {
-
-                // Start the RestApisConsumer IntentService
-                Intent service = new Intent(SelectImageActivity.this, RestApisConsumer.class);
-                service.putExtras(intent.getExtras());
-                startService(service);
+            // Ignore the results of cancelled analyses
+            if (!isCurrentAnalysis(intent)) return;
+
+            pendingResults--;
+
+            // Valid response from Google Cloud Vision, kept until the other images of the batch
+            // arrive, so every image with results is shown
+            if (CloudVisionUploader.hasAnnotations(intent)) {
+                results.add(intent.getExtras());
+                if (pendingResults == 0) showResults();
+            } else
+
+            // Wait for the other images of the batch, one of them may have results
+            if (!results.isEmpty() || pendingResults > 0) {
+                Log.d(TAG, "no results for " + intent.getParcelableExtra(CloudVisionUploader.EXTRA_IMAGE_URI));
+                if (pendingResults == 0) showResults();
             } else
 
             // Error uploading image or retrieving data from Google Cloud Vision
@@ -91,12 +101,14 @@ public class SelectImageActivity extends AppCompatActivity {
                         Toast.LENGTH_LONG).show();
 
                 // Disable loading animation
+                finishAnalysis();
                 toggleLoading(false);
             } else
 
             // CloudVision haven't returned enough data
             {
                 // Disable loading animation
+                finishAnalysis();
                 toggleLoading(false);
 
                 // TODO: Replace Toast with a EmptyView showing that nothing was found
@@ -109,23 +121,28 @@ public class SelectImageActivity extends AppCompatActivity {
     };
 
     /**
-     * Receiver that is executed when the {@link RestApisConsumer} finishes querying data from
-     * third-party services about the image sent by {@link CloudVisionUploader}. It stops the loading
-     * animation and starts {@link MainActivity}.
+     * The token of the analysis running, or {@code null}. It's cancelled when the user leaves the
+     * {@link LoadingFragment}.
      */
-    private BroadcastReceiver queryCompleteReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            // Start MainActivity with the info returned from Google Cloud Vision and third-party APIs
-            MainActivity.newInstance(SelectImageActivity.this, intent.getExtras());
+    private CancellationToken analysis;
 
-            // Disable loading animation
-            toggleLoading(false);
-        }
-    };
+    /**
+     * The number of images of the current upload whose results weren't received yet.
+     */
+    private int pendingResults;
+
+    /**
+     * The results with annotations of the current upload received so far.
+     */
+    private ArrayList<Bundle> results = new ArrayList<>();
+
+    // Saved instance state keys of the analysis running
+    private static final String STATE_ANALYSIS_ID = "STATE_ANALYSIS_ID";
+    private static final String STATE_PENDING_RESULTS = "STATE_PENDING_RESULTS";
+    private static final String STATE_RESULTS = "STATE_RESULTS";
 
     /**
-     * The filename of the image selected by the user. It's stored on the default application folder.
+     * The filename of the image taken with the camera. It's stored on the public pictures folder.
      */
     public static final String FILE_NAME = "cloud_vision.jpg";
 
@@ -136,7 +153,17 @@ public class SelectImageActivity extends AppCompatActivity {
 
         setupToolbar();
         setupFAB();
-        toggleLoading(false);
+
+        // Keep waiting for the analysis started before the activity was recreated
+        if (savedInstanceState != null) {
+            analysis = CancellationToken.get(savedInstanceState.getLong(STATE_ANALYSIS_ID, CancellationToken.NO_ID));
+            if (analysis.isCancelled() || analysis.getId() == CancellationToken.NO_ID) analysis = null;
+            pendingResults = savedInstanceState.getInt(STATE_PENDING_RESULTS);
+            if (savedInstanceState.containsKey(STATE_RESULTS)) {
+                results = savedInstanceState.getParcelableArrayList(STATE_RESULTS);
+            }
+        }
+        toggleLoading(analysis != null);
 
         // Get intent, action and MIME type
         Intent intent = getIntent();
@@ -147,13 +174,10 @@ public class SelectImageActivity extends AppCompatActivity {
         if (Intent.ACTION_SEND.equals(action) && type != null && type.startsWith("image/")) {
             Uri imageUri = intent.getParcelableExtra(Intent.EXTRA_STREAM);
             // Start loading the image to CloudVisionUploader
-            try {
-                CloudVisionUploader.start(this, copyFileFromGallery(imageUri));
-            } catch (IOException e) {
-                Toast.makeText(this, R.string.error_handling_image, Toast.LENGTH_SHORT).show();
-                Log.e(TAG, "Error handling image file.", e);
-            }
-            toggleLoading(true);
+            uploadImage(imageUri);
+        } else if (Intent.ACTION_SEND_MULTIPLE.equals(action) && type != null && type.startsWith("image/")) {
+            ArrayList<Uri> imageUris = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+            uploadImages(imageUris);
         }
     }
 
@@ -175,6 +199,10 @@ public class SelectImageActivity extends AppCompatActivity {
             getFragmentManager().beginTransaction().remove(preferencesFragment).commit();
             settingsVisible = false;
             toggleLoading(false);
+        } else if (analysis != null) {
+            // Stop the analysis and go back to the image selection
+            cancelAnalysis();
+            toggleLoading(false);
         } else {
             super.onBackPressed();
         }
@@ -217,21 +245,21 @@ public class SelectImageActivity extends AppCompatActivity {
 
         // Gets the image chosen by the user and start uploading it to the server
         if (requestCode == GALLERY_IMAGE_REQUEST && resultCode == RESULT_OK && data != null) {
-            try {
-                CloudVisionUploader.start(this, copyFileFromGallery(data.getData()));
-            } catch (IOException e) {
-                Toast.makeText(this, R.string.error_handling_image, Toast.LENGTH_SHORT).show();
-                Log.e(TAG, "Error handling image file.", e);
+            // Many images are returned as ClipData when the gallery allows multiple selection
+            ClipData clipData = data.getClipData();
+            if (clipData != null && clipData.getItemCount() > 1) {
+                ArrayList<Uri> imageUris = new ArrayList<>();
+                for (int i = 0; i < clipData.getItemCount(); i++) {
+                    imageUris.add(clipData.getItemAt(i).getUri());
+                }
+                uploadImages(imageUris);
+            } else if (clipData != null && data.getData() == null) {
+                uploadImage(clipData.getItemAt(0).getUri());
+            } else {
+                uploadImage(data.getData());
             }
-            toggleLoading(true);
         } else if (requestCode == CAMERA_IMAGE_REQUEST && resultCode == RESULT_OK) {
-            try {
-                CloudVisionUploader.start(this, copyFileFromGallery(Uri.fromFile(getCameraFile())));
-            } catch (IOException e) {
-                Toast.makeText(this, R.string.error_handling_image, Toast.LENGTH_SHORT).show();
-                Log.e(TAG, "Error handling image file.", e);
-            }
-            toggleLoading(true);
+            uploadImage(Uri.fromFile(getCameraFile()));
         }
     }
 
@@ -241,7 +269,6 @@ public class SelectImageActivity extends AppCompatActivity {
 
         LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(this);
         lbm.registerReceiver(uploadCompleteReceiver, new IntentFilter(CloudVisionUploader.ACTION_DONE));
-        lbm.registerReceiver(queryCompleteReceiver, new IntentFilter(RestApisConsumer.ACTION_DONE));
     }
 
     @Override
@@ -250,7 +277,25 @@ public class SelectImageActivity extends AppCompatActivity {
 
         LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(this);
         lbm.unregisterReceiver(uploadCompleteReceiver);
-        lbm.unregisterReceiver(queryCompleteReceiver);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+
+        if (analysis != null) {
+            outState.putLong(STATE_ANALYSIS_ID, analysis.getId());
+            outState.putInt(STATE_PENDING_RESULTS, pendingResults);
+            outState.putParcelableArrayList(STATE_RESULTS, results);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        // Nobody will see the results anymore
+        if (isFinishing()) cancelAnalysis();
+
+        super.onDestroy();
     }
 
     @Override
@@ -336,7 +381,7 @@ public class SelectImageActivity extends AppCompatActivity {
     }
 
     /**
-     * Creates an intent with {@link Intent#ACTION_GET_CONTENT} to select a photo. Starts the intent
+     * Creates an intent with {@link Intent#ACTION_GET_CONTENT} to select photos. Starts the intent
      * with {@code startActivityForResult}.
      *
      * @param view Mandatory to use with {@code onClick} event.
@@ -348,6 +393,7 @@ public class SelectImageActivity extends AppCompatActivity {
             Intent intent = new Intent();
             intent.setType("image/*");
             intent.setAction(Intent.ACTION_GET_CONTENT);
+            intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
             startActivityForResult(Intent.createChooser(intent, getString(R.string.title_gallery_chooser)), GALLERY_IMAGE_REQUEST);
         } else {
             Log.d(TAG, "startGalleryChooser: app doesn't have permissions");
@@ -384,60 +430,150 @@ public class SelectImageActivity extends AppCompatActivity {
     }
 
     /**
-     * Gets a new file to store the image on app's directory.
+     * Starts a new analysis, cancelling the previous one if it's still running.
      *
-     * @return new file on the app's directory with {@link #FILE_NAME}.
+     * @return The token of the new analysis.
      */
-    public File getAppDirectoryFile() {
-        return new File(getFilesDir(), FILE_NAME);
+    private CancellationToken startAnalysis() {
+        cancelAnalysis();
+        analysis = CancellationToken.create();
+        return analysis;
     }
 
     /**
-     * Copy the file specified in the {@code uri} parameter to a new file on {@link Environment#DIRECTORY_PICTURES}
-     * with {@link #FILE_NAME} (as get from{@link #getCameraFile()}).
-     *
-     * @param uri The Uri of the gallery file.
-     * @return The Uri where the file was stored.
-     * @throws IOException
+     * Cancels the analysis running, if any. Its HTTP calls are aborted and the services skip the
+     * stages left, without broadcasting their results.
      */
-    private Uri copyFileFromGallery(Uri uri) throws IOException {
+    private void cancelAnalysis() {
+        if (analysis == null) return;
+
+        Log.d(TAG, "cancelling analysis " + analysis.getId());
+        analysis.cancel();
+        analysis = null;
+
+        // The copies of the images with results are kept for MainActivity, that won't show them
+        for (Bundle result : results) {
+            CloudVisionUploader.deleteImageCopy(this, (Uri) result.getParcelable(CloudVisionUploader.EXTRA_IMAGE_URI),
+                    result.getLong(CloudVisionUploader.EXTRA_UPLOAD_ID, CancellationToken.NO_ID),
+                    result.getInt(CloudVisionUploader.EXTRA_BATCH_INDEX));
+        }
+        results.clear();
+    }
 
-        InputStream inputStream = null;
-        OutputStream outputStream = null;
-        File outputFile = getAppDirectoryFile();
+    /**
+     * Forgets the analysis running after its last result is received.
+     */
+    private void finishAnalysis() {
+        if (analysis == null) return;
 
-        try {
-            // read this file into InputStream
-            inputStream = getContentResolver().openInputStream(uri);
+        analysis.release();
+        analysis = null;
+    }
 
-            // write the inputStream to a FileOutputStream
-            outputStream = new FileOutputStream(outputFile);
+    /**
+     * Starts a {@link MainActivity} for each result with annotations of the upload, the first one
+     * on top. Each result gets an analysis of its own, so the queries about an image follow its
+     * activity (and are cancelled when it's closed). The upload is over, so it's forgotten.
+     */
+    private void showResults() {
+        for (Bundle result : results) {
+            result.putLong(CloudVisionUploader.EXTRA_ANALYSIS_ID, CancellationToken.create().getId());
+        }
+        MainActivity.newInstances(this, results);
+        results.clear();
 
-            int read = 0;
-            byte[] bytes = new byte[1024];
+        // Disable loading animation
+        finishAnalysis();
+        toggleLoading(false);
+    }
 
-            while ((read = inputStream.read(bytes)) != -1) {
-                outputStream.write(bytes, 0, read);
-            }
-            return Uri.fromFile(outputFile);
-        } catch (IOException | NullPointerException e) {
-            Log.e(TAG, e.getMessage(), e);
-            return uri;
-        } finally {
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (IOException e) {
-                    Log.e(TAG, e.getMessage(), e);
+    /**
+     * Checks if a result broadcasted by the services belongs to the analysis running.
+     *
+     * @param intent The broadcasted result.
+     * @return {@code true} if the result is of the analysis running.
+     */
+    private boolean isCurrentAnalysis(Intent intent) {
+        return analysis != null && analysis.getId()
+                == intent.getLongExtra(CloudVisionUploader.EXTRA_ANALYSIS_ID, CancellationToken.NO_ID);
+    }
+
+    /**
+     * Shows the loading animation and copies the image specified in the {@code uri} parameter to a
+     * file of the analysis in background (see {@link CloudVisionUploader#getImageCopy(Context, long, int)}).
+     * The {@link CloudVisionUploader} is started as soon as the copy is ready. If the analysis is
+     * cancelled meanwhile, the copy is deleted.
+     *
+     * @param uri The Uri of the picked image.
+     */
+    private void uploadImage(Uri uri) {
+        if (uri == null) {
+            Toast.makeText(this, R.string.error_handling_image, Toast.LENGTH_SHORT).show();
+            Log.e(TAG, "uploadImage: the image Uri is null");
+            return;
+        }
+
+        toggleLoading(true);
+        pendingResults = 1;
+        results.clear();
+        final CancellationToken token = startAnalysis();
+        final File file = CloudVisionUploader.getImageCopy(this, token.getId(), 0);
+        new ImageIngester(getContentResolver(), file).ingest(uri, new ImageIngester.Callback() {
+            @Override
+            public void onImageReady(@NonNull Uri imageUri, @Nullable String imageDigest) {
+                if (token.isCancelled()) {
+                    CloudVisionUploader.deleteImageCopy(SelectImageActivity.this, imageUri, token.getId(), 0);
+                } else {
+                    CloudVisionUploader.start(SelectImageActivity.this, imageUri, imageDigest, token);
                 }
             }
-            if (outputStream != null) {
-                try {
-                    outputStream.close();
-                } catch (IOException e) {
-                    Log.e(TAG, e.getMessage(), e);
+        });
+    }
+
+    /**
+     * Shows the loading animation and copies all {@code uris} to files of the app in background.
+     * The {@link CloudVisionUploader} is started with all of them when the last copy is ready, so
+     * they are sent in as few calls as possible. Every image with results is shown.
+     *
+     * @param uris The Uris of the picked images.
+     */
+    private void uploadImages(final ArrayList<Uri> uris) {
+        if (uris == null || uris.isEmpty()) {
+            Toast.makeText(this, R.string.error_handling_image, Toast.LENGTH_SHORT).show();
+            Log.e(TAG, "uploadImages: there is no image Uri");
+            return;
+        }
+        if (uris.size() == 1) {
+            uploadImage(uris.get(0));
+            return;
+        }
+
+        toggleLoading(true);
+        pendingResults = uris.size();
+        results.clear();
+        final CancellationToken token = startAnalysis();
+
+        // The images are copied in order, so the last callback means all are ready
+        final ArrayList<Uri> imageUris = new ArrayList<>();
+        final ArrayList<String> imageDigests = new ArrayList<>();
+        for (int i = 0; i < uris.size(); i++) {
+            final File file = CloudVisionUploader.getImageCopy(this, token.getId(), i);
+            new ImageIngester(getContentResolver(), file).ingest(uris.get(i), new ImageIngester.Callback() {
+                @Override
+                public void onImageReady(@NonNull Uri imageUri, @Nullable String imageDigest) {
+                    imageUris.add(imageUri);
+                    imageDigests.add(imageDigest);
+                    if (imageUris.size() < uris.size()) return;
+
+                    if (token.isCancelled()) {
+                        for (int j = 0; j < imageUris.size(); j++) {
+                            CloudVisionUploader.deleteImageCopy(SelectImageActivity.this, imageUris.get(j), token.getId(), j);
+                        }
+                    } else {
+                        CloudVisionUploader.start(SelectImageActivity.this, imageUris, imageDigests, token);
+                    }
                 }
-            }
+            });
         }
     }
 }
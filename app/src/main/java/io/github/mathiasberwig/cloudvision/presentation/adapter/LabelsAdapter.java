@@ -40,6 +40,24 @@ public class LabelsAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
         this.contents.addAll(labelsInfo);
     }
 
+    /**
+     * Replaces the annotations shown, notifying only the items that changed.
+     *
+     * @param labelsInfo The new annotations of the image.
+     */
+    public void setLabels(List<LabelInfo> labelsInfo) {
+        // The hint stays on the first position
+        final int oldCount = contents.size() - 1;
+        final int newCount = labelsInfo.size();
+        contents.subList(1, contents.size()).clear();
+        contents.addAll(labelsInfo);
+
+        final int changedCount = Math.min(oldCount, newCount);
+        if (changedCount > 0) notifyItemRangeChanged(1, changedCount);
+        if (newCount > oldCount) notifyItemRangeInserted(1 + oldCount, newCount - oldCount);
+        if (newCount < oldCount) notifyItemRangeRemoved(1 + newCount, oldCount - newCount);
+    }
+
     @Override
     public int getItemViewType(int position) {
         // We should use instance of operator to determine the type of view, but the hint will
@@ -51,7 +51,37 @@ public class LogoAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     public LogoAdapter(Fragment fragment, LogoInfo logoInfo) {
         this.fragment = fragment;
         this.content = logoInfo;
-        this.hasLogo = content.getLogoUrl() != null && !content.getLogoUrl().trim().isEmpty();
+        this.hasLogo = hasLogo(content);
+    }
+
+    /**
+     * Replaces the info shown, as the queries about the brand finish. Only the items that changed
+     * are notified, so the cards already shown aren't recreated.
+     *
+     * @param logoInfo The updated info of the brand.
+     */
+    public void setLogoInfo(LogoInfo logoInfo) {
+        final boolean hadLogo = hasLogo;
+        final int oldPropertyCount = getPropertyCount();
+
+        content = logoInfo;
+        hasLogo = hasLogo(content);
+        final int newPropertyCount = getPropertyCount();
+
+        // The description is always the first item
+        notifyItemChanged(0);
+
+        // The logo, if it exists, is the second item
+        if (hasLogo && hadLogo) notifyItemChanged(1);
+        else if (hasLogo) notifyItemInserted(1);
+        else if (hadLogo) notifyItemRemoved(1);
+
+        // The properties are the remaining items
+        final int firstProperty = hasLogo ? 2 : 1;
+        final int changedCount = Math.min(oldPropertyCount, newPropertyCount);
+        if (changedCount > 0) notifyItemRangeChanged(firstProperty, changedCount);
+        if (newPropertyCount > oldPropertyCount) notifyItemRangeInserted(firstProperty + oldPropertyCount, newPropertyCount - oldPropertyCount);
+        if (newPropertyCount < oldPropertyCount) notifyItemRangeRemoved(firstProperty + newPropertyCount, oldPropertyCount - newPropertyCount);
     }
 
     @Override
@@ -94,6 +124,7 @@ public class LogoAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
                 ((DescriptionViewHolder) holder).txtArticleName.setText(content.getBrandName());
                 ((DescriptionViewHolder) holder).txtArticleDescription.setText(content.getDescription());
                 ((DescriptionViewHolder) holder).btnArticleInfoMore.setOnClickListener(this.btnBrandInfoMoreOnClick);
+                ((DescriptionViewHolder) holder).btnArticleInfoMore.setEnabled(content.getWikipediaArticleUrl() != null);
                 break;
             }
             case TYPE_CELL: {
@@ -102,9 +133,8 @@ public class LogoAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
                 ((BrandPropertyViewHolder) holder).imgPropertyIcon.setImageResource(prop.getIcon());
                 ((BrandPropertyViewHolder) holder).txtPropertyTitle.setText(prop.getName());
                 ((BrandPropertyViewHolder) holder).txtPropertyValue.setText(prop.getValue());
-                if (prop.getOnClickListener() != null) {
-                    ((BrandPropertyViewHolder) holder).cardView.setOnClickListener(prop.getOnClickListener());
-                }
+                // The holder may be reused, so the listener of the previous property must be removed
+                ((BrandPropertyViewHolder) holder).cardView.setOnClickListener(prop.getOnClickListener());
                 break;
             }
             case TYPE_LOGO: {
@@ -117,7 +147,22 @@ public class LogoAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     @Override
     public int getItemCount() {
         // Each property is a cell + the description + logo (1 if it exists, else 0)
-        return content.getProperties().size() + 1 + (hasLogo ? 1 : 0);
+        return getPropertyCount() + 1 + (hasLogo ? 1 : 0);
+    }
+
+    /**
+     * @return The number of properties of the brand. They're {@code null} until Wikidata's query
+     * finishes.
+     */
+    private int getPropertyCount() {
+        return content.getProperties() != null ? content.getProperties().size() : 0;
+    }
+
+    /**
+     * @return {@code true} if {@code logoInfo} has a logo URL.
+     */
+    private static boolean hasLogo(LogoInfo logoInfo) {
+        return logoInfo.getLogoUrl() != null && !logoInfo.getLogoUrl().trim().isEmpty();
     }
 
     private void prepareImageViewWithGlide(LogoPropertyViewHolder holder, Uri uri) {
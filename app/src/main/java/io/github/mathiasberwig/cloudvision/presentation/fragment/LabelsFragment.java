@@ -17,10 +17,11 @@ import io.github.mathiasberwig.cloudvision.data.model.LabelInfo;
 import io.github.mathiasberwig.cloudvision.presentation.activity.MainActivity;
 import io.github.mathiasberwig.cloudvision.presentation.adapter.LabelsAdapter;
 
-public class LabelsFragment extends Fragment {
+public class LabelsFragment extends Fragment implements MainActivity.ResultsListener {
     private static final String TAG = LabelsFragment.class.getName();
 
     private List<LabelInfo> labelsInfo;
+    private LabelsAdapter adapter;
 
     public static LabelsFragment newInstance() {
         return new LabelsFragment();
@@ -45,7 +46,26 @@ public class LabelsFragment extends Fragment {
         mRecyclerView.setLayoutManager(layoutManager);
 
         // Setup the RecyclerView Adapter
-        RecyclerView.Adapter mAdapter = new LabelsAdapter(getString(R.string.hint_label), labelsInfo);
-        mRecyclerView.setAdapter(mAdapter);
+        adapter = new LabelsAdapter(getString(R.string.hint_label), labelsInfo);
+        mRecyclerView.setAdapter(adapter);
+
+        ((MainActivity) getActivity()).addResultsListener(this);
+    }
+
+    @Override
+    public void onDestroyView() {
+        ((MainActivity) getActivity()).removeResultsListener(this);
+        super.onDestroyView();
+    }
+
+    @Override
+    public void onResultsUpdated(Bundle results) {
+        final List<LabelInfo> updatedLabels = results.getParcelableArrayList(CloudVisionUploader.EXTRA_RESULT_LABELS);
+        // The results are parceled again when the activity is recreated, so compare the labels
+        // themselves instead of the list instances
+        if (updatedLabels == null || updatedLabels.equals(labelsInfo)) return;
+
+        labelsInfo = updatedLabels;
+        adapter.setLabels(labelsInfo);
     }
-}
\ No newline at end of file
+}
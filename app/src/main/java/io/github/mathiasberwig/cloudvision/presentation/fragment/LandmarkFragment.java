@@ -23,7 +23,7 @@ import io.github.mathiasberwig.cloudvision.controller.service.CloudVisionUploade
 import io.github.mathiasberwig.cloudvision.data.model.LandmarkInfo;
 import io.github.mathiasberwig.cloudvision.presentation.activity.MainActivity;
 
-public class LandmarkFragment extends Fragment implements OnMapReadyCallback {
+public class LandmarkFragment extends Fragment implements OnMapReadyCallback, MainActivity.ResultsListener {
     private static final String TAG = LandmarkFragment.class.getName();
 
     // UI References
@@ -34,6 +34,11 @@ public class LandmarkFragment extends Fragment implements OnMapReadyCallback {
 
     private LandmarkInfo landmarkInfo;
 
+    /**
+     * The map of {@link #mapLandmarkLocation}, or {@code null} while it isn't ready.
+     */
+    private GoogleMap googleMap;
+
     /**
      * OnClickListener for button "More" on Landmark's Info. It will open the Wikipedia Article in
      * the default browser.
@@ -66,10 +71,41 @@ public class LandmarkFragment extends Fragment implements OnMapReadyCallback {
 
         findInfoViews(view);
         setupInfoViews();
+        setupMapView();
+
+        ((MainActivity) getActivity()).addResultsListener(this);
+    }
+
+    @Override
+    public void onDestroyView() {
+        ((MainActivity) getActivity()).removeResultsListener(this);
+        googleMap = null;
+        super.onDestroyView();
+    }
+
+    @Override
+    public void onResultsUpdated(Bundle results) {
+        final LandmarkInfo updatedLandmarkInfo = results.getParcelable(CloudVisionUploader.EXTRA_RESULT_LANDMARK);
+        if (updatedLandmarkInfo == null || updatedLandmarkInfo == landmarkInfo) return;
+
+        landmarkInfo = updatedLandmarkInfo;
+        setupInfoViews();
+        if (googleMap != null) showLandmarkMarker();
     }
 
     @Override
     public void onMapReady(GoogleMap googleMap) {
+        this.googleMap = googleMap;
+        showLandmarkMarker();
+
+        // Move camera to show all markers and locations
+        googleMap.moveCamera(CameraUpdateFactory.newLatLngZoom(landmarkInfo.getLatLng(), 10f));
+    }
+
+    /**
+     * Shows a marker with the landmark position on {@link #googleMap}, replacing the previous one.
+     */
+    private void showLandmarkMarker() {
         // Create the options to show a marker
         final MarkerOptions markerOptions = new MarkerOptions()
                 .title(landmarkInfo.getName())
@@ -78,10 +114,8 @@ public class LandmarkFragment extends Fragment implements OnMapReadyCallback {
         if (landmarkInfo.getAddress() != null) markerOptions.snippet(landmarkInfo.getAddress());
 
         // Add marker with landmark position
+        googleMap.clear();
         googleMap.addMarker(markerOptions);
-
-        // Move camera to show all markers and locations
-        googleMap.moveCamera(CameraUpdateFactory.newLatLngZoom(landmarkInfo.getLatLng(), 10f));
     }
 
     /**
@@ -97,14 +131,20 @@ public class LandmarkFragment extends Fragment implements OnMapReadyCallback {
     }
 
     /**
-     * Set the text {@link #txtLandmarkName}, {@link #txtLandmarkDescription}; the OnClickListener
-     * event of {@link #btnLandmarkInfoMore} and initializes the lifecyle of {@link #mapLandmarkLocation}.
+     * Set the text {@link #txtLandmarkName}, {@link #txtLandmarkDescription} and the OnClickListener
+     * event of {@link #btnLandmarkInfoMore}. It's called again when Wikipedia's article arrives.
      */
     private void setupInfoViews() {
         txtLandmarkName.setText(landmarkInfo.getName());
         txtLandmarkDescription.setText(landmarkInfo.getDescription());
         btnLandmarkInfoMore.setOnClickListener(btnLandmarkInfoMoreOnClick);
+        btnLandmarkInfoMore.setEnabled(landmarkInfo.getWikipediaArticleUrl() != null);
+    }
 
+    /**
+     * Initializes the lifecyle of {@link #mapLandmarkLocation}.
+     */
+    private void setupMapView() {
         // Initialises the MapView by calling its lifecycle methods.
         if (mapLandmarkLocation != null) {
             // Initialise the MapView
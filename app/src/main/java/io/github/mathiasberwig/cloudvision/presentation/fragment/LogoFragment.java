@@ -16,10 +16,11 @@ import io.github.mathiasberwig.cloudvision.presentation.activity.MainActivity;
 import io.github.mathiasberwig.cloudvision.presentation.adapter.LogoAdapter;
 
 
-public class LogoFragment extends Fragment {
+public class LogoFragment extends Fragment implements MainActivity.ResultsListener {
     private static final String TAG = LogoFragment.class.getName();
 
     private LogoInfo logosInfo;
+    private LogoAdapter adapter;
 
     public static LogoFragment newInstance() {
         return new LogoFragment();
@@ -44,7 +45,24 @@ public class LogoFragment extends Fragment {
         mRecyclerView.setLayoutManager(layoutManager);
 
         // Setup the RecyclerView Adapter
-        RecyclerView.Adapter mAdapter = new LogoAdapter(LogoFragment.this, logosInfo);
-        mRecyclerView.setAdapter(mAdapter);
+        adapter = new LogoAdapter(LogoFragment.this, logosInfo);
+        mRecyclerView.setAdapter(adapter);
+
+        ((MainActivity) getActivity()).addResultsListener(this);
+    }
+
+    @Override
+    public void onDestroyView() {
+        ((MainActivity) getActivity()).removeResultsListener(this);
+        super.onDestroyView();
+    }
+
+    @Override
+    public void onResultsUpdated(Bundle results) {
+        final LogoInfo updatedLogoInfo = results.getParcelable(CloudVisionUploader.EXTRA_RESULT_LOGO);
+        if (updatedLogoInfo == null || updatedLogoInfo == logosInfo) return;
+
+        logosInfo = updatedLogoInfo;
+        adapter.setLogoInfo(logosInfo);
     }
 }
@@ -0,0 +1,205 @@
+package io.github.mathiasberwig.cloudvision.controller.service;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.vision.v1.Vision;
+import com.google.api.services.vision.v1.model.BatchAnnotateImagesResponse;
+import com.google.api.services.vision.v1.model.Feature;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.github.mathiasberwig.cloudvision.controller.CancellationToken;
+import io.github.mathiasberwig.cloudvision.controller.vision.AnnotateRequestContent;
+import io.github.mathiasberwig.cloudvision.controller.vision.CallPolicy;
+import io.github.mathiasberwig.cloudvision.controller.vision.CallTrace;
+import io.github.mathiasberwig.cloudvision.controller.vision.FeatureProfile;
+import io.github.mathiasberwig.cloudvision.controller.vision.ImageSource;
+import io.github.mathiasberwig.cloudvision.controller.vision.OkHttpTransport;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the annotate calls of {@link CloudVisionUploader}, sent by the {@link OkHttpTransport}
+ * to a {@link MockWebServer} that injects error statuses and latency. The calls follow a
+ * {@link CallPolicy} like the uploads, with deadlines short enough for a test.
+ */
+public class CloudVisionUploaderTest {
+
+    private static final List<Feature> FEATURES = Collections.singletonList(FeatureProfile.LABEL_DETECTION.createFeature(5));
+
+    private static final String RESPONSE = "{\"responses\": [{\"labelAnnotations\": [{\"description\": \"cat\", \"score\": 0.9}]}]}";
+
+    /**
+     * Time the server holds a slow response. The tests that abort it must finish much sooner.
+     */
+    private static final long SLOW_RESPONSE_MILLIS = 10 * 1000;
+
+    private MockWebServer server;
+    private OkHttpClient httpClient;
+    private Vision vision;
+    private CancellationToken analysis;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+
+        httpClient = new OkHttpClient.Builder()
+                .readTimeout(SLOW_RESPONSE_MILLIS * 2, TimeUnit.MILLISECONDS)
+                .build();
+        vision = new Vision.Builder(new OkHttpTransport(httpClient), GsonFactory.getDefaultInstance(), null)
+                .setRootUrl(server.url("/").toString())
+                .setApplicationName("test")
+                .build();
+        analysis = CancellationToken.create();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        analysis.cancel();
+        server.shutdown();
+    }
+
+    @Test
+    public void classifiesTooManyRequestsAndUnavailableAsRetryable() throws IOException {
+        assertTrue(CallPolicy.isRetryable(executeWithStatus(429)));
+        assertTrue(CallPolicy.isRetryable(executeWithStatus(503)));
+        assertFalse(CallPolicy.isRetryable(executeWithStatus(400)));
+    }
+
+    @Test
+    public void retriesTooManyRequestsAndUnavailable() throws IOException, InterruptedException {
+        server.enqueue(new MockResponse().setResponseCode(429));
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setBody(RESPONSE));
+
+        final BatchAnnotateImagesResponse response = new CallPolicy(10 * 1000, 3, false)
+                .execute(new AnnotateCall(), CallTrace.begin("test"), analysis);
+
+        assertEquals("cat", response.getResponses().get(0).getLabelAnnotations().get(0).getDescription());
+        assertEquals(3, server.getRequestCount());
+        assertTrue(server.takeRequest().getPath().contains("fields="));
+    }
+
+    @Test
+    public void abortsTheCallWhenTheDeadlineIsReached() throws IOException {
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+
+        final long start = System.nanoTime();
+        try {
+            new CallPolicy(500, 3, false).execute(new AnnotateCall(), CallTrace.begin("test"), analysis);
+            fail("The deadline should be exceeded");
+        } catch (InterruptedIOException e) {
+            assertTrue(elapsedMillis(start) < SLOW_RESPONSE_MILLIS);
+        }
+        assertEquals(1, server.getRequestCount());
+        assertFalse(analysis.isCancelled());
+    }
+
+    @Test
+    public void hedgesSlowCallsAndTheFastCopyWins() throws IOException {
+        final CallPolicy policy = new CallPolicy(SLOW_RESPONSE_MILLIS * 2, 1, true);
+
+        // Record fast latencies, so the next slow call is hedged soon
+        for (int i = 0; i < 16; i++) {
+            server.enqueue(new MockResponse().setBody(RESPONSE));
+            policy.execute(new AnnotateCall(), CallTrace.begin("test"), analysis);
+        }
+
+        // The first copy gets a response that never comes, the hedged one a fast response
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        server.enqueue(new MockResponse().setBody(RESPONSE));
+
+        final long start = System.nanoTime();
+        final BatchAnnotateImagesResponse response = policy.execute(new AnnotateCall(), CallTrace.begin("test"), analysis);
+
+        assertEquals("cat", response.getResponses().get(0).getLabelAnnotations().get(0).getDescription());
+        assertEquals(18, server.getRequestCount());
+        assertTrue(elapsedMillis(start) < SLOW_RESPONSE_MILLIS);
+    }
+
+    @Test
+    public void cancellingTheAnalysisAbortsTheCallInFlight() throws IOException {
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+
+        // Cancel the analysis as soon as the request reaches the server
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.takeRequest();
+                    analysis.cancel();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }).start();
+
+        final long start = System.nanoTime();
+        try {
+            CloudVisionUploader.executeAnnotateRequest(vision, httpClient, createContent(),
+                    FeatureProfile.getResponseFields(FEATURES), CallTrace.begin("test"), analysis);
+            fail("The call should be aborted");
+        } catch (IOException e) {
+            assertTrue(analysis.isCancelled());
+            assertTrue(elapsedMillis(start) < SLOW_RESPONSE_MILLIS);
+        }
+    }
+
+    /**
+     * Executes a single annotate call answered with {@code status}.
+     *
+     * @return The error of the call.
+     */
+    private IOException executeWithStatus(int status) throws IOException {
+        server.enqueue(new MockResponse()
+                .setResponseCode(status)
+                .setHeader("Content-Type", "application/json")
+                .setBody("{\"error\": {\"code\": " + status + ", \"message\": \"test\"}}"));
+        try {
+            new AnnotateCall().execute(analysis);
+            fail("The status " + status + " should be thrown");
+            return null;
+        } catch (GoogleJsonResponseException e) {
+            assertEquals(status, e.getStatusCode());
+            return e;
+        }
+    }
+
+    private static AnnotateRequestContent createContent() throws IOException {
+        final byte[] image = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xd9};
+        return new AnnotateRequestContent(GsonFactory.getDefaultInstance())
+                .addRequest(ImageSource.fromBuffer(image, 0, image.length), FEATURES);
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Annotate call of the uploads, sent to {@link #server}.
+     */
+    private class AnnotateCall implements CallPolicy.Call<BatchAnnotateImagesResponse> {
+
+        @Override
+        public BatchAnnotateImagesResponse execute(CancellationToken copyToken) throws IOException {
+            return CloudVisionUploader.executeAnnotateRequest(vision, httpClient, createContent(),
+                    FeatureProfile.getResponseFields(FEATURES), CallTrace.begin("test"), copyToken);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package io.github.mathiasberwig.cloudvision.controller.vision;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.mathiasberwig.cloudvision.controller.CancellationToken;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link CallPolicy} with a fake call that injects faults and latency, so the retries,
+ * the hedged copies and the deadline are exercised without a network.
+ */
+public class CallPolicyTest {
+
+    private CancellationToken analysis;
+
+    @Before
+    public void setUp() {
+        analysis = CancellationToken.create();
+    }
+
+    @After
+    public void tearDown() {
+        analysis.cancel();
+    }
+
+    @Test
+    public void retriesTransientErrors() throws IOException {
+        final FakeCall call = new FakeCall() {
+            @Override
+            String onCopy(int copy, CancellationToken copyToken) throws IOException {
+                if (copy < 3) throw new IOException("Connection reset");
+                return "ok";
+            }
+        };
+
+        assertEquals("ok", new CallPolicy(10 * 1000, 3, false).execute(call, CallTrace.begin("test"), analysis));
+        assertEquals(3, call.copies.get());
+    }
+
+    @Test
+    public void doesNotRetryPermanentErrors() throws IOException {
+        final FakeCall call = new FakeCall() {
+            @Override
+            String onCopy(int copy, CancellationToken copyToken) throws IOException {
+                throw new FileNotFoundException("Missing image");
+            }
+        };
+
+        try {
+            new CallPolicy(10 * 1000, 3, false).execute(call, CallTrace.begin("test"), analysis);
+            fail("The error should be thrown");
+        } catch (FileNotFoundException e) {
+            assertEquals(1, call.copies.get());
+        }
+    }
+
+    @Test
+    public void abortsTheCallWhenTheDeadlineIsReached() throws IOException {
+        final FakeCall call = new FakeCall() {
+            @Override
+            String onCopy(int copy, CancellationToken copyToken) throws IOException {
+                return awaitCancellation(copyToken);
+            }
+        };
+
+        try {
+            new CallPolicy(200, 3, false).execute(call, CallTrace.begin("test"), analysis);
+            fail("The deadline should be exceeded");
+        } catch (InterruptedIOException e) {
+            assertEquals(1, call.tokens.size());
+            assertTrue(call.tokens.get(1).isCancelled());
+        }
+        assertFalse(analysis.isCancelled());
+    }
+
+    @Test
+    public void hedgesSlowAttemptsAndAbortsTheLosingCopy() throws IOException {
+        final CallPolicy policy = new CallPolicy(10 * 1000, 1, true);
+
+        // Record fast latencies, so the next slow attempt is hedged right away
+        for (int i = 0; i < 16; i++) {
+            policy.execute(new FakeCall() {
+                @Override
+                String onCopy(int copy, CancellationToken copyToken) {
+                    return "fast";
+                }
+            }, CallTrace.begin("test"), analysis);
+        }
+
+        final FakeCall call = new FakeCall() {
+            @Override
+            String onCopy(int copy, CancellationToken copyToken) throws IOException {
+                if (copy == 1) return awaitCancellation(copyToken);
+                return "hedged";
+            }
+        };
+
+        assertEquals("hedged", policy.execute(call, CallTrace.begin("test"), analysis));
+        assertEquals(2, call.copies.get());
+        assertTrue(call.tokens.get(1).isCancelled());
+    }
+
+    @Test
+    public void cancellingTheAnalysisAbortsTheCopies() throws IOException {
+        final FakeCall call = new FakeCall() {
+            @Override
+            String onCopy(int copy, CancellationToken copyToken) throws IOException {
+                analysis.cancel();
+                return awaitCancellation(copyToken);
+            }
+        };
+
+        try {
+            new CallPolicy(10 * 1000, 3, false).execute(call, CallTrace.begin("test"), analysis);
+            fail("The call should be aborted");
+        } catch (InterruptedIOException e) {
+            assertEquals(1, call.copies.get());
+            assertTrue(call.tokens.get(1).isCancelled());
+        }
+    }
+
+    /**
+     * Fake call that records its copies and the tokens they get.
+     */
+    private static abstract class FakeCall implements CallPolicy.Call<String> {
+        final AtomicInteger copies = new AtomicInteger();
+
+        /**
+         * The tokens of the copies, by their number (in the order they started).
+         */
+        final Map<Integer, CancellationToken> tokens = new ConcurrentHashMap<>();
+
+        @Override
+        public String execute(CancellationToken copyToken) throws IOException {
+            final int copy = copies.incrementAndGet();
+            tokens.put(copy, copyToken);
+            return onCopy(copy, copyToken);
+        }
+
+        /**
+         * Executes a copy of the call.
+         *
+         * @param copy The number of the copy, starting at 1 (the hedged copies may start first).
+         * @param copyToken The token of the copy.
+         */
+        abstract String onCopy(int copy, CancellationToken copyToken) throws IOException;
+
+        /**
+         * Blocks like a call stuck on the network, until the copy is aborted.
+         */
+        static String awaitCancellation(CancellationToken copyToken) throws IOException {
+            try {
+                copyToken.await(30 * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new InterruptedIOException("Call aborted");
+        }
+    }
+}